@@ -0,0 +1,46 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks with the usual JMH command line options, always adding the GC profiler so
+ * that allocation rates get reported along with the timings.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class BenchmarkRunner
+{
+    public static void main(String[] args) throws Exception
+    {
+        final CommandLineOptions commandLine = new CommandLineOptions( args );
+        if ( commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams() || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats() )
+        {
+            org.openjdk.jmh.Main.main( args );
+            return;
+        }
+        final Options options = new OptionsBuilder()
+                .parent( commandLine )
+                .addProfiler( GCProfiler.class )
+                .build();
+        new Runner( options ).run();
+    }
+}
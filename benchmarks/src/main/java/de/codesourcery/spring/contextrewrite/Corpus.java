@@ -0,0 +1,253 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.Validate;
+
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertAttributeRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertElementRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.RemoveRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ReplaceRule;
+import de.codesourcery.spring.contextrewrite.XMLRewrite.Rule;
+
+/**
+ * Generates Spring XML files and matching rewrite rules for benchmarking.
+ *
+ * <p>A corpus is a tree of XML files: the root file imports <code>fanOut</code> files, each of which imports
+ * <code>fanOut</code> files again until <code>importDepth</code> is reached. Beans are spread evenly across
+ * all files, bean <code>i</code> always has the ID <code>bean{i}</code> no matter which file it lives in.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class Corpus
+{
+    private static final String SCHEMA_LOCATIONS = "http://www.springframework.org/schema/beans http://www.springframework.org/schema/beans/spring-beans.xsd";
+
+    /**
+     * Kinds of rules a corpus can be rewritten with.
+     */
+    public enum RuleKind
+    {
+        /**
+         * Replace an attribute value, indexed lookup.
+         */
+        REPLACE,
+        /**
+         * Remove a bean, indexed lookup.
+         */
+        REMOVE,
+        /**
+         * Insert a child element into a bean, indexed lookup.
+         */
+        INSERT_ELEMENT,
+        /**
+         * Insert an attribute into a bean, indexed lookup.
+         */
+        INSERT_ATTRIBUTE,
+        /**
+         * Remove a bean using a descendant-axis XPath expression that always needs full XPath evaluation.
+         */
+        DESCENDANT,
+        /**
+         * All of the above, round-robin.
+         */
+        MIXED;
+    }
+
+    public final File directory;
+    public final File rootFile;
+    public final int beanCount;
+    public final int fileCount;
+
+    private Corpus(File directory,File rootFile,int beanCount,int fileCount)
+    {
+        this.directory = directory;
+        this.rootFile = rootFile;
+        this.beanCount = beanCount;
+        this.fileCount = fileCount;
+    }
+
+    /**
+     * Generate a corpus in a new temporary directory.
+     *
+     * @param beanCount total number of beans across all files
+     * @param importDepth number of import levels below the root file, zero generates a single file
+     * @param fanOut number of imports per file
+     * @return
+     * @throws IOException
+     */
+    public static Corpus generate(int beanCount,int importDepth,int fanOut) throws IOException
+    {
+        Validate.isTrue( beanCount > 0 , "beanCount must be > 0");
+        Validate.isTrue( importDepth >= 0 , "importDepth must be >= 0");
+        Validate.isTrue( fanOut > 0 || importDepth == 0 , "fanOut must be > 0");
+
+        int fileCount = 0;
+        for ( int depth = 0 , filesOnLevel = 1 ; depth <= importDepth ; depth++ , filesOnLevel *= fanOut ) {
+            fileCount += filesOnLevel;
+        }
+        final File directory = Files.createTempDirectory( "contextrewrite-corpus" ).toFile();
+        final int[] nextBean = { 0 };
+        final int[] nextFile = { 0 };
+        writeFile( directory , 0 , importDepth , fanOut , beanCount , fileCount , nextBean , nextFile );
+        return new Corpus( directory , new File( directory , "file0.xml" ) , beanCount , fileCount );
+    }
+
+    private static String writeFile(File directory,int depth,int importDepth,int fanOut,int beanCount,int fileCount,int[] nextBean,int[] nextFile) throws IOException
+    {
+        final int fileNo = nextFile[0]++;
+        final String fileName = "file"+fileNo+".xml";
+
+        // spread remaining beans evenly across the remaining files
+        final int remainingFiles = fileCount - fileNo;
+        final int beansInFile = ( beanCount - nextBean[0] + remainingFiles - 1 ) / remainingFiles;
+
+        final StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<beans xmlns=\"http://www.springframework.org/schema/beans\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+        xml.append(" xmlns:ns").append( fileNo ).append("=\"http://ns").append( fileNo ).append("\"");
+        xml.append(" xsi:schemaLocation=\"").append( SCHEMA_LOCATIONS ).append("\">\n");
+        for ( int i = 0 ; i < beansInFile ; i++ )
+        {
+            final int bean = nextBean[0]++;
+            xml.append("  <bean id=\"bean").append( bean ).append("\" class=\"java.lang.StringBuilder\">\n");
+            xml.append("    <property name=\"value\" value=\"value").append( bean ).append("\"/>\n");
+            xml.append("  </bean>\n");
+        }
+        if ( depth < importDepth )
+        {
+            for ( int i = 0 ; i < fanOut ; i++ ) {
+                final String imported = writeFile( directory , depth+1 , importDepth , fanOut , beanCount , fileCount , nextBean , nextFile );
+                xml.append("  <import resource=\"").append( imported ).append("\"/>\n");
+            }
+        }
+        xml.append("</beans>\n");
+        Files.write( new File( directory , fileName ).toPath() , xml.toString().getBytes( StandardCharsets.UTF_8 ) );
+        return fileName;
+    }
+
+    /**
+     * Creates a rewrite configuration for this corpus.
+     *
+     * @param ruleCount number of rules, each rule targets a different bean
+     * @param kind
+     * @return
+     */
+    public RewriteConfig config(int ruleCount,RuleKind kind)
+    {
+        Validate.isTrue( ruleCount >= 0 && ruleCount <= beanCount , "ruleCount must be >= 0 and <= beanCount");
+
+        final RewriteConfig config = new RewriteConfig();
+        config.setContextPath( "/ignored.xml" );
+        config.addRules( rules( ruleCount , kind ) );
+        return config;
+    }
+
+    /**
+     * Creates rules that each target a different bean of this corpus.
+     *
+     * @param ruleCount
+     * @param kind
+     * @return
+     */
+    public List<Rule> rules(int ruleCount,RuleKind kind)
+    {
+        final List<Rule> result = new ArrayList<>();
+        final RuleKind[] mixed = { RuleKind.REPLACE , RuleKind.REMOVE , RuleKind.INSERT_ELEMENT , RuleKind.INSERT_ATTRIBUTE , RuleKind.DESCENDANT };
+        for ( int i = 0 ; i < ruleCount ; i++ )
+        {
+            final int bean = (int) ( (long) i * beanCount / ruleCount );
+            result.addAll( rule( bean , kind == RuleKind.MIXED ? mixed[ i % mixed.length ] : kind ) );
+        }
+        return result;
+    }
+
+    private static List<Rule> rule(int bean,RuleKind kind)
+    {
+        final String beanPath = "/beans/bean[@id='bean"+bean+"']";
+        switch( kind )
+        {
+            case REPLACE:
+                return XMLRewrite.wrap( new ReplaceRule[] { annotation( ReplaceRule.class , "xpath" , beanPath+"/property[@name='value']/@value" , "replacement" , "rewritten" ) } );
+            case REMOVE:
+                return XMLRewrite.wrap( new RemoveRule[] { annotation( RemoveRule.class , "xpath" , beanPath ) } );
+            case INSERT_ELEMENT:
+                return XMLRewrite.wrap( new InsertElementRule[] { annotation( InsertElementRule.class , "xpath" , beanPath , "insert" , "<property name=\"inserted\" value=\"true\"/>" ) } );
+            case INSERT_ATTRIBUTE:
+                return XMLRewrite.wrap( new InsertAttributeRule[] { annotation( InsertAttributeRule.class , "xpath" , beanPath , "name" , "lazy-init" , "value" , "true" ) } );
+            case DESCENDANT:
+                return XMLRewrite.wrap( new RemoveRule[] { annotation( RemoveRule.class , "xpath" , "//bean[@id='bean"+bean+"']" ) } );
+            default:
+                throw new IllegalArgumentException("Unhandled rule kind: "+kind);
+        }
+    }
+
+    /**
+     * Creates an annotation instance, attributes that are not given use the annotation's default values.
+     *
+     * @param type
+     * @param attributes attribute names and values, alternating
+     * @return
+     */
+    private static <T extends Annotation> T annotation(Class<T> type,Object... attributes)
+    {
+        final Map<String,Object> values = new HashMap<>();
+        for ( int i = 0 ; i < attributes.length ; i += 2 ) {
+            values.put( (String) attributes[i] , attributes[i+1] );
+        }
+        final Object proxy = Proxy.newProxyInstance( type.getClassLoader() , new Class<?>[] { type } , (instance,method,args) ->
+        {
+            switch( method.getName() )
+            {
+                case "annotationType": return type;
+                case "toString":       return "@"+type.getName()+values;
+                case "hashCode":       return values.hashCode();
+                case "equals":         return instance == args[0];
+                default:
+            }
+            final Method attribute = type.getMethod( method.getName() );
+            return values.containsKey( attribute.getName() ) ? values.get( attribute.getName() ) : attribute.getDefaultValue();
+        });
+        return type.cast( proxy );
+    }
+
+    /**
+     * Deletes all generated files.
+     *
+     * @throws IOException
+     */
+    public void delete() throws IOException
+    {
+        try ( Stream<Path> files = Files.walk( directory.toPath() ) ) {
+            files.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+        }
+    }
+}
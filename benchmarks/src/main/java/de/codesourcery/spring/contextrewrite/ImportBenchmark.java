@@ -0,0 +1,84 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * Measures loading a corpus and inlining all of its imports, without any rules and without serializing the result.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+public class ImportBenchmark
+{
+    @Param({"1000","10000"})
+    public int beanCount;
+
+    @Param({"1","2","3"})
+    public int importDepth;
+
+    @Param({"2","4","8"})
+    public int fanOut;
+
+    @Param({"false","true"})
+    public boolean parallelImports;
+
+    private Corpus corpus;
+    private Resource resource;
+    private RewriteConfig config;
+    private final XMLRewrite rewrite = new XMLRewrite();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        corpus = Corpus.generate( beanCount , importDepth , fanOut );
+        resource = new FileSystemResource( corpus.rootFile );
+        config = corpus.config( 0 , Corpus.RuleKind.MIXED );
+        config.setParallelImports( parallelImports );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public Resource expandImports() throws Exception {
+        return rewrite.filterResource( resource , config ); // DOM-based results are serialized lazily
+    }
+}
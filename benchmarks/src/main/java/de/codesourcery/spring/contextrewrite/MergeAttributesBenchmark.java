@@ -0,0 +1,95 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import de.codesourcery.spring.contextrewrite.XMLRewrite.RewriteContext;
+
+/**
+ * Measures merging the root element attributes (namespace declarations and schema locations) of an imported file
+ * into the importing file's root element.
+ *
+ * <p>Half of the imported file's namespaces are already declared by the importing file. Each invocation merges into a
+ * shallow copy of the importing file's root element, copying the element is part of the measurement.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+public class MergeAttributesBenchmark
+{
+    @Param({"4","16","64"})
+    public int namespaceCount;
+
+    private Document targetDocument;
+    private Node target;
+    private Node source;
+    private final RewriteContext context = new RewriteContext( false );
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        targetDocument = parse( rootElement( 0 , namespaceCount ) );
+        target = targetDocument.getDocumentElement();
+        source = parse( rootElement( namespaceCount / 2 , namespaceCount + namespaceCount / 2 ) ).getDocumentElement();
+    }
+
+    private static String rootElement(int firstNamespace,int lastNamespace)
+    {
+        final StringBuilder xml = new StringBuilder("<beans xmlns=\"http://www.springframework.org/schema/beans\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+        final StringBuilder schemaLocations = new StringBuilder("http://www.springframework.org/schema/beans http://www.springframework.org/schema/beans/spring-beans.xsd");
+        for ( int i = firstNamespace ; i < lastNamespace ; i++ )
+        {
+            xml.append(" xmlns:ns").append( i ).append("=\"http://ns").append( i ).append("\"");
+            schemaLocations.append(" http://ns").append( i ).append(" http://ns").append( i ).append("/ns").append( i ).append(".xsd");
+        }
+        return xml.append(" xsi:schemaLocation=\"").append( schemaLocations ).append("\"/>").toString();
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return XMLRewrite.parseXML( new ByteArrayInputStream( xml.getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+
+    @Benchmark
+    public Node mergeAttributes()
+    {
+        final Node copy = target.cloneNode( false );
+        XMLRewrite.mergeAttributes( source , copy , targetDocument , context );
+        return copy;
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.FileInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import de.codesourcery.spring.contextrewrite.Corpus.RuleKind;
+import de.codesourcery.spring.contextrewrite.XMLRewrite.RewriteContext;
+import de.codesourcery.spring.contextrewrite.XMLRewrite.Rule;
+
+/**
+ * Measures applying rules to an already parsed document.
+ *
+ * <p>Every invocation works on a fresh copy of the document, the copy is made outside of the measurement.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+public class RewriteXMLBenchmark
+{
+    @Param({"100","1000","10000","50000"})
+    public int beanCount;
+
+    @Param({"1","10","100"})
+    public int ruleCount;
+
+    @Param({"REPLACE","REMOVE","INSERT_ELEMENT","INSERT_ATTRIBUTE","DESCENDANT"})
+    public RuleKind ruleKind;
+
+    private Document source;
+    private Document document;
+    private List<Rule> rules;
+    private final XMLRewrite rewrite = new XMLRewrite();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        final Corpus corpus = Corpus.generate( beanCount , 0 , 0 );
+        try {
+            source = XMLRewrite.parseXML( new FileInputStream( corpus.rootFile ) );
+            rules = corpus.rules( ruleCount , ruleKind );
+        } finally {
+            corpus.delete();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void copyDocument() {
+        document = (Document) source.cloneNode( true );
+    }
+
+    @TearDown(Level.Invocation)
+    public void releaseDocument() {
+        document = null;
+    }
+
+    @Benchmark
+    public Document rewriteXML() throws Exception
+    {
+        rewrite.rewriteXML( document , rules , new RewriteContext( false ) , true , false );
+        return document;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.FileInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compares XPath evaluation with and without {@link CompiledXPath}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+public class XPathBenchmark
+{
+    @Param({"100","10000"})
+    public int beanCount;
+
+    @Param({"/beans/bean[@id='bean10']",
+            "/beans/bean[@id='bean20']/property[@name='value']/@value",
+            "/beans//import",
+            "//bean[@class='java.lang.StringBuilder']"})
+    public String expression;
+
+    private Document document;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        final Corpus corpus = Corpus.generate( beanCount , 0 , 0 );
+        try {
+            document = XMLRewrite.parseXML( new FileInputStream( corpus.rootFile ) );
+        } finally {
+            corpus.delete();
+        }
+    }
+
+    @Benchmark
+    public NodeList compiled() throws Exception {
+        return CompiledXPath.of( expression ).evaluate( document );
+    }
+
+    @Benchmark
+    public NodeList uncompiled() throws Exception {
+        return (NodeList) XPathFactory.newInstance().newXPath().compile( expression ).evaluate( document , XPathConstants.NODESET );
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite.maven;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Rewrites the Spring XML of all test classes using <code>ContextRewritingBootStrapper</code> and stores the result
+ * below the test classes directory, where the bootstrapper picks it up at runtime.
+ *
+ * <p>Test classes are loaded through an isolated class loader holding just the project's test classpath, so the
+ * precomputed XML is rewritten by exactly the same library and Spring versions the tests run with.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+@Mojo(name="precompute",defaultPhase=LifecyclePhase.PROCESS_TEST_CLASSES,requiresDependencyResolution=ResolutionScope.TEST,threadSafe=true)
+public class PrecomputeMojo extends AbstractMojo
+{
+    private static final String PRECOMPUTER_CLASS = "de.codesourcery.spring.contextrewrite.ContextPrecomputer";
+
+    @Parameter(defaultValue="${project}",readonly=true,required=true)
+    private MavenProject project;
+
+    @Parameter(defaultValue="${project.build.testOutputDirectory}",required=true)
+    private File testClassesDirectory;
+
+    /**
+     * Number of threads used to rewrite XML, defaults to the number of available processors.
+     */
+    @Parameter(property="contextrewrite.precompute.threads")
+    private int threads;
+
+    @Parameter(property="contextrewrite.precompute.skip",defaultValue="false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException
+    {
+        if ( skip || Boolean.getBoolean( "maven.test.skip" ) ) {
+            getLog().info("Skipping precomputation of rewritten XML");
+            return;
+        }
+        if ( ! testClassesDirectory.isDirectory() ) {
+            getLog().info("No test classes, nothing to precompute");
+            return;
+        }
+
+        final int threadCount = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        final Thread thread = Thread.currentThread();
+        final ClassLoader previous = thread.getContextClassLoader();
+        try ( URLClassLoader classLoader = new URLClassLoader( getTestClasspath() , ClassLoader.getSystemClassLoader().getParent() ) )
+        {
+            final Class<?> precomputer;
+            try {
+                precomputer = Class.forName( PRECOMPUTER_CLASS , true , classLoader );
+            }
+            catch(ClassNotFoundException e) {
+                getLog().warn("spring-test-contextrewrite is not on the test classpath (or too old), nothing to precompute");
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            thread.setContextClassLoader( classLoader );
+            final int count;
+            try 
+            {
+                // java.util.function.Consumer is shared with the isolated class loader
+                final Consumer<String> warnings = getLog()::warn;
+                final Method method = precomputer.getMethod( "precompute" , File.class , int.class , Consumer.class );
+                count = (Integer) method.invoke( null , testClassesDirectory , threadCount , warnings );
+            } 
+            catch(NoSuchMethodException e) 
+            {
+                // older versions report warnings on System.err
+                final Method method = precomputer.getMethod( "precompute" , File.class , int.class );
+                count = (Integer) method.invoke( null , testClassesDirectory , threadCount );
+            }
+            getLog().info("Precomputed "+count+" rewritten contexts in "+( System.currentTimeMillis() - start )+" ms");
+        }
+        catch(InvocationTargetException e) {
+            throw new MojoExecutionException("Failed to precompute rewritten XML: "+e.getCause().getMessage(), e.getCause() );
+        }
+        catch(Exception e) {
+            throw new MojoExecutionException("Failed to precompute rewritten XML: "+e.getMessage(), e );
+        }
+        finally {
+            thread.setContextClassLoader( previous );
+        }
+    }
+
+    private URL[] getTestClasspath() throws DependencyResolutionRequiredException, MalformedURLException
+    {
+        final List<URL> urls = new ArrayList<>();
+        for ( String element : project.getTestClasspathElements() ) {
+            urls.add( new File( element ).toURI().toURL() );
+        }
+        return urls.toArray( new URL[ urls.size() ] );
+    }
+}
@@ -23,66 +23,95 @@ import org.apache.commons.lang3.Validate;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ContextConfiguration;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertAttributeRule;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertElementRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.LazyInitRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.PruneRule;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.RemoveRule;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ReplaceRule;
 
 /**
- * Populates a <code>RewriteConfig</code> by gathering XML rewrite annotations from a class hierarchy. 
+ * Populates a <code>RewriteConfig</code> by gathering XML rewrite annotations from a class hierarchy.
+ * 
+ * <p>Results are memoized per class for the lifetime of the class, so a base class shared by many test classes
+ * only gets parsed once. All returned configurations are {@link RewriteConfig#freeze() frozen}, callers that need
+ * to change settings should create a new configuration with the parsed one as its parent.</p>
+ *
+ * <p>Memoized configurations hold strong references to the parsed class, its superclasses and their annotations
+ * (including any classes referenced by annotation attributes). They are stored through a <code>ClassValue</code>, so each one
+ * is only reachable from the class it was parsed for (which can only reference classes visible to its own class loader)
+ * and never keeps a test class loader alive on its own. A configuration returned by {@link #parse(Class)} does keep the
+ * class loader reachable for as long as the caller holds on to it, Spring's context cache does so for every cached context.</p>
  *
  * @author tobias.gierke@code-sourcery.de
  */
 public class AnnotationParser 
 {
+    private static final ClassValue<Optional<RewriteConfig>> CONFIGS = new ClassValue<Optional<RewriteConfig>>() 
+    {
+        @Override
+        protected Optional<RewriteConfig> computeValue(Class<?> type) {
+            return parseHierarchy( type );
+        }
+    };
+    
     /**
      * Parse rewrite annotations.
      * 
      * @param clazz class whose annotations should be parsed. This method will also parse parent classes and merge any rewriting annotations it encounters 
      *             according to the rules described in {@link RewriteConfig#getRules()}.
      *               
-     * @return rewriting configuration
+     * @return rewriting configuration, frozen
      * @throws NoSuchElementException if neither the input class nor any of its parents had a {@link ContextConfiguration} annotation.
      */
     public RewriteConfig parse(Class<?> clazz) throws NoSuchElementException
     {
         Validate.notNull(clazz, "clazz must not be NULL");
         
-        RewriteConfig first = null;
-        RewriteConfig previous = null;
-        Class<?> currentClass = clazz;
-        while ( currentClass != Object.class ) 
-        {
-            final Optional<ContextConfiguration> ctxConfiguration = Optional.ofNullable( currentClass.getAnnotation( ContextConfiguration.class ) );
-            
-            final RewriteConfig config = new RewriteConfig( currentClass );
-
-            if ( ctxConfiguration.isPresent() ) {
-                config.setContextPath( ctxConfiguration.get().value() );
-                config.setDebug( ctxConfiguration.get().debug() );
-                config.setDumpXML( ctxConfiguration.get().dumpRewrittenXML() );
-            }
-            
-            config.addRules( XMLRewrite.wrap( currentClass.getAnnotationsByType( ReplaceRule.class ) ) );
-            config.addRules( XMLRewrite.wrap( currentClass.getAnnotationsByType( RemoveRule.class ) ) );
-            config.addRules( XMLRewrite.wrap( currentClass.getAnnotationsByType( InsertElementRule.class ) ) );
-            config.addRules( XMLRewrite.wrap( currentClass.getAnnotationsByType( InsertAttributeRule.class ) ) );
-
-            if ( ctxConfiguration.isPresent() || config.hasRules() ) 
-            {
-                if ( previous != null ) 
-                {
-                    previous.setParent( config );
-                }
-                previous = config;
-
-                if ( first == null ) {
-                    first = config;
-                }                
-            }
-            currentClass = currentClass.getSuperclass();
-        }
-        if ( first == null ) {
+        final Optional<RewriteConfig> config = CONFIGS.get( clazz );
+        if ( ! config.isPresent() ) {
             throw new NoSuchElementException("Found no @"+ContextConfiguration.class.getName()+" annotation on "+clazz.getName()+" or any of its super classes");             
         }
-        return first;
+        return config.get();
+    }
+    
+    /**
+     * Returns the configuration for the nearest class in a hierarchy that has rewrite annotations.
+     * 
+     * @param clazz
+     * @return
+     */
+    private static Optional<RewriteConfig> parseHierarchy(Class<?> clazz) 
+    {
+        if ( clazz == Object.class || clazz.isInterface() || clazz.isPrimitive() || clazz.isArray() ) {
+            return Optional.empty();
+        }
+        final Optional<RewriteConfig> parent = clazz.getSuperclass() != null ? CONFIGS.get( clazz.getSuperclass() ) : Optional.empty();
+        
+        final Optional<ContextConfiguration> ctxConfiguration = Optional.ofNullable( clazz.getAnnotation( ContextConfiguration.class ) );
+        
+        final RewriteConfig config = new RewriteConfig( clazz );
+        
+        if ( ctxConfiguration.isPresent() ) {
+            config.setContextPaths( ctxConfiguration.get().value() );
+            config.setDebug( ctxConfiguration.get().debug() );
+            config.setDumpXML( ctxConfiguration.get().dumpRewrittenXML() );
+            config.setReparseXML( ctxConfiguration.get().reparseXML() );
+            config.setParallelImports( ctxConfiguration.get().parallelImports() );
+            config.setStreaming( ctxConfiguration.get().streaming() );
+            config.setValidateOnce( ctxConfiguration.get().validateOnce() );
+            config.setInheritedRulesFirst( ctxConfiguration.get().inheritedRulesFirst() );
+        }
+        
+        config.addRules( XMLRewrite.wrap( clazz.getAnnotationsByType( ReplaceRule.class ) , clazz ) );
+        config.addRules( XMLRewrite.wrap( clazz.getAnnotationsByType( RemoveRule.class ) , clazz ) );
+        config.addRules( XMLRewrite.wrap( clazz.getAnnotationsByType( InsertElementRule.class ) , clazz ) );
+        config.addRules( XMLRewrite.wrap( clazz.getAnnotationsByType( InsertAttributeRule.class ) , clazz ) );
+        config.addRules( XMLRewrite.wrap( clazz.getAnnotationsByType( LazyInitRule.class ) , clazz ) );
+        config.addRules( XMLRewrite.wrap( clazz.getAnnotationsByType( PruneRule.class ) , clazz ) );
+        
+        if ( ! ctxConfiguration.isPresent() && config.hasNoRules() ) {
+            return parent;
+        }
+        parent.ifPresent( config::setParent );
+        return Optional.of( config.freeze() );
     }
 }
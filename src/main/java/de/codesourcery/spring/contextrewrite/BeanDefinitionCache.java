@@ -0,0 +1,478 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.PropertyValue;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinitionHolder;
+import org.springframework.beans.factory.config.ConstructorArgumentValues;
+import org.springframework.beans.factory.config.ConstructorArgumentValues.ValueHolder;
+import org.springframework.beans.factory.config.TypedStringValue;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.beans.factory.support.ChildBeanDefinition;
+import org.springframework.beans.factory.support.GenericBeanDefinition;
+import org.springframework.beans.factory.support.ManagedArray;
+import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.support.ManagedMap;
+import org.springframework.beans.factory.support.ManagedProperties;
+import org.springframework.beans.factory.support.ManagedSet;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.core.env.Environment;
+
+/**
+ * In-memory LRU cache of the bean definitions Spring registered for some rewritten XML, shared by all test classes running in the same JVM.
+ *
+ * <p>When an application context with byte-identical XML needs to be loaded again (because of <code>@DirtiesContext</code> or because
+ * Spring's context cache evicted it), deep copies of the cached definitions get registered directly instead of parsing the XML and
+ * running all namespace handlers again. Copies are required because bean factory post-processors (placeholder resolution etc.)
+ * modify bean definitions in-place.</p>
+ *
+ * <p>Only bean definition types that can be copied faithfully are cached (generic, root and child bean definitions), XML that yields
+ * anything else (for example from <code>&lt;context:component-scan/&gt;</code>) is parsed every time. Side effects of namespace handlers
+ * other than registering bean definitions and aliases are not replayed, so callers should only use this cache for XML that does not use any
+ * namespace besides <code>spring-beans</code> (see {@link RewrittenResource#usesOnlyBeansNamespace()}).</p>
+ *
+ * <p>The process-wide instance returned by {@link #getInstance()} is disabled unless its size is configured through the 
+ * {@link #MAX_ENTRIES_PROPERTY} system property.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class BeanDefinitionCache
+{
+    /**
+     * System property holding the max. number of contexts the process-wide cache may hold bean definitions for.
+     */
+    public static final String MAX_ENTRIES_PROPERTY = "contextrewrite.beanDefinitionCache.maxEntries";
+
+    private static final BeanDefinitionCache INSTANCE = new BeanDefinitionCache( getMaxEntriesFromSystemProperties() );
+
+    private static final Set<Class<?>> COPYABLE_TYPES = new HashSet<>( Arrays.asList( GenericBeanDefinition.class , RootBeanDefinition.class , ChildBeanDefinition.class ) );
+
+    private final int maxEntries;
+
+    // guarded by 'this'
+    private final LinkedHashMap<String,Entry> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * Bean definitions and aliases registered by a single load, in registration order.
+     *
+     * <p>Never modified after creation and never handed out, so that it can safely be copied by multiple threads at once.</p>
+     */
+    private static final class Entry
+    {
+        public final Map<String,BeanDefinition> definitions;
+        public final Map<String,List<String>> aliases;
+        public final int count;
+
+        public Entry(Map<String,BeanDefinition> definitions, Map<String,List<String>> aliases, int count)
+        {
+            this.definitions = definitions;
+            this.aliases = aliases;
+            this.count = count;
+        }
+
+        public int registerCopies(BeanDefinitionRegistry registry)
+        {
+            for ( Map.Entry<String,BeanDefinition> entry : definitions.entrySet() ) {
+                registry.registerBeanDefinition( entry.getKey() , copy( entry.getValue() ) );
+            }
+            for ( Map.Entry<String,List<String>> entry : aliases.entrySet() )
+            {
+                for ( String alias : entry.getValue() ) {
+                    registry.registerAlias( entry.getKey() , alias );
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param maxEntries max. number of contexts this cache may hold bean definitions for, zero disables the cache
+     */
+    public BeanDefinitionCache(int maxEntries)
+    {
+        Validate.isTrue( maxEntries >= 0 , "maxEntries must be >= 0");
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+                return size() > BeanDefinitionCache.this.maxEntries;
+            }
+        };
+    }
+
+    private static int getMaxEntriesFromSystemProperties()
+    {
+        final String value = System.getProperty( MAX_ENTRIES_PROPERTY );
+        return StringUtils.isBlank( value ) ? 0 : Integer.parseInt( value.trim() );
+    }
+
+    /**
+     * Returns the process-wide cache instance.
+     *
+     * @return
+     */
+    public static BeanDefinitionCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cache key for some rewritten XML.
+     *
+     * <p>Besides the XML itself the key covers everything that influences parsing, namely whether the XML gets re-parsed
+     * and the profiles that decide which nested <code>&lt;beans/&gt;</code> elements are active.</p>
+     *
+     * @param xml the rewritten XML
+     * @param reparseXML see {@link RewriteConfig#isReparseXML()}
+     * @param environment the environment the XML gets parsed with
+     * @return
+     */
+    public static String key(byte[] xml,boolean reparseXML,Environment environment)
+    {
+        Validate.notNull(xml, "xml must not be NULL");
+        Validate.notNull(environment, "environment must not be NULL");
+        return Fingerprint.of( Fingerprint.of( xml ) , Boolean.toString( reparseXML ) ,
+                StringUtils.join( environment.getActiveProfiles() , ',' ) , StringUtils.join( environment.getDefaultProfiles() , ',' ) );
+    }
+
+    /**
+     * Registers bean definitions, either copies of cached ones or by invoking a loader.
+     *
+     * <p>On a cache miss, the loader gets invoked and everything it registered with the registry gets cached.</p>
+     *
+     * @param key cache key as returned by {@link #key(byte[], boolean, Environment)}
+     * @param registry registry to register bean definitions with
+     * @param loader loader that registers the bean definitions with the registry and returns their number
+     * @return number of bean definitions loaded
+     * @throws Exception
+     */
+    public int load(String key,BeanDefinitionRegistry registry,Callable<Integer> loader) throws Exception
+    {
+        Validate.notNull(key, "key must not be NULL");
+        Validate.notNull(registry, "registry must not be NULL");
+        Validate.notNull(loader, "loader must not be NULL");
+
+        if ( maxEntries == 0 ) {
+            return loader.call();
+        }
+
+        Entry entry;
+        synchronized( this )
+        {
+            entry = entries.get( key );
+            if ( entry != null ) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        if ( entry != null ) {
+            return entry.registerCopies( registry );
+        }
+
+        final Map<String,BeanDefinition> definitionsBefore = new HashMap<>();
+        for ( String name : registry.getBeanDefinitionNames() ) {
+            definitionsBefore.put( name , registry.getBeanDefinition( name ) );
+        }
+        final Map<String,List<String>> aliasesBefore = getAliases( registry );
+
+        final int count = loader.call();
+
+        final Map<String,BeanDefinition> definitions = new LinkedHashMap<>();
+        for ( String name : registry.getBeanDefinitionNames() )
+        {
+            final BeanDefinition definition = registry.getBeanDefinition( name );
+            if ( definitionsBefore.get( name ) != definition )
+            {
+                if ( ! isCopyable( definition ) ) {
+                    return count;
+                }
+                definitions.put( name , copy( definition ) );
+            }
+        }
+        final Map<String,List<String>> aliases = new LinkedHashMap<>();
+        for ( Map.Entry<String,List<String>> aliasesAfter : getAliases( registry ).entrySet() )
+        {
+            final List<String> added = new ArrayList<>( aliasesAfter.getValue() );
+            added.removeAll( aliasesBefore.getOrDefault( aliasesAfter.getKey() , Collections.emptyList() ) );
+            if ( ! added.isEmpty() ) {
+                aliases.put( aliasesAfter.getKey() , added );
+            }
+        }
+
+        entry = new Entry( definitions , aliases , count );
+        synchronized( this ) {
+            entries.put( key , entry );
+        }
+        return count;
+    }
+
+    private static Map<String,List<String>> getAliases(BeanDefinitionRegistry registry)
+    {
+        final Map<String,List<String>> result = new LinkedHashMap<>();
+        for ( String name : registry.getBeanDefinitionNames() )
+        {
+            final String[] aliases = registry.getAliases( name );
+            if ( aliases.length > 0 ) {
+                result.put( name , Arrays.asList( aliases ) );
+            }
+        }
+        return result;
+    }
+
+    private static boolean isCopyable(BeanDefinition definition)
+    {
+        if ( ! COPYABLE_TYPES.contains( definition.getClass() ) ) {
+            return false;
+        }
+        if ( definition instanceof RootBeanDefinition && ((RootBeanDefinition) definition).getDecoratedDefinition() != null ) {
+            return isCopyable( ((RootBeanDefinition) definition).getDecoratedDefinition().getBeanDefinition() );
+        }
+        for ( PropertyValue value : definition.getPropertyValues().getPropertyValueList() )
+        {
+            if ( ! isCopyable( value.getValue() ) ) {
+                return false;
+            }
+        }
+        for ( ValueHolder holder : definition.getConstructorArgumentValues().getIndexedArgumentValues().values() )
+        {
+            if ( ! isCopyable( holder.getValue() ) ) {
+                return false;
+            }
+        }
+        for ( ValueHolder holder : definition.getConstructorArgumentValues().getGenericArgumentValues() )
+        {
+            if ( ! isCopyable( holder.getValue() ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isCopyable(Object value)
+    {
+        if ( value instanceof BeanDefinitionHolder ) {
+            return isCopyable( ((BeanDefinitionHolder) value).getBeanDefinition() );
+        }
+        if ( value instanceof BeanDefinition ) {
+            return isCopyable( (BeanDefinition) value );
+        }
+        if ( value instanceof Map )
+        {
+            // plain collections are mutable but cannot be copied faithfully
+            if ( ! ( value instanceof ManagedMap || value instanceof ManagedProperties ) ) {
+                return false;
+            }
+            for ( Map.Entry<?,?> entry : ((Map<?,?>) value).entrySet() )
+            {
+                if ( ! isCopyable( entry.getKey() ) || ! isCopyable( entry.getValue() ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if ( value instanceof Collection )
+        {
+            if ( ! ( value instanceof ManagedList || value instanceof ManagedSet ) ) {
+                return false;
+            }
+            for ( Object element : (Collection<?>) value )
+            {
+                if ( ! isCopyable( element ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return ! ( value instanceof Object[] );
+    }
+
+    /**
+     * Returns a deep copy of a bean definition that {@link #isCopyable(BeanDefinition) can be copied}.
+     *
+     * @param definition
+     * @return
+     */
+    private static BeanDefinition copy(BeanDefinition definition)
+    {
+        final AbstractBeanDefinition result = ((AbstractBeanDefinition) definition).cloneBeanDefinition();
+
+        final MutablePropertyValues propertyValues = new MutablePropertyValues();
+        for ( PropertyValue value : definition.getPropertyValues().getPropertyValueList() ) {
+            propertyValues.addPropertyValue( new PropertyValue( value , copyValue( value.getValue() ) ) );
+        }
+        result.setPropertyValues( propertyValues );
+
+        final ConstructorArgumentValues original = definition.getConstructorArgumentValues();
+        final ConstructorArgumentValues arguments = new ConstructorArgumentValues();
+        for ( Map.Entry<Integer,ValueHolder> entry : original.getIndexedArgumentValues().entrySet() ) {
+            arguments.addIndexedArgumentValue( entry.getKey() , copy( entry.getValue() ) );
+        }
+        for ( ValueHolder holder : original.getGenericArgumentValues() ) {
+            arguments.addGenericArgumentValue( copy( holder ) );
+        }
+        result.setConstructorArgumentValues( arguments );
+
+        if ( result instanceof RootBeanDefinition && ((RootBeanDefinition) result).getDecoratedDefinition() != null ) {
+            final RootBeanDefinition root = (RootBeanDefinition) result;
+            root.setDecoratedDefinition( (BeanDefinitionHolder) copyValue( root.getDecoratedDefinition() ) );
+        }
+        return result;
+    }
+
+    private static ValueHolder copy(ValueHolder holder)
+    {
+        final ValueHolder result = holder.copy();
+        result.setValue( copyValue( holder.getValue() ) );
+        return result;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static Object copyValue(Object value)
+    {
+        if ( value instanceof BeanDefinitionHolder )
+        {
+            final BeanDefinitionHolder holder = (BeanDefinitionHolder) value;
+            return new BeanDefinitionHolder( copy( holder.getBeanDefinition() ) , holder.getBeanName() , holder.getAliases() );
+        }
+        if ( value instanceof BeanDefinition ) {
+            return copy( (BeanDefinition) value );
+        }
+        if ( value instanceof TypedStringValue )
+        {
+            final TypedStringValue original = (TypedStringValue) value;
+            final TypedStringValue result = new TypedStringValue( original.getValue() );
+            if ( original.hasTargetType() ) {
+                result.setTargetType( original.getTargetType() );
+            } else if ( original.getTargetTypeName() != null ) {
+                result.setTargetTypeName( original.getTargetTypeName() );
+            }
+            result.setSpecifiedTypeName( original.getSpecifiedTypeName() );
+            result.setSource( original.getSource() );
+            if ( original.isDynamic() ) {
+                result.setDynamic();
+            }
+            return result;
+        }
+        if ( value instanceof ManagedArray )
+        {
+            final ManagedArray original = (ManagedArray) value;
+            final ManagedArray result = new ManagedArray( original.getElementTypeName() , original.size() );
+            result.setSource( original.getSource() );
+            result.setMergeEnabled( original.isMergeEnabled() );
+            for ( Object element : original ) {
+                result.add( copyValue( element ) );
+            }
+            return result;
+        }
+        if ( value instanceof ManagedList )
+        {
+            final ManagedList original = (ManagedList) value;
+            final ManagedList result = new ManagedList( original.size() );
+            result.setElementTypeName( original.getElementTypeName() );
+            result.setSource( original.getSource() );
+            result.setMergeEnabled( original.isMergeEnabled() );
+            for ( Object element : original ) {
+                result.add( copyValue( element ) );
+            }
+            return result;
+        }
+        if ( value instanceof ManagedSet )
+        {
+            final ManagedSet original = (ManagedSet) value;
+            final ManagedSet result = new ManagedSet( original.size() );
+            result.setElementTypeName( original.getElementTypeName() );
+            result.setSource( original.getSource() );
+            result.setMergeEnabled( original.isMergeEnabled() );
+            for ( Object element : original ) {
+                result.add( copyValue( element ) );
+            }
+            return result;
+        }
+        if ( value instanceof ManagedMap )
+        {
+            final ManagedMap<?,?> original = (ManagedMap) value;
+            final ManagedMap result = new ManagedMap( original.size() );
+            result.setKeyTypeName( original.getKeyTypeName() );
+            result.setValueTypeName( original.getValueTypeName() );
+            result.setSource( original.getSource() );
+            result.setMergeEnabled( original.isMergeEnabled() );
+            for ( Map.Entry<?,?> entry : original.entrySet() ) {
+                result.put( copyValue( entry.getKey() ) , copyValue( entry.getValue() ) );
+            }
+            return result;
+        }
+        if ( value instanceof ManagedProperties )
+        {
+            final ManagedProperties original = (ManagedProperties) value;
+            final ManagedProperties result = new ManagedProperties();
+            result.setSource( original.getSource() );
+            result.setMergeEnabled( original.isMergeEnabled() );
+            for ( Map.Entry<Object,Object> entry : original.entrySet() ) {
+                result.put( copyValue( entry.getKey() ) , copyValue( entry.getValue() ) );
+            }
+            return result;
+        }
+        // everything else Spring's XML parsing produces (bean references, strings etc.) is immutable
+        return value;
+    }
+
+    /**
+     * Removes all entries from this cache.
+     *
+     * <p>Statistics are not reset.</p>
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+}
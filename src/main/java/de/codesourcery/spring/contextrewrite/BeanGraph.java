@@ -0,0 +1,327 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Dependency graph of the top-level beans in a (flattened) Spring XML document.
+ *
+ * <p>A bean depends on every bean referenced anywhere inside its definition, including inner beans: <code>ref</code>, <code>parent</code>,
+ * <code>factory-bean</code>, <code>depends-on</code>, <code>key-ref</code>/<code>value-ref</code>, <code>&lt;ref bean/local/parent&gt;</code>,
+ * <code>&lt;idref&gt;</code>, lookup/replaced methods and p-/c-namespace <code>*-ref</code> attributes. References through
+ * <code>&lt;alias&gt;</code> elements are resolved to the aliased bean.</p>
+ *
+ * <p>The following elements are always kept and treated as roots:</p>
+ * <ul>
+ * <li>beans whose class implements {@link BeanFactoryPostProcessor} or {@link BeanPostProcessor}</li>
+ * <li>beans whose class cannot be loaded</li>
+ * <li>custom namespace elements like <code>&lt;context:annotation-config/&gt;</code>, any of their attribute values matching a bean name is considered a reference</li>
+ * </ul>
+ *
+ * <p>Dependencies that are not declared in the XML (autowiring, <code>getBean()</code> lookups) are not visible and need to be declared as roots.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class BeanGraph
+{
+    private static final Set<String> REFERENCE_ATTRIBUTES = new HashSet<>( Arrays.asList(
+            "ref" , "parent" , "factory-bean" , "depends-on" , "key-ref" , "value-ref" , "bean" , "local" , "replacer" ) );
+
+    // same delimiters Spring uses for bean name aliases and depends-on
+    private static final String NAME_DELIMITERS = ",; ";
+
+    private final ClassLoader classLoader;
+
+    // top-level <bean> elements in document order
+    private final List<Node> beans = new ArrayList<>();
+    // top-level custom namespace elements
+    private final List<Node> others = new ArrayList<>();
+    // <alias> elements
+    private final List<Node> aliases = new ArrayList<>();
+    private final Map<String,Node> beansByName = new HashMap<>();
+
+    /**
+     * Beans that got pruned.
+     */
+    static final class Result
+    {
+        public final int beanCount;
+        public final List<String> prunedBeans;
+
+        private Result(int beanCount,List<String> prunedBeans)
+        {
+            this.beanCount = beanCount;
+            this.prunedBeans = prunedBeans;
+        }
+
+        @Override
+        public String toString()
+        {
+            final int shown = Math.min( 20 , prunedBeans.size() );
+            return "Pruned "+prunedBeans.size()+" of "+beanCount+" beans"+( shown == 0 ? "" : ": "+
+                    String.join(", ", prunedBeans.subList( 0 , shown ) )+( shown < prunedBeans.size() ? ", ..." : "" ) );
+        }
+    }
+
+    /**
+     * Create graph.
+     *
+     * @param document
+     * @param classLoader class loader used to load bean classes
+     */
+    public BeanGraph(Document document,ClassLoader classLoader)
+    {
+        Validate.notNull(document, "document must not be NULL");
+        Validate.notNull(classLoader, "classLoader must not be NULL");
+        this.classLoader = classLoader;
+        collect( document.getDocumentElement() );
+
+        for ( Node bean : beans ) {
+            names( bean ).forEach( name -> beansByName.putIfAbsent( name , bean ) );
+        }
+        // aliases may be chained and declared before the aliased bean
+        boolean changed = true;
+        while ( changed )
+        {
+            changed = false;
+            for ( Node alias : aliases )
+            {
+                final Node bean = beansByName.get( attribute( alias , "name" ) );
+                final String aliasName = attribute( alias , "alias" );
+                if ( bean != null && aliasName != null && ! beansByName.containsKey( aliasName ) ) {
+                    beansByName.put( aliasName , bean );
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private void collect(Node parent)
+    {
+        final NodeList children = parent.getChildNodes();
+        for ( int i = 0 , len = children.getLength() ; i < len ; i++ )
+        {
+            final Node child = children.item( i );
+            if ( child.getNodeType() != Node.ELEMENT_NODE ) {
+                continue;
+            }
+            switch( localName( child ) )
+            {
+                case "beans":
+                    collect( child );
+                    break;
+                case "bean":
+                    beans.add( child );
+                    break;
+                case "alias":
+                    aliases.add( child );
+                    break;
+                case "description":
+                    break;
+                default:
+                    others.add( child );
+            }
+        }
+    }
+
+    /**
+     * Removes all beans that are not reachable from the given roots.
+     *
+     * @param rootNames IDs, names or aliases of root beans
+     * @param rootTypes beans whose class is assignable to any of these types are roots as well
+     * @param debug receives debug output
+     * @return
+     * @throws IllegalArgumentException if one of the root beans does not exist
+     */
+    public Result prune(Collection<String> rootNames,Collection<Class<?>> rootTypes,Consumer<String> debug) throws IllegalArgumentException
+    {
+        final Set<Node> reachable = Collections.newSetFromMap( new IdentityHashMap<>() );
+        final Deque<Node> queue = new ArrayDeque<>();
+
+        final Consumer<Node> visit = node ->
+        {
+            if ( reachable.add( node ) ) {
+                queue.add( node );
+            }
+        };
+
+        for ( String name : rootNames )
+        {
+            final Node bean = beansByName.get( name );
+            if ( bean == null ) {
+                throw new IllegalArgumentException("Root bean '"+name+"' does not exist");
+            }
+            visit.accept( bean );
+        }
+        for ( Node bean : beans )
+        {
+            final String className = attribute( bean , "class" );
+            if ( className == null ) {
+                continue;
+            }
+            final Optional<Class<?>> clazz = loadClass( className );
+            if ( ! clazz.isPresent() ) {
+                debug.accept("Keeping bean "+describe( bean )+", class not found: "+className );
+                visit.accept( bean );
+            }
+            else if ( BeanFactoryPostProcessor.class.isAssignableFrom( clazz.get() ) || BeanPostProcessor.class.isAssignableFrom( clazz.get() ) ) {
+                visit.accept( bean );
+            }
+            else if ( rootTypes.stream().anyMatch( type -> type.isAssignableFrom( clazz.get() ) ) ) {
+                visit.accept( bean );
+            }
+        }
+        for ( Node other : others ) {
+            queue.add( other );
+        }
+
+        while ( ! queue.isEmpty() )
+        {
+            final Node node = queue.remove();
+            final boolean strict = "bean".equals( localName( node ) );
+            forEachReference( node , strict , name ->
+            {
+                final Node bean = beansByName.get( name );
+                if ( bean != null ) {
+                    visit.accept( bean );
+                }
+            });
+        }
+
+        final List<String> pruned = new ArrayList<>();
+        for ( Node bean : beans )
+        {
+            if ( ! reachable.contains( bean ) )
+            {
+                pruned.add( describe( bean ) );
+                bean.getParentNode().removeChild( bean );
+            }
+        }
+        for ( Node alias : aliases )
+        {
+            final Node bean = beansByName.get( attribute( alias , "name" ) );
+            if ( bean != null && ! reachable.contains( bean ) ) {
+                alias.getParentNode().removeChild( alias );
+            }
+        }
+        return new Result( beans.size() , pruned );
+    }
+
+    /**
+     * Invokes a consumer with all bean names referenced by an element or any of its descendants.
+     *
+     * @param node
+     * @param strict whether to consider only reference attributes or all attribute values
+     * @param consumer
+     */
+    private static void forEachReference(Node node,boolean strict,Consumer<String> consumer)
+    {
+        final NamedNodeMap attributes = node.getAttributes();
+        for ( int i = 0 , len = attributes.getLength() ; i < len ; i++ )
+        {
+            final Node attribute = attributes.item( i );
+            final String name = localName( attribute );
+            if ( ! strict || REFERENCE_ATTRIBUTES.contains( name ) || name.endsWith("-ref") )
+            {
+                for ( String value : StringUtils.split( attribute.getNodeValue() , NAME_DELIMITERS ) ) {
+                    consumer.accept( value );
+                }
+            }
+        }
+        final NodeList children = node.getChildNodes();
+        for ( int i = 0 , len = children.getLength() ; i < len ; i++ )
+        {
+            final Node child = children.item( i );
+            if ( child.getNodeType() == Node.ELEMENT_NODE ) {
+                forEachReference( child , strict , consumer );
+            }
+        }
+    }
+
+    private Optional<Class<?>> loadClass(String className)
+    {
+        try {
+            return Optional.of( Class.forName( className.trim() , false , classLoader ) );
+        }
+        catch(ClassNotFoundException | LinkageError e) {
+            return Optional.empty();
+        }
+    }
+
+    private static List<String> names(Node bean)
+    {
+        final List<String> result = new ArrayList<>();
+        final String id = attribute( bean , "id" );
+        if ( id != null ) {
+            result.add( id );
+        }
+        final String name = attribute( bean , "name" );
+        if ( name != null ) {
+            result.addAll( Arrays.asList( StringUtils.split( name , NAME_DELIMITERS ) ) );
+        }
+        return result;
+    }
+
+    private static String describe(Node bean)
+    {
+        final List<String> names = names( bean );
+        if ( ! names.isEmpty() ) {
+            return names.get(0);
+        }
+        final String className = attribute( bean , "class" );
+        return "<anonymous "+( className != null ? className : "bean" )+">";
+    }
+
+    private static String attribute(Node element,String name)
+    {
+        final Node attribute = element.getAttributes().getNamedItem( name );
+        return attribute == null ? null : attribute.getNodeValue();
+    }
+
+    private static String localName(Node node) 
+    {
+        final String qualifiedName = node.getNodeName();
+        return qualifiedName.substring( qualifiedName.indexOf( ':' ) + 1 );
+    }
+
+    @Override
+    public String toString() {
+        return "BeanGraph[ beans: "+beans.size()+", aliases: "+aliases.size()+", other elements: "+others.size()+" ]";
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import javax.xml.xpath.XPathExpressionException;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import de.codesourcery.spring.contextrewrite.SimplePath.Step;
+import de.codesourcery.spring.contextrewrite.XMLRewrite.Rule;
+
+/**
+ * Index of the root element's children by <code>id</code> attribute, <code>name</code> attribute and element name.
+ *
+ * <p>Rules whose XPath expression starts with a selector like <code>/beans/bean[@id='x']</code> get resolved by looking up
+ * candidate elements in the index and then evaluating the remainder of the expression relative to each candidate, instead
+ * of scanning the whole document. The index only considers the root element's children, so it gets rebuilt (lazily)
+ * only when a rule modifies the root element, one of its children or one of their attributes.</p>
+ *
+ * <p>The index is used for XPath expressions from the subset described in {@link SimplePath}, all other
+ * expressions are evaluated against the whole document.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class BeanIndex
+{
+    private final Document document;
+
+    // NULL if the index needs to be (re-)built
+    private Map<String,List<Node>> index;
+
+    /**
+     * How to resolve an XPath expression through the index.
+     */
+    static final class Lookup
+    {
+        /**
+         * Index key of candidate elements.
+         */
+        public final String key;
+        /**
+         * Expression to evaluate relative to each candidate element.
+         */
+        public final CompiledXPath relativeXPath;
+
+        private Lookup(String key,CompiledXPath relativeXPath)
+        {
+            this.key = key;
+            this.relativeXPath = relativeXPath;
+        }
+
+        @Override
+        public String toString() {
+            return key+" -> "+relativeXPath;
+        }
+    }
+
+    public BeanIndex(Document document) {
+        this.document = document;
+    }
+
+    /**
+     * Returns how to resolve an XPath expression using the index.
+     *
+     * @param xpath
+     * @return lookup or an empty optional if the expression cannot be resolved through the index
+     */
+    public static Optional<Lookup> lookupFor(String xpath)
+    {
+        final Optional<SimplePath> parsed = SimplePath.parse( xpath );
+        if ( ! parsed.isPresent() || parsed.get().depth() < 2 ) {
+            return Optional.empty();
+        }
+        final SimplePath path = parsed.get();
+        final Step root = path.steps.get(0);
+        final Step child = path.steps.get(1);
+
+        final String key;
+        if ( child.predicates.containsKey( "id" ) ) {
+            key = attributeKey( "id" , child.predicates.get( "id" ) );
+        } else if ( child.predicates.containsKey( "name" ) ) {
+            key = attributeKey( "name" , child.predicates.get( "name" ) );
+        } else if ( ! child.isWildcard() ) {
+            key = elementKey( child.name );
+        } else {
+            return Optional.empty();
+        }
+
+        // candidates are a super-set of the actual matches, let XPath sort it out
+        final StringBuilder relative = new StringBuilder("self::").append( child ).append("[parent::").append( root ).append("]");
+        path.steps.stream().skip( 2 ).forEach( step -> relative.append('/').append( step ) );
+        if ( path.isAttributePath() ) {
+            relative.append("/@").append( path.attribute );
+        }
+        return Optional.of( new Lookup( key , CompiledXPath.of( relative.toString() ) ) );
+    }
+
+    /**
+     * Evaluates a rule's XPath expression.
+     *
+     * @param rule
+     * @return matched nodes in document order
+     * @throws XPathExpressionException
+     */
+    public List<Node> evaluate(Rule rule) throws XPathExpressionException
+    {
+        if ( ! rule.indexLookup.isPresent() ) {
+            return toList( rule.compiledXPath.evaluate( document ) );
+        }
+        final Lookup lookup = rule.indexLookup.get();
+        final List<Node> result = new ArrayList<>();
+        for ( Node candidate : index().getOrDefault( lookup.key , Collections.emptyList() ) ) {
+            result.addAll( toList( lookup.relativeXPath.evaluate( candidate ) ) );
+        }
+        return result;
+    }
+
+    /**
+     * Must be invoked before a node gets modified, replaced or removed.
+     *
+     * @param node
+     */
+    public void beforeModification(Node node)
+    {
+        if ( index == null ) {
+            return;
+        }
+        final Node element = node.getNodeType() == Node.ATTRIBUTE_NODE ? ((Attr) node).getOwnerElement() : node;
+        final Node root = document.getDocumentElement();
+        if ( element == null || element == root || element.getParentNode() == root ) {
+            index = null;
+        }
+    }
+
+    private Map<String,List<Node>> index()
+    {
+        if ( index == null )
+        {
+            index = new HashMap<>();
+            final Node root = document.getDocumentElement();
+            final NodeList children = root == null ? null : root.getChildNodes();
+            for ( int i = 0 , len = children == null ? 0 : children.getLength() ; i < len ; i++ )
+            {
+                final Node child = children.item( i );
+                if ( child.getNodeType() != Node.ELEMENT_NODE ) {
+                    continue;
+                }
+                add( elementKey( localName( child.getNodeName() ) ) , child );
+                final NamedNodeMap attributes = child.getAttributes();
+                for ( int j = 0 , count = attributes.getLength() ; j < count ; j++ )
+                {
+                    final Node attribute = attributes.item( j );
+                    final String name = localName( attribute.getNodeName() );
+                    if ( "id".equals( name ) || "name".equals( name ) ) {
+                        add( attributeKey( name , attribute.getNodeValue() ) , child );
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    private void add(String key,Node node)
+    {
+        final List<Node> nodes = index.computeIfAbsent( key , k -> new ArrayList<>(1) );
+        // an element might have both a prefixed and an unprefixed attribute with the same local name
+        if ( nodes.isEmpty() || nodes.get( nodes.size() - 1 ) != node ) {
+            nodes.add( node );
+        }
+    }
+
+    private static String localName(String qualifiedName) {
+        return qualifiedName.substring( qualifiedName.indexOf( ':' ) + 1 );
+    }
+
+    private static String elementKey(String name) {
+        return "<"+name;
+    }
+
+    private static String attributeKey(String name,String value) {
+        return "@"+name+"="+value;
+    }
+
+    private static List<Node> toList(NodeList list)
+    {
+        final List<Node> result = new ArrayList<>( list.getLength() );
+        for ( int i = 0 , len = list.getLength() ; i < len ; i++ ) {
+            result.add( list.item( i ) );
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return index == null ? "<not built>" : index.entrySet().stream().map( e -> e.getKey()+" ("+e.getValue().size()+")" ).collect( Collectors.joining(",") );
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A pre-compiled XPath expression.
+ *
+ * <p>Instances are cached process-wide, keyed by expression string, so all rules sharing the same
+ * XPath also share the same instance. JAXP's <code>XPathExpression</code> is not thread-safe, so every
+ * thread compiles its own copy on first use and keeps re-using it afterwards.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class CompiledXPath
+{
+    private static final ConcurrentMap<String,CompiledXPath> CACHE = new ConcurrentHashMap<>();
+
+    public final String expression;
+
+    private final ThreadLocal<XPathExpression> compiled = new ThreadLocal<>();
+
+    private CompiledXPath(String expression) throws XPathExpressionException
+    {
+        this.expression = expression;
+        // compile eagerly so that syntax errors are reported right away
+        this.compiled.set( compile( expression ) );
+    }
+
+    /**
+     * Returns the compiled form of an XPath expression, compiling it if necessary.
+     *
+     * @param expression XPath expression, never <code>null</code> or blank
+     * @return compiled expression
+     * @throws IllegalArgumentException if the expression is blank or not a valid XPath expression
+     */
+    public static CompiledXPath of(String expression) throws IllegalArgumentException
+    {
+        if ( StringUtils.isBlank( expression ) ) {
+            throw new IllegalArgumentException("xpath expression must not be NULL/blank");
+        }
+        final CompiledXPath existing = CACHE.get( expression );
+        if ( existing != null ) {
+            return existing;
+        }
+        final CompiledXPath result;
+        try {
+            result = new CompiledXPath( expression );
+        }
+        catch (XPathExpressionException e) {
+            throw new IllegalArgumentException("Invalid XPath expression: "+expression,e);
+        }
+        final CompiledXPath previous = CACHE.putIfAbsent( expression , result );
+        return previous != null ? previous : result;
+    }
+
+    /**
+     * Evaluates this expression against a node.
+     *
+     * @param node context node
+     * @return matched nodes
+     * @throws XPathExpressionException
+     */
+    public NodeList evaluate(Node node) throws XPathExpressionException
+    {
+        XPathExpression expr = compiled.get();
+        if ( expr == null ) {
+            expr = compile( expression );
+            compiled.set( expr );
+        }
+        return (NodeList) expr.evaluate( node , XPathConstants.NODESET );
+    }
+
+    private static XPathExpression compile(String expression) throws XPathExpressionException {
+        return JAXPResources.xpath().compile( expression );
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Modifier;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.Validate;
+
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ContextConfiguration;
+
+/**
+ * Rewrites the XML of all test classes at build time, so tests do not need to do it at runtime.
+ *
+ * <p>The rewritten XML gets written to {@link #DIRECTORY} below the test classes directory, using the same entry format as
+ * {@link DiskCache}. A manifest lists the fingerprint of each test class's rules. At runtime, {@link #find(ClassLoader)} locates
+ * the precomputed entries on the classpath. An entry is only used if its rules fingerprint and the content hashes of all
+ * source files still match, otherwise the XML gets rewritten on the fly as usual.</p>
+ *
+ * <p>Usually invoked by the <code>spring-test-contextrewrite-maven-plugin</code> through {@link #precompute(File, int, Consumer)}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class ContextPrecomputer
+{
+    /**
+     * Classpath location of precomputed entries.
+     */
+    public static final String DIRECTORY = "META-INF/contextrewrite";
+
+    /**
+     * Classpath location of the manifest, mapping test class names to rules fingerprints.
+     */
+    public static final String MANIFEST = DIRECTORY+"/manifest.properties";
+
+    private ContextPrecomputer() {
+    }
+
+    /**
+     * Looks up precomputed entries on the classpath.
+     *
+     * @param classLoader
+     * @return cache holding the precomputed entries or an empty optional if there are none or they are not stored in a directory
+     */
+    public static Optional<DiskCache> find(ClassLoader classLoader)
+    {
+        Validate.notNull(classLoader, "classLoader must not be NULL");
+        final URL manifest = classLoader.getResource( MANIFEST );
+        if ( manifest == null || ! "file".equals( manifest.getProtocol() ) ) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of( new DiskCache( new File( manifest.toURI() ).getParentFile() , Long.MAX_VALUE ) );
+        } catch(URISyntaxException | IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Rewrites the XML of all test classes found in a directory, reporting test classes whose XML cannot be rewritten on <code>System.err</code>.
+     *
+     * @param classesDirectory
+     * @param threads
+     * @return number of distinct rewritten contexts
+     * @throws IOException
+     * @throws InterruptedException
+     * @see #precompute(File, int, Consumer)
+     */
+    public static int precompute(File classesDirectory,int threads) throws IOException, InterruptedException
+    {
+        return precompute( classesDirectory , threads , message -> System.err.println("WARNING: "+message) );
+    }
+
+    /**
+     * Rewrites the XML of all test classes found in a directory, using the thread's context class loader to load them.
+     *
+     * <p>Any entries from previous runs get deleted. Test classes whose XML cannot be rewritten are reported to the given warning sink and skipped.
+     * If the directory holds a {@link RuleIndex}, only indexed classes are considered and only one class per distinct index fingerprint gets loaded.</p>
+     *
+     * @param classesDirectory directory holding compiled test classes, entries get written to {@link #DIRECTORY} below it
+     * @param threads number of threads used to rewrite XML
+     * @param warnings receives warnings, only invoked by the calling thread
+     * @return number of distinct rewritten contexts
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static int precompute(File classesDirectory,int threads,Consumer<String> warnings) throws IOException, InterruptedException
+    {
+        Validate.notNull(classesDirectory, "classesDirectory must not be NULL");
+        Validate.isTrue( threads > 0 , "threads must be > 0");
+        Validate.notNull(warnings, "warnings must not be NULL");
+
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        final ClassLoader classLoader = contextClassLoader != null ? contextClassLoader : ContextPrecomputer.class.getClassLoader();
+
+        final File directory = new File( classesDirectory , DIRECTORY );
+        if ( directory.exists() ) {
+            try ( Stream<Path> files = Files.list( directory.toPath() ) ) {
+                for ( Path file : files.collect( Collectors.toList() ) ) {
+                    Files.delete( file );
+                }
+            }
+        }
+        Files.createDirectories( directory.toPath() );
+
+        final AnnotationParser parser = new AnnotationParser();
+        final Map<String,String> manifest = new TreeMap<>();
+        // test classes with the same context path and rules only need to be rewritten once
+        final Map<String,RewriteConfig> configs = new LinkedHashMap<>();
+        final Map<String,String> classNames = new LinkedHashMap<>();
+        for ( List<String> group : findTestClasses( classesDirectory ) )
+        {
+            for ( String className : group )
+            {
+                final Optional<Class<?>> clazz = loadTestClass( className , classLoader );
+                if ( clazz.isPresent() )
+                {
+                    final RewriteConfig config = parser.parse( clazz.get() );
+                    final String fingerprint = config.getContextPath()+"|"+config.getRulesFingerprint();
+                    configs.putIfAbsent( fingerprint+"|"+config.isStreaming() , config );
+                    classNames.putIfAbsent( fingerprint+"|"+config.isStreaming() , className );
+                    group.forEach( name -> manifest.put( name , fingerprint ) );
+                    break;
+                }
+            }
+        }
+
+        final XMLRewrite rewrite = new XMLRewrite();
+        rewrite.setDiskCache( new DiskCache( directory , Long.MAX_VALUE ) );
+        rewrite.setDocumentCache( new SourceDocumentCache( SourceDocumentCache.DEFAULT_MAX_ENTRIES ) );
+        rewrite.setSnapshotCache( new SnapshotCache( SnapshotCache.DEFAULT_MAX_SIZE ) );
+
+        final ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
+        {
+            // failures are reported by the calling thread, warning sinks need not be thread-safe
+            final List<Future<Optional<String>>> results = new ArrayList<>();
+            for ( Map.Entry<String,RewriteConfig> entry : configs.entrySet() )
+            {
+                final RewriteConfig config = entry.getValue();
+                results.add( executor.submit( () ->
+                {
+                    Thread.currentThread().setContextClassLoader( classLoader );
+                    try {
+                        rewrite.filterResources( config.getResources() , config );
+                        return Optional.<String>empty();
+                    }
+                    catch(Exception e) {
+                        return Optional.of( "Failed to rewrite XML for "+classNames.get( entry.getKey() )+", will be rewritten at runtime: "+e.getMessage() );
+                    }
+                }));
+            }
+            int count = 0;
+            for ( Future<Optional<String>> result : results )
+            {
+                try 
+                {
+                    final Optional<String> failure = result.get();
+                    if ( failure.isPresent() ) {
+                        warnings.accept( failure.get() );
+                    } else {
+                        count++;
+                    }
+                }
+                catch(ExecutionException e) {
+                    throw new RuntimeException( e.getCause() );
+                }
+            }
+            writeManifest( new File( classesDirectory , MANIFEST ) , manifest );
+            return count;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns groups of test classes that share the same rewrite configuration.
+     * 
+     * <p>If the classes were compiled with {@link RewriteAnnotationProcessor}, classes are taken from its {@link RuleIndex} and grouped 
+     * by fingerprint, so only one class per group needs to be loaded. Otherwise all classes are candidates, each in its own group.</p>
+     */
+    private static List<List<String>> findTestClasses(File classesDirectory) throws IOException
+    {
+        final List<RuleIndex.Entry> index = RuleIndex.read( classesDirectory );
+        if ( index.isEmpty() ) {
+            return findClassNames( classesDirectory ).stream().map( Collections::singletonList ).collect( Collectors.toList() );
+        }
+        final Map<String,List<String>> groups = new LinkedHashMap<>();
+        for ( RuleIndex.Entry entry : index ) {
+            groups.computeIfAbsent( entry.fingerprint , key -> new ArrayList<>() ).add( entry.className );
+        }
+        return new ArrayList<>( groups.values() );
+    }
+
+    private static List<String> findClassNames(File classesDirectory) throws IOException
+    {
+        final Path root = classesDirectory.toPath();
+        if ( ! Files.isDirectory( root ) ) {
+            return new ArrayList<>();
+        }
+        try ( Stream<Path> files = Files.walk( root ) )
+        {
+            return files.map( root::relativize ).map( Path::toString )
+                    .filter( name -> name.endsWith(".class") && ! name.contains("-") )
+                    .map( name -> name.substring( 0 , name.length() - ".class".length() ).replace( File.separatorChar , '.' ) )
+                    .sorted().collect( Collectors.toList() );
+        }
+    }
+
+    /**
+     * Loads a class if it is a concrete class using XML rewriting.
+     */
+    private static Optional<Class<?>> loadTestClass(String className,ClassLoader classLoader)
+    {
+        final Class<?> clazz;
+        try {
+            clazz = Class.forName( className , false , classLoader );
+        }
+        catch(ClassNotFoundException | LinkageError e) {
+            return Optional.empty();
+        }
+        if ( clazz.isInterface() || clazz.isAnnotation() || Modifier.isAbstract( clazz.getModifiers() ) ) {
+            return Optional.empty();
+        }
+        for ( Class<?> current = clazz ; current != null ; current = current.getSuperclass() )
+        {
+            if ( current.isAnnotationPresent( ContextConfiguration.class ) ) {
+                return Optional.of( clazz );
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static void writeManifest(File file,Map<String,String> manifest) throws IOException
+    {
+        final Properties properties = new Properties();
+        properties.putAll( manifest );
+        try ( OutputStream out = Files.newOutputStream( file.toPath() ) ) {
+            properties.store( out , "test class = context path|rules fingerprint" );
+        }
+    }
+}
@@ -21,9 +21,14 @@ import java.lang.annotation.Repeatable;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
 import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
 import org.springframework.beans.factory.BeanDefinitionStoreException;
 import org.springframework.beans.factory.support.BeanDefinitionReader;
 import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
@@ -39,8 +44,11 @@ import org.springframework.test.context.MergedContextConfiguration;
 import org.springframework.test.context.TestContextBootstrapper;
 import org.springframework.test.context.support.AbstractGenericContextLoader;
 import org.springframework.test.context.support.DefaultTestContextBootstrapper;
+import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 
+import de.codesourcery.spring.contextrewrite.RewriteListener.Phase;
+
 /**
  * Spring {@link TestContextBootstrapper} that provides annotation support for rewriting the Spring XML using XPath expressions.
  *
@@ -73,9 +81,57 @@ public class ContextRewritingBootStrapper extends DefaultTestContextBootstrapper
     @Retention(RetentionPolicy.RUNTIME)
     public static @interface ContextConfiguration
     {
-        public String value();
+        /**
+         * Locations of the XML files to rewrite, either on the classpath (optionally prefixed with <code>classpath:</code>) 
+         * or on the file system (prefixed with <code>file:</code>).
+         *
+         * <p>All rules are applied to every location and only need to match in one of them. Locations are loaded and rewritten 
+         * concurrently, their bean definitions get registered in the given order.</p>
+         */
+        public String[] value();
         public boolean dumpRewrittenXML() default false;
         public boolean debug() default false;
+        /**
+         * Whether the rewritten XML should be serialized and handed to Spring for re-parsing (default)
+         * or whether the rewritten DOM should be registered directly.
+         *
+         * <p>Registering the DOM directly saves a full serialize/parse cycle but skips Spring's XSD validation. Only the default
+         * attribute values from <code>spring-beans.xsd</code> are known, so XML that uses any other namespace is always re-parsed.</p>
+         */
+        public boolean reparseXML() default true;
+        /**
+         * Whether imported XML files should be loaded, parsed and rewritten concurrently.
+         *
+         * <p>The rewritten XML is the same as when loading imports sequentially.</p>
+         */
+        public boolean parallelImports() default false;
+        /**
+         * Whether XML should be rewritten in a single streaming pass instead of building a DOM.
+         *
+         * <p>Only rules using simple, absolute XPath expressions like <code>/beans/bean[@id='x']/property/@value</code> 
+         * can be streamed, rewriting automatically falls back to using a DOM for all other rules.</p>
+         */
+        public boolean streaming() default false;
+        /**
+         * Whether Spring's XSD validation should only be performed the first time some rewritten XML gets loaded.
+         *
+         * <p>Later loads of byte-identical XML skip validation and get registered the same way as with <code>reparseXML=false</code>. 
+         * Validated XML is remembered for the lifetime of the JVM or,
+         * if a disk cache is configured, across JVMs. Has no effect if <code>reparseXML=false</code> or if the XML uses any namespace
+         * besides <code>spring-beans</code>, since default attribute values from other XSDs would get lost.</p>
+         *
+         * @see ValidationCache
+         */
+        public boolean validateOnce() default false;
+        /**
+         * Whether rules inherited from super classes should be applied before the rules declared on the class itself.
+         *
+         * <p>By default, a class's own rules are applied first. Applying inherited rules first lets test classes with a
+         * common base class re-use the XML rewritten by the base class rules.</p>
+         *
+         * @see SnapshotCache
+         */
+        public boolean inheritedRulesFirst() default false;
     }
 
     /*
@@ -163,12 +219,99 @@ public class ContextRewritingBootStrapper extends DefaultTestContextBootstrapper
         public String value();
     }
 
+    /*
+     * LAZY INIT
+     */
+
+    /**
+     * Makes all singletons lazy-init by setting <code>default-lazy-init="true"</code> on every <code>&lt;beans&gt;</code> element,
+     * including those of imported files and nested <code>&lt;beans&gt;</code> elements.
+     */
+    @Target(value={ElementType.TYPE})
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface LazyInitRule
+    {
+        public String id() default NULL_STRING; // annotations cannot have NULL as default value ... god knows why...
+        /**
+         * Whether to also set <code>lazy-init="true"</code> on every top-level bean, overriding beans that
+         * explicitly declare <code>lazy-init="false"</code>.
+         */
+        public boolean beans() default false;
+        /**
+         * IDs or names of beans that should get <code>lazy-init="false"</code>.
+         */
+        public String[] eager() default {};
+    }
+
+    /*
+     * PRUNE
+     */
+
+    /**
+     * Removes all beans that are not reachable from the given root beans, after all imports have been inlined
+     * and all other rules have been applied.
+     * 
+     * <p>Beans implementing <code>BeanFactoryPostProcessor</code> or <code>BeanPostProcessor</code>, custom namespace elements 
+     * (like <code>&lt;context:annotation-config/&gt;</code>) and aliases of kept beans are always kept. Dependencies 
+     * that are not declared in the XML (autowiring,<code>getBean()</code> lookups) need to be declared as roots.</p>
+     */
+    @Target(value={ElementType.TYPE})
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface PruneRule
+    {
+        public String id() default NULL_STRING; // annotations cannot have NULL as default value ... god knows why...
+        /**
+         * IDs, names or aliases of root beans.
+         */
+        public String[] roots() default {};
+        /**
+         * Beans whose class is assignable to any of these types are roots as well.
+         */
+        public Class<?>[] rootTypes() default {};
+    }
+
+    /**
+     * Listeners shared by all test classes, created on first use.
+     */
+    private static final class Listeners
+    {
+        public static final List<RewriteListener> INSTANCE = load();
+
+        private static List<RewriteListener> load()
+        {
+            final List<RewriteListener> result = new ArrayList<>();
+            result.add( RewriteStatistics.getInstance() );
+            ServiceLoader.load( RewriteListener.class ).forEach( result::add );
+            // listeners registered by the user replace printing to System.out
+            RewriteStatistics.getInstance().setPrintToSystemOut( result.size() == 1 );
+            return Collections.unmodifiableList( result );
+        }
+    }
+
     @Override
     public void setBootstrapContext(final BootstrapContext ctx)
     {
+        final long parseStart = System.nanoTime();
         final RewriteConfig config = new AnnotationParser().parse( ctx.getTestClass() );
+        final long annotationParsingNanos = System.nanoTime() - parseStart;
         
         final XMLRewrite rewrite = new XMLRewrite();
+        Listeners.INSTANCE.forEach( rewrite::addListener );
+        DiskCache.fromSystemProperties().ifPresent( rewrite::setDiskCache );
+        ContextPrecomputer.find( ctx.getTestClass().getClassLoader() ).ifPresent( rewrite::setPrecomputedCache );
+        RuleStatistics.fromSystemProperties().ifPresent( rewrite::setRuleStatistics );
+        if ( RewriteCache.getInstance().getMaxSize() > 0 ) {
+            rewrite.setMemoryCache( RewriteCache.getInstance() );
+        }
+        if ( SourceDocumentCache.getInstance().getMaxEntries() > 0 ) {
+            rewrite.setDocumentCache( SourceDocumentCache.getInstance() );
+        }
+        // test classes only share rule prefixes if inherited rules are applied first
+        if ( config.isInheritedRulesFirst() && SnapshotCache.getInstance().getMaxSize() > 0 ) {
+            rewrite.setSnapshotCache( SnapshotCache.getInstance() );
+        }
+        
+        final ContextLoader contextLoader = createContextLoader( config , rewrite , annotationParsingNanos );
         
         super.setBootstrapContext( new BootstrapContext() {
 
@@ -185,79 +328,203 @@ public class ContextRewritingBootStrapper extends DefaultTestContextBootstrapper
                     @Override
                     public ApplicationContext loadContext(MergedContextConfiguration mergedContextConfiguration)
                     {
-                        final MergedContextConfiguration wrapper = new MergedContextConfiguration(mergedContextConfiguration)
+                        return ctx.getCacheAwareContextLoaderDelegate().loadContext( new RewritingMergedContextConfiguration( mergedContextConfiguration , config , contextLoader ) );
+                    }
+
+                    @Override
+                    public void closeContext(MergedContextConfiguration mergedContextConfiguration, HierarchyMode hierarchyMode)
+                    {
+                        // must use the same key the context has been cached with 
+                        final MergedContextConfiguration key = new RewritingMergedContextConfiguration( mergedContextConfiguration , config , contextLoader );
+                        ctx.getCacheAwareContextLoaderDelegate().closeContext( key , hierarchyMode );
+                    }
+                };
+            }
+        });
+    }
+    
+    private static ContextLoader createContextLoader(RewriteConfig config,XMLRewrite rewrite,long annotationParsingNanos) 
+    {
+        return new AbstractGenericContextLoader() {
+
+            @Override
+            protected BeanDefinitionReader createBeanDefinitionReader(GenericApplicationContext context)
+            {
+                final XmlBeanDefinitionReader reader = new XmlBeanDefinitionReader( context )
+                {
+                    private int loadBeanDefinitions()
+                    {
+                        try 
                         {
-                            @Override
-                            public ContextLoader getContextLoader()
-                            {
-                                return new AbstractGenericContextLoader() {
+                            final RewriteMetrics metrics = new RewriteMetrics( config.getContextPath() );
+                            metrics.addTime( Phase.ANNOTATION_PARSING , annotationParsingNanos );
 
-                                    @Override
-                                    protected BeanDefinitionReader createBeanDefinitionReader(GenericApplicationContext context)
+                            int count = 0;
+                            // locations are rewritten concurrently but need to be registered in order
+                            for ( RewrittenResource rewritten : rewrite.filterResources( config.getResources() , config , metrics ) )
+                            {
+                                final BeanDefinitionCache cache = BeanDefinitionCache.getInstance();
+                                // copies of cached definitions do not replay side effects of namespace handlers
+                                if ( cache.getMaxEntries() > 0 && rewritten.usesOnlyBeansNamespace() ) 
+                                {
+                                    // only accounted as bytes written if the XML gets re-parsed, otherwise the DOM might still get handed to Spring directly
+                                    final byte[] data;
+                                    if ( config.isReparseXML() ) {
+                                        data = XMLRewrite.serialize( rewritten , metrics );
+                                    } 
+                                    else 
                                     {
-                                        final XmlBeanDefinitionReader reader = new XmlBeanDefinitionReader( context )
-                                        {
-                                            private int loadBeanDefinitions()
-                                            {
-                                                try 
-                                                {
-                                                    return super.loadBeanDefinitions( new EncodedResource( rewrite.filterResource( config.getResource() , config ) ) );
-                                                }
-                                                catch (Exception e)
-                                                {
-                                                    throw new BeanDefinitionStoreException("Failed to load from classpath:"+config.getContextPath() , e);
-                                                }
-                                            }
-
-                                            @Override
-                                            public int loadBeanDefinitions(String location) throws BeanDefinitionStoreException
-                                            {
-                                                return loadBeanDefinitions( (EncodedResource) null );
-                                            }
-
-                                            @Override
-                                            public int loadBeanDefinitions(String location, Set<Resource> actualResources) throws BeanDefinitionStoreException
-                                            {
-                                                if ( StringUtils.isBlank( location ) ) {
-                                                    return loadBeanDefinitions();
-                                                }
-                                                return super.loadBeanDefinitions( location , actualResources );
-                                            }
-
-                                            @Override
-                                            public int loadBeanDefinitions(String... locations) throws BeanDefinitionStoreException {
-                                                return loadBeanDefinitions();
-                                            }
-
-                                            public int loadBeanDefinitions(InputSource inputSource) throws BeanDefinitionStoreException
-                                            {
-                                                return loadBeanDefinitions();
-                                            }
-
-                                            public int loadBeanDefinitions(InputSource inputSource, String resourceDescription) throws BeanDefinitionStoreException {
-                                                return loadBeanDefinitions();
-                                            }
-                                        };
-                                        return reader;
+                                        final long start = System.nanoTime();
+                                        data = rewritten.getData();
+                                        metrics.addTimeSince( Phase.SERIALIZATION , start );
                                     }
-
-                                    @Override
-                                    protected String getResourceSuffix() {
-                                        return ".xml";
+                                    final String key = BeanDefinitionCache.key( data , config.isReparseXML() , getEnvironment() );
+                                    final long start = System.nanoTime();
+                                    final boolean[] parsed = { false };
+                                    count += cache.load( key , getRegistry() , () -> 
+                                    {
+                                        parsed[0] = true;
+                                        return loadBeanDefinitions( rewritten , metrics );
+                                    });
+                                    if ( ! parsed[0] ) {
+                                        // registering copies of cached bean definitions
+                                        metrics.addTimeSince( Phase.BEAN_DEFINITION_REGISTRATION , start );
                                     }
-                                };
+                                } 
+                                else 
+                                {
+                                    count += loadBeanDefinitions( rewritten , metrics );
+                                }
+                            }
+                            rewrite.fireContextLoaded( metrics );
+                            return count;
+                        }
+                        catch (Exception e)
+                        {
+                            throw new BeanDefinitionStoreException("Failed to load from classpath:"+config.getContextPath() , e);
+                        }
+                    }
+
+                    private int loadBeanDefinitions(RewrittenResource rewritten,RewriteMetrics metrics) throws Exception
+                    {
+                        // default attribute values are only known for the beans namespace, everything else always needs to be validated
+                        final boolean onlyBeansNamespace = rewritten.usesOnlyBeansNamespace();
+                        if ( config.isReparseXML() || ! onlyBeansNamespace ) 
+                        {
+                            final byte[] data = XMLRewrite.serialize( rewritten , metrics );
+                            final String validationKey = config.isReparseXML() && config.isValidateOnce() && onlyBeansNamespace ? ValidationCache.key( data ) : null;
+                            if ( validationKey == null || ! ValidationCache.getInstance().isValidated( validationKey ) )
+                            {
+                                final long start = System.nanoTime();
+                                final int count = super.loadBeanDefinitions( new EncodedResource( rewritten ) );
+                                metrics.addTimeSince( Phase.BEAN_DEFINITION_REGISTRATION , start );
+                                if ( validationKey != null ) {
+                                    ValidationCache.getInstance().setValidated( validationKey );
+                                }
+                                return count;
                             }
-                        };
-                        return ctx.getCacheAwareContextLoaderDelegate().loadContext( wrapper );
+                            // already validated, register a non-validated DOM with XSD default attributes filled in instead
+                        } 
+                        long start = System.nanoTime();
+                        final Document document = rewritten.getNamespaceAwareDocument();
+                        metrics.addTimeSince( Phase.SERIALIZATION , start );
+                        start = System.nanoTime();
+                        final int count = registerBeanDefinitions( document , rewritten );
+                        metrics.addTimeSince( Phase.BEAN_DEFINITION_REGISTRATION , start );
+                        return count;
                     }
 
                     @Override
-                    public void closeContext(MergedContextConfiguration mergedContextConfiguration, HierarchyMode hierarchyMode)
+                    public int loadBeanDefinitions(String location) throws BeanDefinitionStoreException
                     {
-                        ctx.getCacheAwareContextLoaderDelegate().closeContext(mergedContextConfiguration, hierarchyMode);
+                        return loadBeanDefinitions( (EncodedResource) null );
+                    }
+
+                    @Override
+                    public int loadBeanDefinitions(String location, Set<Resource> actualResources) throws BeanDefinitionStoreException
+                    {
+                        if ( StringUtils.isBlank( location ) ) {
+                            return loadBeanDefinitions();
+                        }
+                        return super.loadBeanDefinitions( location , actualResources );
+                    }
+
+                    @Override
+                    public int loadBeanDefinitions(String... locations) throws BeanDefinitionStoreException {
+                        return loadBeanDefinitions();
+                    }
+
+                    public int loadBeanDefinitions(InputSource inputSource) throws BeanDefinitionStoreException
+                    {
+                        return loadBeanDefinitions();
+                    }
+
+                    public int loadBeanDefinitions(InputSource inputSource, String resourceDescription) throws BeanDefinitionStoreException {
+                        return loadBeanDefinitions();
                     }
                 };
+                return reader;
             }
-        });
+
+            @Override
+            protected String getResourceSuffix() {
+                return ".xml";
+            }
+        };
+    }
+    
+    /**
+     * <code>MergedContextConfiguration</code> that uses our rewriting <code>ContextLoader</code> and
+     * takes the XML files being rewritten plus the effective rewrite rules into account when checking for equality.
+     *
+     * <p>Spring's <code>ContextCache</code> uses merged configurations as cache keys, so test classes that rewrite
+     * the same XML files with the same rules (in the same order) share a single application context while test classes
+     * with different rules never do.</p>
+     */
+    protected static final class RewritingMergedContextConfiguration extends MergedContextConfiguration 
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private final String rewriteFingerprint;
+        private final transient ContextLoader contextLoader;
+        
+        public RewritingMergedContextConfiguration(MergedContextConfiguration original,RewriteConfig config,ContextLoader contextLoader) 
+        {
+            super( original );
+            Validate.notNull(config, "config must not be NULL");
+            Validate.notNull(contextLoader, "contextLoader must not be NULL");
+            this.rewriteFingerprint = Fingerprint.of( Fingerprint.encode( config.getContextPaths().toArray( new String[0] ) ) , config.getRulesFingerprint() );
+            this.contextLoader = contextLoader;
+        }
+        
+        @Override
+        public ContextLoader getContextLoader() {
+            return contextLoader;
+        }
+        
+        /**
+         * Returns a fingerprint of the XML files being rewritten and the rules being applied to them. 
+         * 
+         * @return
+         */
+        public String getRewriteFingerprint() {
+            return rewriteFingerprint;
+        }
+        
+        @Override
+        public boolean equals(Object other) 
+        {
+            return super.equals( other ) && rewriteFingerprint.equals( ((RewritingMergedContextConfiguration) other).rewriteFingerprint ); 
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * super.hashCode() + rewriteFingerprint.hashCode();
+        }
+        
+        @Override
+        public String toString() {
+            return super.toString()+"[ rewriteFingerprint = "+rewriteFingerprint+" ]";
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Persistent cache of rewritten XML that survives JVM restarts.
+ *
+ * <p>Each cache entry records the URL and content hash of every source file that contributed to it
+ * (the root XML file and all files it transitively imports). An entry is only returned if none of these files changed
+ * since the entry was written, so a hit does not require any XML parsing.</p>
+ *
+ * <p>Entries are written to a temporary file first and then atomically moved into place, so concurrent
+ * writers (for example parallel Surefire forks) never expose partially written entries. Once the total size of all entries
+ * exceeds the configured limit, least-recently used entries get deleted.</p>
+ *
+ * <p>The cache is enabled by setting the {@link #DIRECTORY_PROPERTY} system property.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class DiskCache
+{
+    /**
+     * System property holding the cache directory. The cache is disabled if this property is not set.
+     */
+    public static final String DIRECTORY_PROPERTY = "contextrewrite.diskCache.dir";
+
+    /**
+     * System property holding the max. total size of all cache entries in bytes.
+     */
+    public static final String MAX_SIZE_PROPERTY = "contextrewrite.diskCache.maxSize";
+
+    public static final long DEFAULT_MAX_SIZE = 100 * 1024 * 1024;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String SUFFIX = ".entry";
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * A source file that contributed to a cache entry.
+     */
+    public static final class Source
+    {
+        public final String url;
+        public final String hash;
+
+        public Source(String url, String hash)
+        {
+            Validate.notBlank(url, "url must not be NULL or blank");
+            Validate.notBlank(hash, "hash must not be NULL or blank");
+            this.url = url;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param directory cache directory, created if it does not exist
+     * @param maxSize max. total size of all cache entries in bytes
+     */
+    public DiskCache(File directory,long maxSize)
+    {
+        Validate.notNull(directory, "directory must not be NULL");
+        Validate.isTrue( maxSize > 0 , "maxSize must be > 0");
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Creates a cache configured through the {@link #DIRECTORY_PROPERTY} and {@link #MAX_SIZE_PROPERTY} system properties.
+     *
+     * @return cache or an empty optional if no cache directory has been configured
+     */
+    public static Optional<DiskCache> fromSystemProperties()
+    {
+        final String dir = System.getProperty( DIRECTORY_PROPERTY );
+        if ( StringUtils.isBlank( dir ) ) {
+            return Optional.empty();
+        }
+        final String maxSize = System.getProperty( MAX_SIZE_PROPERTY );
+        return Optional.of( new DiskCache( new File( dir ) , StringUtils.isBlank( maxSize ) ? DEFAULT_MAX_SIZE : Long.parseLong( maxSize.trim() ) ) );
+    }
+
+    /**
+     * Returns the cache directory.
+     *
+     * @return
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Look up cache entry.
+     *
+     * @param key cache key
+     * @return cached data or an empty optional if there is no entry or any of the entry's source files changed.
+     */
+    public Optional<byte[]> get(String key)
+    {
+        final File file = file( key );
+        if ( ! file.exists() ) {
+            return Optional.empty();
+        }
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+        {
+            if ( in.readInt() != FORMAT_VERSION ) {
+                return Optional.empty();
+            }
+            for ( int count = in.readInt() ; count > 0 ; count-- )
+            {
+                final String url = in.readUTF();
+                final String hash = in.readUTF();
+                if ( ! hash.equals( hash( url ) ) ) {
+                    return Optional.empty();
+                }
+            }
+            final byte[] data = new byte[ in.readInt() ];
+            in.readFully( data );
+            file.setLastModified( System.currentTimeMillis() );
+            return Optional.of( data );
+        }
+        catch(IOException e) {
+            // corrupted entry, concurrently evicted or source file no longer readable
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Store cache entry.
+     *
+     * <p>I/O errors are silently ignored, failing to write the cache never fails a rewrite.</p>
+     *
+     * @param key cache key
+     * @param sources source files that contributed to the data
+     * @param data data to cache
+     */
+    public void put(String key,List<Source> sources,byte[] data)
+    {
+        Validate.notNull(sources, "sources must not be NULL");
+        Validate.notNull(data, "data must not be NULL");
+
+        File tmpFile = null;
+        try
+        {
+            if ( ! directory.exists() ) {
+                Files.createDirectories( directory.toPath() );
+            }
+            tmpFile = File.createTempFile( "entry" , ".tmp" , directory );
+            try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) ) )
+            {
+                out.writeInt( FORMAT_VERSION );
+                out.writeInt( sources.size() );
+                for ( Source source : sources ) {
+                    out.writeUTF( source.url );
+                    out.writeUTF( source.hash );
+                }
+                out.writeInt( data.length );
+                out.write( data );
+            }
+            try {
+                Files.move( tmpFile.toPath() , file( key ).toPath() , StandardCopyOption.ATOMIC_MOVE , StandardCopyOption.REPLACE_EXISTING );
+            } catch(AtomicMoveNotSupportedException e) {
+                Files.move( tmpFile.toPath() , file( key ).toPath() , StandardCopyOption.REPLACE_EXISTING );
+            }
+            tmpFile = null;
+            evict();
+        }
+        catch(IOException e) {
+            // ignored, see javadoc
+        }
+        finally
+        {
+            if ( tmpFile != null ) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private void evict()
+    {
+        final File[] files = directory.listFiles( (dir,name) -> name.endsWith( SUFFIX ) );
+        if ( files == null ) {
+            return;
+        }
+        long totalSize = Arrays.stream( files ).mapToLong( File::length ).sum();
+        if ( totalSize <= maxSize ) {
+            return;
+        }
+        final List<File> byAge = new ArrayList<>( Arrays.asList( files ) );
+        byAge.sort( Comparator.comparingLong( File::lastModified ) );
+        for ( File file : byAge )
+        {
+            if ( totalSize <= maxSize ) {
+                break;
+            }
+            final long size = file.length();
+            if ( file.delete() ) {
+                totalSize -= size;
+            }
+        }
+    }
+
+    private File file(String key) {
+        Validate.notBlank(key, "key must not be NULL or blank");
+        return new File( directory , Fingerprint.of( key )+SUFFIX );
+    }
+
+    /**
+     * Returns the content hash of a URL.
+     *
+     * @param url
+     * @return
+     * @throws IOException
+     */
+    public static String hash(String url) throws IOException
+    {
+        try ( InputStream in = new URL( url ).openStream() ) {
+            return Fingerprint.of( StreamUtils.copyToByteArray( in ) );
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Converts the (non namespace-aware) DOM produced by {@link XMLRewrite} into a namespace-aware DOM that
+ * can be handed directly to Spring's <code>XmlBeanDefinitionReader</code>.
+ *
+ * <p>Since the converted document never gets validated against the Spring XSDs, the default attribute values
+ * from <code>spring-beans.xsd</code> that Spring's <code>BeanDefinitionParserDelegate</code> depends upon
+ * are filled in explicitly.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class DocumentConverter
+{
+    private static final String BEANS_NAMESPACE_URI = "http://www.springframework.org/schema/beans";
+
+    private static final String DEFAULT_VALUE = "default";
+
+    private DocumentConverter() {
+    }
+
+    /**
+     * Creates a namespace-aware deep copy of a document.
+     *
+     * @param source
+     * @return
+     */
+    public static Document toNamespaceAware(Document source)
+    {
+        final Document target = JAXPResources.documentBuilder().newDocument();
+        for ( Node child = source.getFirstChild() ; child != null ; child = child.getNextSibling() )
+        {
+            copy( child , target , target , new HashMap<>() );
+        }
+        return target;
+    }
+
+    /**
+     * Returns whether all elements and prefixed attributes of a (non namespace-aware) document belong to the
+     * <code>spring-beans</code> namespace (or to no namespace at all).
+     *
+     * <p>Parsing such a document only registers bean definitions and aliases, and all XSD default attributes it
+     * depends upon are filled in by {@link #toNamespaceAware(Document)}. Documents using other namespaces are handled 
+     * by namespace handlers that might depend on default attributes from other XSDs or have arbitrary side effects.</p>
+     *
+     * @param document
+     * @return
+     */
+    public static boolean usesOnlyBeansNamespace(Document document)
+    {
+        for ( Node child = document.getFirstChild() ; child != null ; child = child.getNextSibling() )
+        {
+            if ( child.getNodeType() == Node.ELEMENT_NODE && ! usesOnlyBeansNamespace( (Element) child , new HashMap<>() ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean usesOnlyBeansNamespace(Element element,Map<String,String> parentNamespaces)
+    {
+        final Map<String,String> namespaces = declaredNamespaces( element , parentNamespaces );
+        if ( ! isBeansNamespace( namespaceURI( prefix( element.getNodeName() ) , namespaces ) ) ) {
+            return false;
+        }
+        final NamedNodeMap attributes = element.getAttributes();
+        for ( int i = 0 , len = attributes.getLength() ; i < len ; i++ )
+        {
+            final String name = attributes.item( i ).getNodeName();
+            final String prefix = prefix( name );
+            if ( prefix.isEmpty() || XMLConstants.XMLNS_ATTRIBUTE.equals( prefix ) || XMLConstants.XML_NS_PREFIX.equals( prefix ) ) {
+                continue;
+            }
+            final String namespaceURI = namespaceURI( prefix , namespaces );
+            if ( ! XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals( namespaceURI ) && ! isBeansNamespace( namespaceURI ) ) {
+                return false;
+            }
+        }
+        for ( Node child = element.getFirstChild() ; child != null ; child = child.getNextSibling() )
+        {
+            if ( child.getNodeType() == Node.ELEMENT_NODE && ! usesOnlyBeansNamespace( (Element) child , namespaces ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBeansNamespace(String namespaceURI) {
+        return namespaceURI == null || BEANS_NAMESPACE_URI.equals( namespaceURI );
+    }
+
+    private static void copy(Node node,Node targetParent,Document target,Map<String,String> namespaces)
+    {
+        final Node copy;
+        switch( node.getNodeType() )
+        {
+            case Node.ELEMENT_NODE:
+                copyElement( (Element) node , targetParent , target , namespaces );
+                return;
+            case Node.TEXT_NODE:
+                copy = target.createTextNode( node.getNodeValue() );
+                break;
+            case Node.CDATA_SECTION_NODE:
+                copy = target.createCDATASection( node.getNodeValue() );
+                break;
+            case Node.COMMENT_NODE:
+                copy = target.createComment( node.getNodeValue() );
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                copy = target.createProcessingInstruction( node.getNodeName() , node.getNodeValue() );
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                copy = target.createTextNode( node.getTextContent() );
+                break;
+            default:
+                // DOCTYPE etc. are not needed by Spring
+                return;
+        }
+        targetParent.appendChild( copy );
+    }
+
+    /**
+     * Returns the namespaces in scope for an element, given the namespaces in scope for its parent.
+     */
+    private static Map<String,String> declaredNamespaces(Element element,Map<String,String> parentNamespaces)
+    {
+        final NamedNodeMap attributes = element.getAttributes();
+
+        Map<String,String> namespaces = parentNamespaces;
+        for ( int i = 0 , len = attributes.getLength() ; i < len ; i++ )
+        {
+            final Node attr = attributes.item( i );
+            final String name = attr.getNodeName();
+            if ( name.equals( XMLConstants.XMLNS_ATTRIBUTE ) || name.startsWith( XMLConstants.XMLNS_ATTRIBUTE+":" ) )
+            {
+                if ( namespaces == parentNamespaces ) {
+                    namespaces = new HashMap<>( parentNamespaces );
+                }
+                namespaces.put( localName( name , "" ) , attr.getNodeValue() );
+            }
+        }
+        return namespaces;
+    }
+
+    private static void copyElement(Element element,Node targetParent,Document target,Map<String,String> parentNamespaces)
+    {
+        final NamedNodeMap attributes = element.getAttributes();
+        final Map<String,String> namespaces = declaredNamespaces( element , parentNamespaces );
+
+        final String namespaceURI = namespaceURI( prefix( element.getNodeName() ) , namespaces );
+        final Element copy = target.createElementNS( namespaceURI , element.getNodeName() );
+        for ( int i = 0 , len = attributes.getLength() ; i < len ; i++ )
+        {
+            final Node attr = attributes.item( i );
+            final String name = attr.getNodeName();
+            final String prefix = prefix( name );
+            final String attrNamespaceURI;
+            if ( name.equals( XMLConstants.XMLNS_ATTRIBUTE ) || XMLConstants.XMLNS_ATTRIBUTE.equals( prefix ) ) {
+                attrNamespaceURI = XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+            } else {
+                // unprefixed attributes are never in a namespace
+                attrNamespaceURI = prefix.isEmpty() ? null : namespaceURI( prefix , namespaces );
+            }
+            copy.setAttributeNS( attrNamespaceURI , name , attr.getNodeValue() );
+        }
+
+        if ( BEANS_NAMESPACE_URI.equals( namespaceURI ) ) {
+            addDefaultAttributes( copy );
+        }
+        targetParent.appendChild( copy );
+
+        for ( Node child = element.getFirstChild() ; child != null ; child = child.getNextSibling() )
+        {
+            copy( child , copy , target , namespaces );
+        }
+    }
+
+    private static void addDefaultAttributes(Element element)
+    {
+        switch( element.getLocalName() )
+        {
+            case "beans":
+                addDefault( element , "default-lazy-init" , DEFAULT_VALUE );
+                addDefault( element , "default-merge" , DEFAULT_VALUE );
+                addDefault( element , "default-autowire" , DEFAULT_VALUE );
+                break;
+            case "bean":
+                addDefault( element , "lazy-init" , DEFAULT_VALUE );
+                addDefault( element , "autowire" , DEFAULT_VALUE );
+                addDefault( element , "autowire-candidate" , DEFAULT_VALUE );
+                break;
+            case "array":
+            case "list":
+            case "set":
+            case "map":
+            case "props":
+                addDefault( element , "merge" , DEFAULT_VALUE );
+                break;
+            case "qualifier":
+                addDefault( element , "type" , "org.springframework.beans.factory.annotation.Qualifier" );
+                break;
+            default:
+        }
+    }
+
+    private static void addDefault(Element element,String attribute,String value)
+    {
+        if ( ! element.hasAttributeNS( null , attribute ) ) {
+            element.setAttributeNS( null , attribute , value );
+        }
+    }
+
+    private static String namespaceURI(String prefix,Map<String,String> namespaces)
+    {
+        if ( XMLConstants.XML_NS_PREFIX.equals( prefix ) ) {
+            return XMLConstants.XML_NS_URI;
+        }
+        final String uri = namespaces.get( prefix );
+        return uri == null || uri.isEmpty() ? null : uri;
+    }
+
+    private static String prefix(String qualifiedName)
+    {
+        final int idx = qualifiedName.indexOf( ':' );
+        return idx == -1 ? "" : qualifiedName.substring( 0 , idx );
+    }
+
+    private static String localName(String qualifiedName,String defaultValue)
+    {
+        final int idx = qualifiedName.indexOf( ':' );
+        return idx == -1 ? defaultValue : qualifiedName.substring( idx+1 );
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Helper methods for calculating stable, content-based fingerprints (SHA-256 hashes).
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class Fingerprint
+{
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Fingerprint() {
+    }
+
+    /**
+     * Returns the SHA-256 hash of some data as a hex string.
+     *
+     * @param data
+     * @return
+     */
+    public static String of(byte[] data)
+    {
+        Validate.notNull(data, "data must not be NULL");
+        return toHex( newDigest().digest( data ) );
+    }
+
+    /**
+     * Returns the SHA-256 hash of a list of strings as a hex string.
+     *
+     * <p>Each part is length-prefixed before hashing, so <code>of("ab","c")</code> and <code>of("a","bc")</code>
+     * yield different fingerprints.</p>
+     *
+     * @param parts
+     * @return
+     */
+    public static String of(String... parts)
+    {
+        Validate.notNull(parts, "parts must not be NULL");
+        return of( encode( parts ).getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Returns an unambiguous string representation of a list of strings.
+     *
+     * @param parts
+     * @return
+     */
+    public static String encode(String... parts)
+    {
+        final StringBuilder buffer = new StringBuilder();
+        for ( String part : parts )
+        {
+            if ( part == null ) {
+                buffer.append("-;");
+            } else {
+                buffer.append( part.length() ).append(':').append( part ).append(';');
+            }
+        }
+        return buffer.toString();
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not supported by this JVM?",e);
+        }
+    }
+
+    private static String toHex(byte[] data)
+    {
+        final char[] result = new char[ data.length*2 ];
+        for ( int i = 0 ; i < data.length ; i++ )
+        {
+            result[i*2] = HEX[ (data[i] >>> 4) & 0x0f ];
+            result[i*2+1] = HEX[ data[i] & 0x0f ];
+        }
+        return new String( result );
+    }
+}
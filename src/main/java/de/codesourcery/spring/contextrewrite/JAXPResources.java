@@ -0,0 +1,147 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.InputStream;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * Provides re-usable, per-thread JAXP parser, transformer and XPath instances as well as StAX readers.
+ *
+ * <p>Looking up a JAXP factory involves a service-loader scan of the classpath, which is
+ * quite expensive on large classpaths. The factories are therefore only looked-up once and every thread
+ * keeps its own <code>DocumentBuilder</code>, <code>Transformer</code> and <code>XPath</code> instance.
+ * Instances are reset before being handed out.</p>
+ *
+ * <p>Callers must not hold on to an instance beyond the scope of a single parse/transform/compile call.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class JAXPResources
+{
+    // JAXP factories are not guaranteed to be thread-safe, access needs to be synchronized
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final String REPORT_CDATA_PROPERTY = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    static
+    {
+        XML_INPUT_FACTORY.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE , Boolean.TRUE );
+        XML_INPUT_FACTORY.setProperty( XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES , Boolean.TRUE );
+        XML_INPUT_FACTORY.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES , Boolean.FALSE );
+        // keep CDATA sections instead of reporting them as regular text (JDK built-in implementation)
+        if ( XML_INPUT_FACTORY.isPropertySupported( REPORT_CDATA_PROPERTY ) ) {
+            XML_INPUT_FACTORY.setProperty( REPORT_CDATA_PROPERTY , Boolean.TRUE );
+        }
+    }
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal.withInitial( () ->
+    {
+        synchronized( DOCUMENT_BUILDER_FACTORY )
+        {
+            try {
+                return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new RuntimeException("Failed to create DocumentBuilder",e);
+            }
+        }
+    });
+
+    private static final ThreadLocal<Transformer> TRANSFORMER = ThreadLocal.withInitial( () ->
+    {
+        synchronized( TRANSFORMER_FACTORY )
+        {
+            try {
+                return TRANSFORMER_FACTORY.newTransformer();
+            } catch (TransformerConfigurationException e) {
+                throw new RuntimeException("Failed to create Transformer",e);
+            }
+        }
+    });
+
+    private static final ThreadLocal<XPath> XPATH = ThreadLocal.withInitial( () ->
+    {
+        synchronized( XPATH_FACTORY ) {
+            return XPATH_FACTORY.newXPath();
+        }
+    });
+
+    private JAXPResources() {
+    }
+
+    /**
+     * Returns this thread's <code>DocumentBuilder</code>.
+     *
+     * @return
+     */
+    public static DocumentBuilder documentBuilder()
+    {
+        final DocumentBuilder result = DOCUMENT_BUILDER.get();
+        result.reset();
+        return result;
+    }
+
+    /**
+     * Returns this thread's identity <code>Transformer</code>.
+     *
+     * @return
+     */
+    public static Transformer transformer()
+    {
+        final Transformer result = TRANSFORMER.get();
+        result.reset();
+        return result;
+    }
+
+    /**
+     * Returns this thread's <code>XPath</code>.
+     *
+     * @return
+     */
+    public static XPath xpath()
+    {
+        final XPath result = XPATH.get();
+        result.reset();
+        return result;
+    }
+
+    /**
+     * Creates a namespace-aware StAX reader.
+     *
+     * @param in
+     * @return
+     * @throws XMLStreamException
+     */
+    public static XMLStreamReader xmlStreamReader(InputStream in) throws XMLStreamException
+    {
+        synchronized( XML_INPUT_FACTORY ) {
+            return XML_INPUT_FACTORY.createXMLStreamReader( in );
+        }
+    }
+}
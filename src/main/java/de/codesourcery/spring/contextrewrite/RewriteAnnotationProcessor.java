@@ -0,0 +1,343 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.MirroredTypesException;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import org.apache.commons.lang3.StringUtils;
+
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ContextConfiguration;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertAttributeRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertElementRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.LazyInitRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.PruneRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.RemoveRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ReplaceRule;
+import de.codesourcery.spring.contextrewrite.XMLRewrite.Template;
+
+/**
+ * Annotation processor that checks XML rewrite annotations at compile time and writes a {@link RuleIndex}.
+ *
+ * <p>Reports the same configuration errors {@link AnnotationParser} would only detect when a test class gets bootstrapped:
+ * blank context paths, invalid XPath expressions, malformed XML fragments, <code>@ReplaceRule</code>s with both or none of
+ * <code>replacement</code> and <code>replacementClassName</code>, <code>@PruneRule</code>s without roots and
+ * duplicate rule IDs. Rules that do not match anything can only be detected at runtime.</p>
+ *
+ * <p>Registered as a service, so <code>javac</code> picks it up automatically whenever this library is on the compile classpath.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class RewriteAnnotationProcessor extends AbstractProcessor
+{
+    // same order AnnotationParser adds rules in
+    private static final List<Class<? extends Annotation>> RULE_ANNOTATIONS = Arrays.asList(
+            ReplaceRule.class, RemoveRule.class, InsertElementRule.class, InsertAttributeRule.class, LazyInitRule.class, PruneRule.class );
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes()
+    {
+        final Set<String> result = new HashSet<>();
+        result.add( ContextConfiguration.class.getCanonicalName() );
+        for ( Class<? extends Annotation> type : RULE_ANNOTATIONS ) {
+            result.add( type.getCanonicalName() );
+        }
+        result.add( ContextRewritingBootStrapper.ReplaceRules.class.getCanonicalName() );
+        result.add( ContextRewritingBootStrapper.RemoveRules.class.getCanonicalName() );
+        result.add( ContextRewritingBootStrapper.InsertElementRules.class.getCanonicalName() );
+        result.add( ContextRewritingBootStrapper.InsertAttributeRules.class.getCanonicalName() );
+        return result;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+    {
+        for ( Element element : roundEnv.getRootElements() ) {
+            process( element );
+        }
+        return false;
+    }
+
+    private void process(Element element)
+    {
+        if ( ! element.getKind().isClass() && ! element.getKind().isInterface() ) {
+            return;
+        }
+        final TypeElement type = (TypeElement) element;
+        if ( hasRewriteAnnotations( type ) ) {
+            validate( type );
+        }
+        if ( type.getKind() == ElementKind.CLASS && ! type.getModifiers().contains( Modifier.ABSTRACT ) ) {
+            writeIndexEntry( type );
+        }
+        for ( Element enclosed : type.getEnclosedElements() ) {
+            process( enclosed );
+        }
+    }
+
+    private static boolean hasRewriteAnnotations(TypeElement type)
+    {
+        return type.getAnnotation( ContextConfiguration.class ) != null || RULE_ANNOTATIONS.stream().anyMatch( a -> type.getAnnotationsByType( a ).length > 0 );
+    }
+
+    private void validate(TypeElement type)
+    {
+        final ContextConfiguration ctxConfig = type.getAnnotation( ContextConfiguration.class );
+        if ( ctxConfig != null && ( ctxConfig.value().length == 0 || Arrays.stream( ctxConfig.value() ).anyMatch( StringUtils::isBlank ) ) ) {
+            error( type , ContextConfiguration.class , "context paths must not be empty or blank" );
+        }
+
+        final Set<String> ids = new HashSet<>();
+        for ( ReplaceRule r : type.getAnnotationsByType( ReplaceRule.class ) )
+        {
+            checkID( type , ReplaceRule.class , r.id() , ids );
+            checkXPath( type , ReplaceRule.class , r.xpath() );
+            final boolean hasReplacement = ! ContextRewritingBootStrapper.NULL_STRING.equals( r.replacement() );
+            final boolean hasClassName = ! Void.class.getName().equals( className( r::replacementClassName ) );
+            if ( hasReplacement && hasClassName ) {
+                error( type , ReplaceRule.class , "Either replacement or replacementClassName needs to be set" );
+            }
+            else if ( ! hasReplacement && ! hasClassName ) {
+                error( type , ReplaceRule.class , "You need to provide EITHER 'replacement' OR 'replacementClassName' attributes" );
+            }
+            else if ( hasReplacement && r.replacement().trim().startsWith("<") && ! XMLRewrite.isAttributeXPath( r.xpath() ) ) {
+                checkFragment( type , ReplaceRule.class , r.replacement() );
+            }
+        }
+        for ( RemoveRule r : type.getAnnotationsByType( RemoveRule.class ) )
+        {
+            checkID( type , RemoveRule.class , r.id() , ids );
+            checkXPath( type , RemoveRule.class , r.xpath() );
+        }
+        for ( InsertElementRule r : type.getAnnotationsByType( InsertElementRule.class ) )
+        {
+            checkID( type , InsertElementRule.class , r.id() , ids );
+            checkXPath( type , InsertElementRule.class , r.xpath() );
+            checkFragment( type , InsertElementRule.class , r.insert() );
+        }
+        for ( InsertAttributeRule r : type.getAnnotationsByType( InsertAttributeRule.class ) )
+        {
+            checkID( type , InsertAttributeRule.class , r.id() , ids );
+            checkXPath( type , InsertAttributeRule.class , r.xpath() );
+        }
+        for ( LazyInitRule r : type.getAnnotationsByType( LazyInitRule.class ) ) {
+            checkID( type , LazyInitRule.class , r.id() , ids );
+        }
+        for ( PruneRule r : type.getAnnotationsByType( PruneRule.class ) )
+        {
+            checkID( type , PruneRule.class , r.id() , ids );
+            if ( r.roots().length == 0 && classNames( r::rootTypes ).isEmpty() ) {
+                error( type , PruneRule.class , "@PruneRule needs at least one root bean or root type" );
+            }
+        }
+    }
+
+    private void checkID(TypeElement type,Class<? extends Annotation> annotation,String id,Set<String> ids)
+    {
+        if ( ! ContextRewritingBootStrapper.NULL_STRING.equals( id ) && ! ids.add( id ) ) {
+            error( type , annotation , "Rule with duplicate ID '"+id+"'" );
+        }
+    }
+
+    private void checkXPath(TypeElement type,Class<? extends Annotation> annotation,String xpath)
+    {
+        try {
+            CompiledXPath.of( xpath );
+        }
+        catch(IllegalArgumentException e) {
+            error( type , annotation , e.getMessage()+( e.getCause() != null && e.getCause().getMessage() != null ? " ("+e.getCause().getMessage()+")" : "" ) );
+        }
+    }
+
+    private void checkFragment(TypeElement type,Class<? extends Annotation> annotation,String xml)
+    {
+        try {
+            new Template( xml );
+        }
+        catch(IllegalArgumentException e) {
+            error( type , annotation , e.getMessage()+( e.getCause() != null && e.getCause().getMessage() != null ? " ("+e.getCause().getMessage()+")" : "" ) );
+        }
+    }
+
+    private void error(TypeElement type,Class<? extends Annotation> annotation,String message) {
+        processingEnv.getMessager().printMessage( Diagnostic.Kind.ERROR , "@"+annotation.getSimpleName()+": "+message , type );
+    }
+
+    /**
+     * Writes an index entry if a class or any of its super classes has a <code>@ContextConfiguration</code> annotation.
+     */
+    private void writeIndexEntry(TypeElement type)
+    {
+        // annotated classes, base class first
+        final List<TypeElement> hierarchy = new ArrayList<>();
+        String contextPath = null;
+        for ( TypeElement current = type ; current != null ; current = superclass( current ) )
+        {
+            if ( hasRewriteAnnotations( current ) ) {
+                hierarchy.add( 0 , current );
+            }
+            final ContextConfiguration ctxConfig = current.getAnnotation( ContextConfiguration.class );
+            if ( contextPath == null && ctxConfig != null ) {
+                contextPath = String.join( "," , ctxConfig.value() );
+            }
+        }
+        if ( contextPath == null ) {
+            return;
+        }
+
+        final List<String> parts = new ArrayList<>();
+        for ( TypeElement current : hierarchy )
+        {
+            parts.add( "class" );
+            addAnnotationValues( current.getAnnotation( ContextConfiguration.class ) , parts );
+            for ( Class<? extends Annotation> annotation : RULE_ANNOTATIONS )
+            {
+                for ( Annotation rule : current.getAnnotationsByType( annotation ) ) {
+                    addAnnotationValues( rule , parts );
+                }
+            }
+        }
+
+        final String className = processingEnv.getElementUtils().getBinaryName( type ).toString();
+        final RuleIndex.Entry entry = new RuleIndex.Entry( className , contextPath , Fingerprint.of( parts.toArray( new String[ parts.size() ] ) ) );
+        try
+        {
+            final FileObject file = processingEnv.getFiler().createResource( StandardLocation.CLASS_OUTPUT , "" , RuleIndex.DIRECTORY+"/"+className , type );
+            try ( OutputStream out = file.openOutputStream() ) {
+                RuleIndex.write( entry , out );
+            }
+        }
+        catch(IOException e) {
+            processingEnv.getMessager().printMessage( Diagnostic.Kind.WARNING , "Failed to write rule index entry for "+className+": "+e.getMessage() , type );
+        }
+    }
+
+    private static TypeElement superclass(TypeElement type)
+    {
+        final TypeMirror superclass = type.getSuperclass();
+        return superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ( (DeclaredType) superclass ).asElement() : null;
+    }
+
+    /**
+     * Adds a stable string representation of all annotation attributes, including defaults.
+     */
+    private void addAnnotationValues(Annotation annotation,List<String> parts)
+    {
+        if ( annotation == null ) {
+            return;
+        }
+        parts.add( "@"+annotation.annotationType().getSimpleName() );
+        final List<Method> methods = Arrays.stream( annotation.annotationType().getDeclaredMethods() )
+                .sorted( Comparator.comparing( Method::getName ) ).collect( Collectors.toList() );
+        for ( Method method : methods )
+        {
+            final Object value;
+            if ( method.getReturnType() == Class.class ) {
+                value = className( () -> invoke( method , annotation ) );
+            }
+            else if ( method.getReturnType() == Class[].class ) {
+                value = Fingerprint.encode( classNames( () -> invoke( method , annotation ) ).toArray( new String[0] ) );
+            }
+            else if ( method.getReturnType() == String[].class ) {
+                value = Fingerprint.encode( (String[]) invoke( method , annotation ) );
+            }
+            else {
+                value = invoke( method , annotation );
+            }
+            parts.add( method.getName()+"="+value );
+        }
+    }
+
+    private static Object invoke(Method method,Annotation annotation)
+    {
+        try {
+            return method.invoke( annotation );
+        }
+        catch(InvocationTargetException e) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        }
+        catch(IllegalAccessException e) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    /*
+     * Class-valued annotation attributes are not available at compile time, accessing them throws an exception holding the type mirror.
+     */
+
+    private String className(Supplier<?> attribute)
+    {
+        try {
+            return ( (Class<?>) attribute.get() ).getName();
+        }
+        catch(MirroredTypeException e) {
+            return binaryName( e.getTypeMirror() );
+        }
+    }
+
+    private List<String> classNames(Supplier<?> attribute)
+    {
+        try {
+            return Arrays.stream( (Class<?>[]) attribute.get() ).map( Class::getName ).collect( Collectors.toList() );
+        }
+        catch(MirroredTypesException e) {
+            return e.getTypeMirrors().stream().map( this::binaryName ).collect( Collectors.toList() );
+        }
+    }
+
+    private String binaryName(TypeMirror type)
+    {
+        if ( type.getKind() == TypeKind.DECLARED ) {
+            return processingEnv.getElementUtils().getBinaryName( (TypeElement) ( (DeclaredType) type ).asElement() ).toString();
+        }
+        return type.toString();
+    }
+}
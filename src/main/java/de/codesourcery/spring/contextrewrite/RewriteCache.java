@@ -0,0 +1,219 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.springframework.util.StreamUtils;
+
+/**
+ * In-memory LRU cache of rewritten XML, shared by all test classes running in the same JVM.
+ *
+ * <p>The cache is bounded by the total number of bytes it holds. Entries may optionally be stored
+ * GZIP-compressed, trading CPU time on every hit for a smaller memory footprint.</p>
+ *
+ * <p>The size of the process-wide instance returned by {@link #getInstance()} is configured through the
+ * {@link #MAX_SIZE_PROPERTY} and {@link #COMPRESS_PROPERTY} system properties, a max. size of zero disables it.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class RewriteCache
+{
+    /**
+     * System property holding the max. number of bytes the process-wide cache may hold.
+     */
+    public static final String MAX_SIZE_PROPERTY = "contextrewrite.memoryCache.maxSize";
+
+    /**
+     * System property that enables compressed storage in the process-wide cache.
+     */
+    public static final String COMPRESS_PROPERTY = "contextrewrite.memoryCache.compress";
+
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    private static final RewriteCache INSTANCE = new RewriteCache( getMaxSizeFromSystemProperties() , Boolean.getBoolean( COMPRESS_PROPERTY ) );
+
+    private final long maxSize;
+    private final boolean compress;
+
+    // guarded by 'this'
+    private final LinkedHashMap<String,byte[]> entries = new LinkedHashMap<>(16, 0.75f, true );
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create instance.
+     *
+     * @param maxSize max. number of bytes this cache may hold, zero disables the cache
+     * @param compress whether to store cache entries compressed
+     */
+    public RewriteCache(long maxSize,boolean compress)
+    {
+        Validate.isTrue( maxSize >= 0 , "maxSize must be >= 0");
+        this.maxSize = maxSize;
+        this.compress = compress;
+    }
+
+    private static long getMaxSizeFromSystemProperties()
+    {
+        final String value = System.getProperty( MAX_SIZE_PROPERTY );
+        return StringUtils.isBlank( value ) ? DEFAULT_MAX_SIZE : Long.parseLong( value.trim() );
+    }
+
+    /**
+     * Returns the process-wide cache instance.
+     *
+     * @return
+     */
+    public static RewriteCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Look up cache entry.
+     *
+     * @param key
+     * @return
+     */
+    public Optional<byte[]> get(String key)
+    {
+        Validate.notNull(key, "key must not be NULL");
+        final byte[] data;
+        synchronized( this )
+        {
+            data = entries.get( key );
+            if ( data == null ) {
+                misses++;
+                return Optional.empty();
+            }
+            hits++;
+        }
+        return Optional.of( compress ? uncompress( data ) : data );
+    }
+
+    /**
+     * Store cache entry.
+     *
+     * <p>Entries larger than the max. cache size are silently ignored.</p>
+     *
+     * @param key
+     * @param data
+     */
+    public void put(String key,byte[] data)
+    {
+        Validate.notNull(key, "key must not be NULL");
+        Validate.notNull(data, "data must not be NULL");
+
+        final byte[] toStore = compress ? compress( data ) : data;
+        if ( toStore.length > maxSize ) {
+            return;
+        }
+        synchronized( this )
+        {
+            final byte[] existing = entries.put( key , toStore );
+            if ( existing != null ) {
+                size -= existing.length;
+            }
+            size += toStore.length;
+
+            final Iterator<Map.Entry<String,byte[]>> it = entries.entrySet().iterator();
+            while ( size > maxSize && it.hasNext() )
+            {
+                size -= it.next().getValue().length;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Removes all entries from this cache.
+     *
+     * <p>Statistics are not reset.</p>
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of bytes currently held by this cache.
+     *
+     * @return
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    private static byte[] compress(byte[] data)
+    {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream( data.length / 4 );
+        try ( OutputStream out = new GZIPOutputStream( result ) ) {
+            out.write( data );
+        } catch(IOException e) {
+            throw new RuntimeException("Compression failed?",e); // cannot happen
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] uncompress(byte[] data)
+    {
+        try ( InputStream in = new GZIPInputStream( new ByteArrayInputStream( data ) ) ) {
+            return StreamUtils.copyToByteArray( in );
+        } catch(IOException e) {
+            throw new RuntimeException("Decompression failed?",e); // cannot happen
+        }
+    }
+}
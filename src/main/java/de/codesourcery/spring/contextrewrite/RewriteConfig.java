@@ -16,9 +16,11 @@
 package de.codesourcery.spring.contextrewrite;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,20 +35,33 @@ import de.codesourcery.spring.contextrewrite.XMLRewrite.Rule;
 /**
  * Holds all configuration options and rules that should be applied during XML rewriting.
  *
+ * <p>A configuration may be {@link #freeze() frozen}, turning it into an immutable snapshot that can safely be shared
+ * between test classes and threads.</p>
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public class RewriteConfig 
 {
     private final List<Rule> anonRules = new ArrayList<>();
-    private final Map<String,Rule> namedRules = new HashMap<>();
+    private final Map<String,Rule> namedRules = new LinkedHashMap<>();
     
     private final Class<?> clazz;
     
     private RewriteConfig parent;
     
-    private String contextPath;
+    private List<String> contextPaths;
     private Boolean debug;
     private Boolean dumpXML;
+    private Boolean reparseXML;
+    private Boolean parallelImports;
+    private Boolean streaming;
+    private Boolean validateOnce;
+    private Boolean inheritedRulesFirst;
+    
+    // effective rules and their fingerprint, only set when frozen
+    private List<Rule> frozenRules;
+    private String frozenFingerprint;
+    private volatile boolean frozen;
     
     /**
      * Create instance.
@@ -78,9 +93,49 @@ public class RewriteConfig
     public void setParent(RewriteConfig parent) 
     {
         Validate.notNull(parent, "parent must not be NULL");
+        assertNotFrozen();
         this.parent = parent;
     }
     
+    /**
+     * Makes this configuration and all of its parents immutable.
+     * 
+     * <p>The effective rules and their fingerprint are computed once, any further attempt to modify 
+     * the configuration fails with an <code>IllegalStateException</code>.</p>
+     * 
+     * @return this instance
+     */
+    public RewriteConfig freeze() 
+    {
+        if ( ! frozen ) 
+        {
+            if ( parent != null ) {
+                parent.freeze();
+            }
+            frozenRules = Collections.unmodifiableList( computeRules() );
+            frozenFingerprint = computeRulesFingerprint( frozenRules );
+            frozen = true;
+        }
+        return this;
+    }
+    
+    /**
+     * Returns whether this configuration has been frozen.
+     * 
+     * @return
+     * @see #freeze()
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+    
+    private void assertNotFrozen() throws IllegalStateException
+    {
+        if ( frozen ) {
+            throw new IllegalStateException("Configuration"+( clazz != null ? " of class "+clazz.getName() : "" )+" is frozen and cannot be modified");
+        }
+    }
+    
     /**
      * Returns whether this configuration or any of its parents has at least one rewriting rule.
      * 
@@ -114,6 +169,7 @@ public class RewriteConfig
     public void addRule(Rule rule) throws IllegalStateException {
         
         Validate.notNull(rule, "rule must not be NULL");
+        assertNotFrozen();
         if ( rule.isIDNotSet() ) {
           anonRules.add( rule );
           return;
@@ -151,57 +207,157 @@ public class RewriteConfig
      * 3.) Recursively gather named rules from parent configurations (if any) as long as they do no clash with the ID of a named rule
      *     that has already been merged
      * </p>
+     * 
+     * <p>If {@link #isInheritedRulesFirst()} is set, the following algorithm is used instead:
+     * 
+     * 1.) Recursively gather all rules from parent configurations (if any), replacing named rules
+     *     whose ID clashes with a named rule of <b>this</b> instance by that rule
+     * 2.) Append all anonymous rules of this instance
+     * 3.) Append all remaining named rules of this instance
+     * </p>
+     * 
+     * <p>Rules of a single configuration keep the order they were added in.</p>
      *  
-     * @return
+     * @return rules, unmodifiable if this configuration has been frozen
      */
     public List<Rule> getRules() 
     {
-        final List<Rule> result = new ArrayList<>(Math.max( 1 , anonRules.size() + namedRules.size() ) );
-        
-        result.addAll( anonRules );
-        result.addAll( namedRules.values() );
+        if ( frozen ) {
+            return frozenRules;
+        }
+        return computeRules();
+    }
+    
+    private List<Rule> computeRules() 
+    {
+        if ( ! isInheritedRulesFirst() ) 
+        {
+            final List<Rule> result = new ArrayList<>(Math.max( 1 , anonRules.size() + namedRules.size() ) );
+            
+            result.addAll( anonRules );
+            result.addAll( namedRules.values() );
+            
+            final Set<String> ruleIDs = new HashSet<>( namedRules.keySet() );
+            
+            if ( parent != null ) 
+            {
+                final List<Rule> parentRules = parent.getRules();
+                parentRules.stream().filter( Rule::isIDNotSet ).forEach( result::add ); 
+                parentRules.stream().filter( Rule::isIDSet ).filter( rule -> ! ruleIDs.contains( rule.id ) ).peek( r -> ruleIDs.add( r.id ) ).forEach( result::add ); 
+            }
+            return result;
+        }
         
-        final Set<String> ruleIDs = new HashSet<>( namedRules.keySet() );
+        final List<Rule> parentRules = parent != null ? parent.getRules() : Collections.emptyList();
+        final List<Rule> result = new ArrayList<>(Math.max( 1 , parentRules.size() + anonRules.size() + namedRules.size() ) );
         
-        if ( parent != null ) 
+        final Set<String> overriddenIDs = new HashSet<>();
+        for ( Rule rule : parentRules ) 
         {
-            final List<Rule> parentRules = parent.getRules();
-            parentRules.stream().filter( Rule::isIDNotSet ).forEach( result::add ); 
-            parentRules.stream().filter( Rule::isIDSet ).filter( rule -> ! ruleIDs.contains( rule.id ) ).peek( r -> ruleIDs.add( r.id ) ).forEach( result::add ); 
+            if ( rule.isIDSet() && namedRules.containsKey( rule.id ) ) 
+            {
+                // override keeps the position of the inherited rule
+                if ( overriddenIDs.add( rule.id ) ) {
+                    result.add( namedRules.get( rule.id ) );
+                }
+            } else {
+                result.add( rule );
+            }
         }
+        result.addAll( anonRules );
+        namedRules.values().stream().filter( rule -> ! overriddenIDs.contains( rule.id ) ).forEach( result::add );
         return result;
     }
     
     /**
-     * Returns the abstract path to the XML file that should be rewritten.
-     *  
+     * Returns a stable fingerprint of the rules returned by {@link #getRules()}.
+     * 
+     * <p>Two configurations with the same fingerprint apply the same rules in the same order and thus
+     * produce the same output for the same input XML.</p>
+     * 
      * @return
-     * @throws IllegalStateException if neither this configuration nor any of its parents has a non-blank context path.
      */
-    public String getContextPath() throws IllegalStateException 
+    public String getRulesFingerprint() 
     {
-        if ( contextPath != null ) {
-            return contextPath;
+        if ( frozen ) {
+            return frozenFingerprint;
+        }
+        return computeRulesFingerprint( getRules() );
+    }
+    
+    private static String computeRulesFingerprint(List<Rule> rules) {
+        return Fingerprint.of( rules.stream().map( r -> r.fingerprint ).toArray( String[]::new ) );
+    }
+    
+    /**
+     * Returns the abstract paths to the XML files that should be rewritten.
+     *  
+     * @return paths in the order bean definitions get registered, never empty
+     * @throws IllegalStateException if neither this configuration nor any of its parents has context paths.
+     */
+    public List<String> getContextPaths() throws IllegalStateException 
+    {
+        if ( contextPaths != null ) {
+            return contextPaths;
         }
         if ( parent != null ) {
-            return parent.getContextPath(); 
+            return parent.getContextPaths(); 
         }
         throw new IllegalStateException("Context path not set?");
     }
     
+    /**
+     * Returns the abstract path to the XML file that should be rewritten.
+     *  
+     * @return the path, or all paths separated by commas if there is more than one
+     * @throws IllegalStateException if neither this configuration nor any of its parents has context paths.
+     * @see #getContextPaths()
+     */
+    public String getContextPath() throws IllegalStateException 
+    {
+        return String.join( "," , getContextPaths() );
+    }
+    
     /**
      * Returns a Spring <code>Resource</code> that can be used to retrieve the XML that should be rewritten.
      *  
      * @return
-     * @throws IllegalStateException if neither this configuration nor any of its parents has a non-blank context path.
+     * @throws IllegalStateException if neither this configuration nor any of its parents has context paths or if there
+     * is more than one context path.
+     * @see #getResources()
      */    
     public Resource getResource() throws  IllegalStateException
     {
-        final String path = getContextPath();
-        if ( path.startsWith("file:" ) ) {
-            return new FileSystemResource( path.substring("file:".length() ) );
+        final List<Resource> resources = getResources();
+        if ( resources.size() != 1 ) {
+            throw new IllegalStateException("Configuration has "+resources.size()+" context paths, use getResources()");
         }
-        return new ClassPathResource( path );
+        return resources.get(0);
+    }
+    
+    /**
+     * Returns Spring <code>Resource</code>s that can be used to retrieve the XML that should be rewritten.
+     * 
+     * <p>Paths starting with <code>file:</code> are resolved against the file system, all others (optionally starting 
+     * with <code>classpath:</code>) against the classpath.</p>
+     *  
+     * @return resources in the same order as {@link #getContextPaths()}
+     * @throws IllegalStateException if neither this configuration nor any of its parents has context paths.
+     */    
+    public List<Resource> getResources() throws  IllegalStateException
+    {
+        final List<Resource> result = new ArrayList<>();
+        for ( String path : getContextPaths() ) 
+        {
+            if ( path.startsWith("file:" ) ) {
+                result.add( new FileSystemResource( path.substring("file:".length() ) ) );
+            } else if ( path.startsWith("classpath:" ) ) {
+                result.add( new ClassPathResource( path.substring("classpath:".length() ) ) );
+            } else {
+                result.add( new ClassPathResource( path ) );
+            }
+        }
+        return result;
     }
     
     /**
@@ -213,8 +369,26 @@ public class RewriteConfig
      */
     public void setContextPath(String contextPath) 
     {
-        Validate.notBlank(contextPath, "contextPath must not be NULL or blank");
-        this.contextPath = contextPath;
+        setContextPaths( contextPath );
+    }
+    
+    /**
+     * Sets the abstract paths to the XML files that should be rewritten.
+     * 
+     * <p>All rules are applied to each of the files, a rule only needs to match in one of them.</p>
+     * 
+     * @param contextPaths context paths in the order bean definitions should be registered, never <code>null</code> or blank
+     * @throws IllegalArgumentException if no context path was given or one of them was blank
+     * @throws NullPointerException if one of the context paths was <code>null</code>
+     */
+    public void setContextPaths(String... contextPaths) 
+    {
+        Validate.notEmpty(contextPaths, "contextPaths must not be NULL or empty");
+        for ( String contextPath : contextPaths ) {
+            Validate.notBlank(contextPath, "contextPath must not be NULL or blank");
+        }
+        assertNotFrozen();
+        this.contextPaths = Collections.unmodifiableList( new ArrayList<>( Arrays.asList( contextPaths ) ) );
     }
     
     /**
@@ -225,6 +399,7 @@ public class RewriteConfig
      * @param debug
      */
     public void setDebug(boolean debug) {
+        assertNotFrozen();
         this.debug = debug;
     }
     
@@ -246,6 +421,7 @@ public class RewriteConfig
      * @param dumpXML
      */
     public void setDumpXML(boolean dumpXML) {
+        assertNotFrozen();
         this.dumpXML = dumpXML;
     }
     
@@ -259,4 +435,127 @@ public class RewriteConfig
         }
         return parent != null ? parent.isDumpXML() : false;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Set whether the rewritten XML should be serialized and re-parsed by Spring or whether
+     * the rewritten DOM should be handed to Spring directly.
+     * 
+     * @param reparseXML
+     */
+    public void setReparseXML(boolean reparseXML) {
+        assertNotFrozen();
+        this.reparseXML = reparseXML;
+    }
+    
+    /**
+     * Returns whether the rewritten XML should be serialized and re-parsed by Spring (the default).
+     * 
+     * <p>If this method returns <code>false</code>, the rewritten DOM is handed to Spring directly, skipping
+     * a full serialize/parse cycle (and XSD validation).</p>
+     * @return
+     */
+    public boolean isReparseXML() {
+        if ( reparseXML != null ) {
+            return reparseXML.booleanValue();
+        }
+        return parent != null ? parent.isReparseXML() : true;
+    }
+    
+    /**
+     * Sets whether imported XML files should be loaded and rewritten concurrently.
+     * 
+     * @param parallelImports
+     */
+    public void setParallelImports(boolean parallelImports) {
+        assertNotFrozen();
+        this.parallelImports = parallelImports;
+    }
+    
+    /**
+     * Returns whether imported XML files should be loaded and rewritten concurrently (default is <code>false</code>).
+     * 
+     * <p>The rewritten XML is the same regardless of this setting.</p>
+     * @return
+     */
+    public boolean isParallelImports() {
+        if ( parallelImports != null ) {
+            return parallelImports.booleanValue();
+        }
+        return parent != null ? parent.isParallelImports() : false;
+    }
+    
+    /**
+     * Sets whether XML should be rewritten using the streaming (StAX-based) implementation.
+     * 
+     * @param streaming
+     * @see StreamingRewrite
+     */
+    public void setStreaming(boolean streaming) {
+        assertNotFrozen();
+        this.streaming = streaming;
+    }
+    
+    /**
+     * Returns whether XML should be rewritten using the streaming (StAX-based) implementation (default is <code>false</code>).
+     * 
+     * <p>Rewriting falls back to the DOM-based implementation whenever any of the rules is not
+     * supported by the streaming implementation. Imports are always loaded sequentially when streaming.</p>
+     * @return
+     */
+    public boolean isStreaming() {
+        if ( streaming != null ) {
+            return streaming.booleanValue();
+        }
+        return parent != null ? parent.isStreaming() : false;
+    }
+    
+    /**
+     * Sets whether Spring's XSD validation should be skipped for rewritten XML that already passed validation once.
+     * 
+     * @param validateOnce
+     * @see ValidationCache
+     */
+    public void setValidateOnce(boolean validateOnce) {
+        assertNotFrozen();
+        this.validateOnce = validateOnce;
+    }
+    
+    /**
+     * Returns whether Spring's XSD validation should be skipped for rewritten XML that already passed validation once (default is <code>false</code>).
+     * 
+     * <p>Only applies when the XML is {@link #isReparseXML() re-parsed} and does not use any namespace besides <code>spring-beans</code>
+     * (whose XSD default attribute values are filled in explicitly), the first load of any given XML is always validated.</p>
+     * @return
+     */
+    public boolean isValidateOnce() {
+        if ( validateOnce != null ) {
+            return validateOnce.booleanValue();
+        }
+        return parent != null ? parent.isValidateOnce() : false;
+    }
+    
+    /**
+     * Sets whether inherited rules should be applied before the rules of this configuration.
+     * 
+     * @param inheritedRulesFirst
+     * @see #getRules()
+     */
+    public void setInheritedRulesFirst(boolean inheritedRulesFirst) {
+        assertNotFrozen();
+        this.inheritedRulesFirst = inheritedRulesFirst;
+    }
+    
+    /**
+     * Returns whether inherited rules should be applied before the rules of this configuration (default is <code>false</code>).
+     * 
+     * <p>Configurations sharing a parent then also share a common prefix of rules, which lets the {@link SnapshotCache} 
+     * re-use the XML rewritten by the inherited rules.</p>
+     * @return
+     */
+    public boolean isInheritedRulesFirst() {
+        if ( inheritedRulesFirst != null ) {
+            return inheritedRulesFirst.booleanValue();
+        }
+        return parent != null ? parent.isInheritedRulesFirst() : false;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+/**
+ * Receives diagnostics about XML rewriting.
+ *
+ * <p>Besides the built-in {@link RewriteStatistics}, the bootstrapper picks up all implementations registered
+ * through <code>META-INF/services/de.codesourcery.spring.contextrewrite.RewriteListener</code> (see <code>java.util.ServiceLoader</code>).
+ * Output is only printed to <code>System.out</code> if no such implementation is found.</p>
+ *
+ * <p>Implementations must be thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public interface RewriteListener
+{
+    /**
+     * Phases of a context load.
+     */
+    public enum Phase
+    {
+        /**
+         * Gathering rewrite annotations from the test class hierarchy.
+         */
+        ANNOTATION_PARSING,
+        /**
+         * Reading and parsing XML files (the XML file and all files it imports).
+         */
+        RESOURCE_LOADING,
+        /**
+         * Inlining imported files into the importing ones.
+         */
+        IMPORT_EXPANSION,
+        /**
+         * Finding and applying rule matches.
+         */
+        RULE_EVALUATION,
+        /**
+         * Converting the rewritten DOM into the form that is handed to Spring.
+         */
+        SERIALIZATION,
+        /**
+         * Spring parsing the rewritten XML and registering bean definitions.
+         */
+        BEAN_DEFINITION_REGISTRATION;
+    }
+
+    /**
+     * Invoked after a context's XML has been rewritten and its bean definitions have been registered.
+     *
+     * @param metrics
+     */
+    public default void contextLoaded(RewriteMetrics metrics) {
+    }
+
+    /**
+     * Invoked for debug output if debugging is enabled through {@link RewriteConfig#isDebug()}.
+     *
+     * @param message
+     */
+    public default void debug(String message) {
+    }
+
+    /**
+     * Invoked for informational output that is reported regardless of {@link RewriteConfig#isDebug()}, like the summary of pruned beans.
+     *
+     * @param message
+     */
+    public default void info(String message) {
+    }
+}
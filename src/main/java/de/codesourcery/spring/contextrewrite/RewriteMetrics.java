@@ -0,0 +1,191 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.lang3.Validate;
+
+import de.codesourcery.spring.contextrewrite.RewriteListener.Phase;
+
+/**
+ * Timings and sizes gathered while loading a single context.
+ *
+ * <p>Instances are thread-safe. When imports are loaded in parallel, the time spent in each phase is summed up over all threads
+ * and may exceed the wall-clock time of the context load. A streaming rewrite reports its single pass as {@link Phase#RULE_EVALUATION}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class RewriteMetrics
+{
+    private final String name;
+
+    private final AtomicLongArray nanos = new AtomicLongArray( Phase.values().length );
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong filesLoaded = new AtomicLong();
+    private final AtomicLong nodesMatched = new AtomicLong();
+    private final AtomicLong nodesInlined = new AtomicLong();
+    private volatile boolean cacheHit;
+
+    /**
+     * Create instance.
+     *
+     * @param name name of the context being loaded, usually the context path
+     */
+    public RewriteMetrics(String name)
+    {
+        Validate.notNull(name, "name must not be NULL");
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds to the time spent in a phase.
+     *
+     * @param phase
+     * @param startNanos start time as returned by <code>System.nanoTime()</code>
+     */
+    public void addTimeSince(Phase phase,long startNanos) {
+        addTime( phase , System.nanoTime() - startNanos );
+    }
+
+    public void addTime(Phase phase,long nanos) {
+        this.nanos.addAndGet( phase.ordinal() , nanos );
+    }
+
+    /**
+     * Returns the time spent in a phase.
+     *
+     * @param phase
+     * @return time in nanoseconds
+     */
+    public long getNanos(Phase phase) {
+        return nanos.get( phase.ordinal() );
+    }
+
+    /**
+     * Returns the time spent in all phases.
+     *
+     * @return time in nanoseconds
+     */
+    public long getTotalNanos()
+    {
+        long result = 0;
+        for ( int i = 0 ; i < nanos.length() ; i++ ) {
+            result += nanos.get( i );
+        }
+        return result;
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead.addAndGet( bytes );
+    }
+
+    /**
+     * Returns the number of source XML bytes loaded.
+     *
+     * @return
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public void addBytesWritten(long bytes) {
+        bytesWritten.addAndGet( bytes );
+    }
+
+    /**
+     * Returns the total size of the rewritten XML of all context locations in bytes, zero if the rewritten DOMs were handed to Spring directly.
+     *
+     * @return
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public void fileLoaded() {
+        filesLoaded.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of XML files loaded.
+     *
+     * @return
+     */
+    public long getFilesLoaded() {
+        return filesLoaded.get();
+    }
+
+    public void addNodesMatched(long count) {
+        nodesMatched.addAndGet( count );
+    }
+
+    /**
+     * Returns the number of nodes rules were applied to.
+     *
+     * @return
+     */
+    public long getNodesMatched() {
+        return nodesMatched.get();
+    }
+
+    public void addNodesInlined(long count) {
+        nodesInlined.addAndGet( count );
+    }
+
+    /**
+     * Returns the number of nodes copied from imported files into importing ones.
+     *
+     * @return
+     */
+    public long getNodesInlined() {
+        return nodesInlined.get();
+    }
+
+    public void setCacheHit() {
+        cacheHit = true;
+    }
+
+    /**
+     * Returns whether the rewritten XML was taken from a cache.
+     *
+     * @return
+     */
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder result = new StringBuilder( name ).append(": ");
+        for ( Phase phase : Phase.values() ) {
+            result.append( phase ).append('=').append( TimeUnit.NANOSECONDS.toMillis( getNanos( phase ) ) ).append(" ms, ");
+        }
+        return result.append("bytesRead=").append( getBytesRead() )
+                .append(", bytesWritten=").append( getBytesWritten() )
+                .append(", filesLoaded=").append( getFilesLoaded() )
+                .append(", nodesMatched=").append( getNodesMatched() )
+                .append(", nodesInlined=").append( getNodesInlined() )
+                .append(", cacheHit=").append( isCacheHit() ).toString();
+    }
+}
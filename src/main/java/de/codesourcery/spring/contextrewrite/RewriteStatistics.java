@@ -0,0 +1,231 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import de.codesourcery.spring.contextrewrite.RewriteListener.Phase;
+
+/**
+ * {@link RewriteListener} that aggregates the metrics of all context loads and prints debug and informational output to <code>System.out</code>.
+ *
+ * <p>Printing can be turned off, the bootstrapper does so if any other listener has been registered.</p>
+ *
+ * <p>The process-wide instance returned by {@link #getInstance()} is registered with the platform MBean server
+ * as {@link #OBJECT_NAME}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class RewriteStatistics implements RewriteListener, RewriteStatisticsMBean
+{
+    public static final String OBJECT_NAME = "de.codesourcery.spring.contextrewrite:type=RewriteStatistics";
+
+    private static final int SLOWEST_COUNT = 10;
+
+    // guarded by 'this'
+    private long contextLoads;
+    private long cacheHits;
+    private final long[] nanos = new long[ Phase.values().length ];
+    private long bytesRead;
+    private long bytesWritten;
+    private long filesLoaded;
+    private long nodesMatched;
+    private long nodesInlined;
+    private final List<RewriteMetrics> slowest = new ArrayList<>();
+
+    private volatile boolean printToSystemOut = true;
+
+    private static final class Holder
+    {
+        public static final RewriteStatistics INSTANCE = register( new RewriteStatistics() );
+
+        private static RewriteStatistics register(RewriteStatistics statistics)
+        {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean( statistics , new ObjectName( OBJECT_NAME ) );
+            }
+            catch(JMException e) {
+                // most likely already registered by another class loader, statistics are still available programmatically
+                System.err.println("WARNING: Failed to register "+OBJECT_NAME+" MBean: "+e.getMessage());
+            }
+            return statistics;
+        }
+    }
+
+    /**
+     * Returns the process-wide instance, registering it with the platform MBean server on first use.
+     *
+     * @return
+     */
+    public static RewriteStatistics getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    @Override
+    public synchronized void contextLoaded(RewriteMetrics metrics)
+    {
+        contextLoads++;
+        if ( metrics.isCacheHit() ) {
+            cacheHits++;
+        }
+        for ( Phase phase : Phase.values() ) {
+            nanos[ phase.ordinal() ] += metrics.getNanos( phase );
+        }
+        bytesRead += metrics.getBytesRead();
+        bytesWritten += metrics.getBytesWritten();
+        filesLoaded += metrics.getFilesLoaded();
+        nodesMatched += metrics.getNodesMatched();
+        nodesInlined += metrics.getNodesInlined();
+
+        slowest.add( metrics );
+        slowest.sort( Comparator.comparingLong( RewriteMetrics::getTotalNanos ).reversed() );
+        if ( slowest.size() > SLOWEST_COUNT ) {
+            slowest.remove( SLOWEST_COUNT );
+        }
+    }
+
+    @Override
+    public void debug(String message) 
+    {
+        if ( printToSystemOut ) {
+            System.out.println("DEBUG: "+message);
+        }
+    }
+
+    @Override
+    public void info(String message)
+    {
+        if ( printToSystemOut ) {
+            System.out.println("INFO: "+message);
+        }
+    }
+
+    /**
+     * Sets whether output should be printed to <code>System.out</code>.
+     *
+     * @param printToSystemOut
+     */
+    public void setPrintToSystemOut(boolean printToSystemOut) {
+        this.printToSystemOut = printToSystemOut;
+    }
+
+    private synchronized long millis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis( nanos[ phase.ordinal() ] );
+    }
+
+    @Override
+    public synchronized long getContextLoads() {
+        return contextLoads;
+    }
+
+    @Override
+    public synchronized long getCacheHits() {
+        return cacheHits;
+    }
+
+    @Override
+    public synchronized long getTotalMillis()
+    {
+        long result = 0;
+        for ( long value : nanos ) {
+            result += value;
+        }
+        return TimeUnit.NANOSECONDS.toMillis( result );
+    }
+
+    @Override
+    public long getAnnotationParsingMillis() {
+        return millis( Phase.ANNOTATION_PARSING );
+    }
+
+    @Override
+    public long getResourceLoadingMillis() {
+        return millis( Phase.RESOURCE_LOADING );
+    }
+
+    @Override
+    public long getImportExpansionMillis() {
+        return millis( Phase.IMPORT_EXPANSION );
+    }
+
+    @Override
+    public long getRuleEvaluationMillis() {
+        return millis( Phase.RULE_EVALUATION );
+    }
+
+    @Override
+    public long getSerializationMillis() {
+        return millis( Phase.SERIALIZATION );
+    }
+
+    @Override
+    public long getBeanDefinitionRegistrationMillis() {
+        return millis( Phase.BEAN_DEFINITION_REGISTRATION );
+    }
+
+    @Override
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public synchronized long getFilesLoaded() {
+        return filesLoaded;
+    }
+
+    @Override
+    public synchronized long getNodesMatched() {
+        return nodesMatched;
+    }
+
+    @Override
+    public synchronized long getNodesInlined() {
+        return nodesInlined;
+    }
+
+    @Override
+    public synchronized String[] getSlowestContextLoads() {
+        return slowest.stream().map( RewriteMetrics::toString ).toArray( String[]::new );
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        contextLoads = 0;
+        cacheHits = 0;
+        for ( int i = 0 ; i < nanos.length ; i++ ) {
+            nanos[i] = 0;
+        }
+        bytesRead = 0;
+        bytesWritten = 0;
+        filesLoaded = 0;
+        nodesMatched = 0;
+        nodesInlined = 0;
+        slowest.clear();
+    }
+}
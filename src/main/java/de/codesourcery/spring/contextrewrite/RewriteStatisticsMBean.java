@@ -0,0 +1,63 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+/**
+ * JMX view of {@link RewriteStatistics}.
+ *
+ * <p>All times are in milliseconds and summed up over all context loads.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public interface RewriteStatisticsMBean
+{
+    public long getContextLoads();
+
+    public long getCacheHits();
+
+    public long getTotalMillis();
+
+    public long getAnnotationParsingMillis();
+
+    public long getResourceLoadingMillis();
+
+    public long getImportExpansionMillis();
+
+    public long getRuleEvaluationMillis();
+
+    public long getSerializationMillis();
+
+    public long getBeanDefinitionRegistrationMillis();
+
+    public long getBytesRead();
+
+    public long getBytesWritten();
+
+    public long getFilesLoaded();
+
+    public long getNodesMatched();
+
+    public long getNodesInlined();
+
+    /**
+     * Returns the slowest context loads, slowest first.
+     *
+     * @return
+     */
+    public String[] getSlowestContextLoads();
+
+    public void reset();
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.lang3.Validate;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.w3c.dom.Document;
+
+/**
+ * Spring <code>Resource</code> that provides the result of rewriting some XML.
+ *
+ * <p>The rewritten XML is only serialized when somebody actually asks for an <code>InputStream</code>,
+ * callers that are able to process a DOM directly should use {@link #getNamespaceAwareDocument()} instead.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class RewrittenResource extends AbstractResource
+{
+    private final Resource source;
+
+    // guarded by 'this'
+    private final Document document;
+    private byte[] data;
+    private Boolean onlyBeansNamespace;
+
+    /**
+     * Create instance.
+     *
+     * @param source the resource the XML was originally loaded from, never <code>null</code>
+     * @param document the rewritten XML, never <code>null</code>. The document must not be modified afterwards.
+     */
+    public RewrittenResource(Resource source,Document document)
+    {
+        Validate.notNull(source, "source must not be NULL");
+        Validate.notNull(document, "document must not be NULL");
+        this.source = source;
+        this.document = document;
+    }
+
+    /**
+     * Create instance from already serialized XML.
+     *
+     * @param source the resource the XML was originally loaded from, never <code>null</code>
+     * @param data the rewritten XML, never <code>null</code>
+     */
+    public RewrittenResource(Resource source,byte[] data)
+    {
+        Validate.notNull(source, "source must not be NULL");
+        Validate.notNull(data, "data must not be NULL");
+        this.source = source;
+        this.document = null;
+        this.data = data;
+    }
+
+    /**
+     * Returns the rewritten XML.
+     *
+     * @return
+     * @throws IOException if serializing the XML failed
+     */
+    public synchronized byte[] getData() throws IOException
+    {
+        if ( data == null )
+        {
+            try {
+                data = XMLRewrite.toByteArray( document , false );
+            } catch (Exception e) {
+                throw new IOException("Failed to serialize XML rewritten from "+source,e);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns whether the rewritten XML has already been serialized.
+     *
+     * @return
+     */
+    public synchronized boolean isSerialized() {
+        return data != null;
+    }
+
+    /**
+     * Returns a newly created, namespace-aware DOM of the rewritten XML.
+     *
+     * <p>The returned document is suitable for passing it to <code>XmlBeanDefinitionReader#registerBeanDefinitions(Document,Resource)</code>.
+     * Note that this bypasses XSD validation.</p>
+     *
+     * @return
+     * @throws IOException if parsing the serialized XML failed
+     */
+    public synchronized Document getNamespaceAwareDocument() throws IOException
+    {
+        return DocumentConverter.toNamespaceAware( document != null ? document : parseData() );
+    }
+
+    /**
+     * Returns whether the rewritten XML only uses the <code>spring-beans</code> namespace.
+     *
+     * @return
+     * @throws IOException if parsing the serialized XML failed
+     * @see DocumentConverter#usesOnlyBeansNamespace(Document)
+     */
+    public synchronized boolean usesOnlyBeansNamespace() throws IOException
+    {
+        if ( onlyBeansNamespace == null ) {
+            onlyBeansNamespace = DocumentConverter.usesOnlyBeansNamespace( document != null ? document : parseData() );
+        }
+        return onlyBeansNamespace.booleanValue();
+    }
+
+    private Document parseData() throws IOException
+    {
+        try {
+            return XMLRewrite.parseXML( new ByteArrayInputStream( data ) );
+        } catch (Exception e) {
+            throw new IOException("Failed to parse XML rewritten from "+source,e);
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "Spring XML filtered from "+source;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        return new ByteArrayInputStream( getData() );
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Index of test classes using XML rewriting, written by {@link RewriteAnnotationProcessor} at compile time.
+ *
+ * <p>There is one entry per concrete class that has a <code>@ContextConfiguration</code> annotation on itself or any
+ * of its super classes, stored in {@link #DIRECTORY} below the class output directory and named after the class's binary name.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class RuleIndex
+{
+    /**
+     * Location of index entries, relative to the class output directory.
+     */
+    public static final String DIRECTORY = "META-INF/contextrewrite-index";
+
+    private static final String CONTEXT_PATH = "contextPath";
+    private static final String FINGERPRINT = "fingerprint";
+
+    /**
+     * Index entry of a single class.
+     */
+    static final class Entry
+    {
+        public final String className;
+        public final String contextPath;
+        /**
+         * Fingerprint of all rewrite annotations in the class hierarchy. Classes with the same fingerprint
+         * have the same rewrite configuration.
+         */
+        public final String fingerprint;
+
+        public Entry(String className,String contextPath,String fingerprint)
+        {
+            Validate.notBlank(className, "className must not be NULL or blank");
+            Validate.notNull(contextPath, "contextPath must not be NULL");
+            Validate.notBlank(fingerprint, "fingerprint must not be NULL or blank");
+            this.className = className;
+            this.contextPath = contextPath;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public String toString() {
+            return className+" ("+contextPath+", "+fingerprint+")";
+        }
+    }
+
+    private RuleIndex() {
+    }
+
+    /**
+     * Writes an index entry.
+     *
+     * @param entry
+     * @param out
+     * @throws IOException
+     */
+    public static void write(Entry entry,OutputStream out) throws IOException
+    {
+        final Properties properties = new Properties();
+        properties.setProperty( CONTEXT_PATH , entry.contextPath );
+        properties.setProperty( FINGERPRINT , entry.fingerprint );
+        properties.store( out , entry.className );
+    }
+
+    /**
+     * Reads all index entries below a class output directory.
+     *
+     * @param classesDirectory
+     * @return index entries sorted by class name, empty if there is no index
+     * @throws IOException
+     */
+    public static List<Entry> read(File classesDirectory) throws IOException
+    {
+        Validate.notNull(classesDirectory, "classesDirectory must not be NULL");
+        final Path directory = new File( classesDirectory , DIRECTORY ).toPath();
+        if ( ! Files.isDirectory( directory ) ) {
+            return new ArrayList<>();
+        }
+        final List<Path> files;
+        try ( Stream<Path> stream = Files.list( directory ) ) {
+            files = stream.filter( Files::isRegularFile ).sorted().collect( Collectors.toList() );
+        }
+        final List<Entry> result = new ArrayList<>();
+        for ( Path file : files )
+        {
+            final Properties properties = new Properties();
+            try ( InputStream in = Files.newInputStream( file ) ) {
+                properties.load( in );
+            }
+            final String contextPath = properties.getProperty( CONTEXT_PATH );
+            final String fingerprint = properties.getProperty( FINGERPRINT );
+            if ( contextPath == null || fingerprint == null ) {
+                throw new IOException("Malformed rule index entry: "+file);
+            }
+            result.add( new Entry( file.getFileName().toString() , contextPath , fingerprint ) );
+        }
+        return result;
+    }
+}
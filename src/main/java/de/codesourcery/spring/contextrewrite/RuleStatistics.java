@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+import de.codesourcery.spring.contextrewrite.XMLRewrite.Rule;
+
+/**
+ * Records what individual rules cost, aggregated over all test classes.
+ *
+ * <p>Rules are identified by declaring class, annotation type, ID and XPath expression, so a rule inherited
+ * by many test classes is reported once with the total cost across all of them.</p>
+ *
+ * <p>Recording is enabled by setting the {@link #REPORT_FILE_PROPERTY} system property, the report is then written
+ * to that file when the JVM shuts down.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class RuleStatistics
+{
+    /**
+     * System property holding the file the report gets written to at JVM shutdown.
+     */
+    public static final String REPORT_FILE_PROPERTY = "contextrewrite.ruleReport.file";
+
+    private static final Optional<RuleStatistics> INSTANCE = createFromSystemProperties();
+
+    private final ConcurrentMap<String,Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Aggregated cost of a single rule.
+     */
+    public static final class Entry
+    {
+        public final String declaringClass;
+        public final String annotationType;
+        public final String id;
+        public final String xpath;
+
+        private final LongAdder evaluations = new LongAdder();
+        private final LongAdder evaluationNanos = new LongAdder();
+        private final LongAdder nodesMatched = new LongAdder();
+        private final LongAdder applyNanos = new LongAdder();
+
+        private Entry(Rule rule)
+        {
+            this.declaringClass = rule.declaringClass != null ? rule.declaringClass.getName() : "<unknown>";
+            this.annotationType = "@"+rule.annotationType.getSimpleName();
+            this.id = rule.isIDSet() ? rule.id : "";
+            this.xpath = rule.xpath;
+        }
+
+        public long getEvaluations() {
+            return evaluations.sum();
+        }
+
+        public long getEvaluationNanos() {
+            return evaluationNanos.sum();
+        }
+
+        public long getNodesMatched() {
+            return nodesMatched.sum();
+        }
+
+        public long getApplyNanos() {
+            return applyNanos.sum();
+        }
+
+        /**
+         * Returns the time spent evaluating and applying this rule.
+         *
+         * @return time in nanoseconds
+         */
+        public long getTotalNanos() {
+            return getEvaluationNanos() + getApplyNanos();
+        }
+    }
+
+    private static Optional<RuleStatistics> createFromSystemProperties()
+    {
+        final String file = System.getProperty( REPORT_FILE_PROPERTY );
+        if ( StringUtils.isBlank( file ) ) {
+            return Optional.empty();
+        }
+        final RuleStatistics statistics = new RuleStatistics();
+        Runtime.getRuntime().addShutdownHook( new Thread( () ->
+        {
+            try {
+                statistics.writeReport( new File( file.trim() ) );
+            } catch(IOException e) {
+                System.err.println("ERROR: Failed to write rule report to "+file+": "+e.getMessage());
+            }
+        } , "contextrewrite-rule-report" ) );
+        return Optional.of( statistics );
+    }
+
+    /**
+     * Returns the process-wide instance configured through the {@link #REPORT_FILE_PROPERTY} system property.
+     *
+     * @return statistics or an empty optional if no report file has been configured
+     */
+    public static Optional<RuleStatistics> fromSystemProperties() {
+        return INSTANCE;
+    }
+
+    private Entry entry(Rule rule) {
+        return entries.computeIfAbsent( rule.getKey() , key -> new Entry( rule ) );
+    }
+
+    /**
+     * Records the evaluation of a rule's XPath expression.
+     *
+     * @param rule
+     * @param nanos
+     * @param nodesMatched
+     */
+    public void evaluated(Rule rule,long nanos,int nodesMatched)
+    {
+        final Entry entry = entry( rule );
+        entry.evaluations.increment();
+        entry.evaluationNanos.add( nanos );
+        entry.nodesMatched.add( nodesMatched );
+    }
+
+    /**
+     * Records applying a rule to all nodes it matched.
+     *
+     * @param rule
+     * @param nanos
+     */
+    public void applied(Rule rule,long nanos) {
+        entry( rule ).applyNanos.add( nanos );
+    }
+
+    /**
+     * Returns all rules recorded so far, most expensive first.
+     *
+     * @return
+     */
+    public List<Entry> getEntries()
+    {
+        // snapshot costs first, entries may get updated concurrently while sorting
+        final Map<Entry,Long> totals = new IdentityHashMap<>();
+        entries.values().forEach( entry -> totals.put( entry , entry.getTotalNanos() ) );
+        final List<Entry> result = new ArrayList<>( totals.keySet() );
+        result.sort( (a,b) -> Long.compare( totals.get( b ) , totals.get( a ) ) );
+        return result;
+    }
+
+    /**
+     * Writes a tab-separated report of all rules recorded so far, most expensive first.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeReport(File file) throws IOException
+    {
+        Validate.notNull(file, "file must not be NULL");
+        if ( file.getParentFile() != null ) {
+            Files.createDirectories( file.getParentFile().toPath() );
+        }
+        try ( PrintWriter out = new PrintWriter( Files.newBufferedWriter( file.toPath() , StandardCharsets.UTF_8 ) ) )
+        {
+            out.println("total_ms\tevaluations\tevaluation_ms\tnodes_matched\tapply_ms\tdeclaring_class\tannotation\tid\txpath");
+            for ( Entry entry : getEntries() )
+            {
+                out.println( millis( entry.getTotalNanos() )+"\t"+entry.getEvaluations()+"\t"+millis( entry.getEvaluationNanos() )+"\t"+
+                        entry.getNodesMatched()+"\t"+millis( entry.getApplyNanos() )+"\t"+
+                        entry.declaringClass+"\t"+entry.annotationType+"\t"+entry.id+"\t"+entry.xpath );
+            }
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format( Locale.ROOT , "%.3f" , nanos / (double) TimeUnit.MILLISECONDS.toNanos( 1 ) );
+    }
+}
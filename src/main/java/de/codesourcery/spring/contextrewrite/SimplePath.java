@@ -0,0 +1,228 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed XPath expression from the subset of XPath that can be evaluated without building a DOM.
+ *
+ * <p>Supported are absolute paths consisting of child steps only, where each step is either an element name or <code>*</code>,
+ * optionally followed by any number of attribute equality predicates. The path may end with a step that selects
+ * a single, named attribute. Names must not have a namespace prefix.</p>
+ *
+ * Examples:
+ * <pre>
+ * /beans/bean[@id='settingsResource']
+ * /beans/bean[@id='settingsResource'][@class="java.lang.String"]/constructor-arg/@value
+ * /beans/*[@id='dataSource']
+ * </pre>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class SimplePath
+{
+    private static final String NAME = "[A-Za-z_][\\w.-]*";
+
+    private static final Pattern STEP = Pattern.compile( "/("+NAME+"|\\*)((?:\\[\\s*@"+NAME+"\\s*=\\s*(?:'[^']*'|\"[^\"]*\")\\s*\\])*)" );
+    private static final Pattern PREDICATE = Pattern.compile( "\\[\\s*@("+NAME+")\\s*=\\s*(?:'([^']*)'|\"([^\"]*)\")\\s*\\]" );
+    private static final Pattern ATTRIBUTE = Pattern.compile( "/@("+NAME+")" );
+
+    /**
+     * A single location step.
+     */
+    public static final class Step
+    {
+        /**
+         * Element name or <code>*</code>.
+         */
+        public final String name;
+        /**
+         * Attribute values the element must have.
+         */
+        public final Map<String,String> predicates;
+
+        private Step(String name,Map<String,String> predicates)
+        {
+            this.name = name;
+            this.predicates = Collections.unmodifiableMap( predicates );
+        }
+
+        public boolean isWildcard() {
+            return "*".equals( name );
+        }
+
+        /**
+         * Check whether an element matches this step.
+         *
+         * @param elementName
+         * @param attributes the element's attributes
+         * @return
+         */
+        public boolean matches(String elementName,Map<String,String> attributes)
+        {
+            if ( ! isWildcard() && ! name.equals( elementName ) ) {
+                return false;
+            }
+            for ( Map.Entry<String,String> predicate : predicates.entrySet() )
+            {
+                if ( ! predicate.getValue().equals( attributes.get( predicate.getKey() ) ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns whether no element can possibly match both this and another step.
+         *
+         * @param other
+         * @return
+         */
+        public boolean isDisjoint(Step other)
+        {
+            if ( ! isWildcard() && ! other.isWildcard() && ! name.equals( other.name ) ) {
+                return true;
+            }
+            for ( Map.Entry<String,String> predicate : predicates.entrySet() )
+            {
+                final String otherValue = other.predicates.get( predicate.getKey() );
+                if ( otherValue != null && ! otherValue.equals( predicate.getValue() ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString()
+        {
+            final StringBuilder result = new StringBuilder( name );
+            predicates.forEach( (key,value) -> 
+            {
+                final char quote = value.indexOf('\'') != -1 ? '"' : '\'';
+                result.append("[@").append( key ).append('=').append( quote ).append( value ).append( quote ).append(']');
+            });
+            return result.toString();
+        }
+    }
+
+    public final String xpath;
+    public final List<Step> steps;
+    /**
+     * Name of the selected attribute or <code>null</code> if this path selects elements.
+     */
+    public final String attribute;
+
+    private SimplePath(String xpath,List<Step> steps,String attribute)
+    {
+        this.xpath = xpath;
+        this.steps = Collections.unmodifiableList( steps );
+        this.attribute = attribute;
+    }
+
+    /**
+     * Parse an XPath expression.
+     *
+     * @param xpath
+     * @return parsed path or an empty optional if the expression is not part of the supported subset
+     */
+    public static Optional<SimplePath> parse(String xpath)
+    {
+        if ( xpath == null ) {
+            return Optional.empty();
+        }
+        final String trimmed = xpath.trim();
+        final List<Step> steps = new ArrayList<>();
+        final Matcher step = STEP.matcher( trimmed );
+        int offset = 0;
+        while ( step.find( offset ) && step.start() == offset && ! trimmed.startsWith( "/@" , offset ) )
+        {
+            final Map<String,String> predicates = new LinkedHashMap<>();
+            final Matcher predicate = PREDICATE.matcher( step.group( 2 ) );
+            while ( predicate.find() )
+            {
+                final String value = predicate.group( 2 ) != null ? predicate.group( 2 ) : predicate.group( 3 );
+                if ( predicates.containsKey( predicate.group( 1 ) ) ) {
+                    return Optional.empty();
+                }
+                predicates.put( predicate.group( 1 ) , value );
+            }
+            steps.add( new Step( step.group( 1 ) , predicates ) );
+            offset = step.end();
+        }
+        if ( steps.isEmpty() ) {
+            return Optional.empty();
+        }
+        if ( offset == trimmed.length() ) {
+            return Optional.of( new SimplePath( xpath , steps , null ) );
+        }
+        final Matcher attribute = ATTRIBUTE.matcher( trimmed );
+        if ( attribute.find( offset ) && attribute.start() == offset && attribute.end() == trimmed.length() ) {
+            return Optional.of( new SimplePath( xpath , steps , attribute.group( 1 ) ) );
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Returns whether this path selects an attribute rather than elements.
+     *
+     * @return
+     */
+    public boolean isAttributePath() {
+        return attribute != null;
+    }
+
+    /**
+     * Returns the number of element steps.
+     *
+     * @return
+     */
+    public int depth() {
+        return steps.size();
+    }
+
+    /**
+     * Returns whether an element matched by one of the paths may be the same as or an ancestor of an element matched by the other.
+     *
+     * <p>Attribute steps are ignored.</p>
+     *
+     * @param other
+     * @return
+     */
+    public boolean mayOverlap(SimplePath other)
+    {
+        for ( int i = 0 , len = Math.min( depth() , other.depth() ) ; i < len ; i++ )
+        {
+            if ( steps.get( i ).isDisjoint( other.steps.get( i ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return xpath;
+    }
+}
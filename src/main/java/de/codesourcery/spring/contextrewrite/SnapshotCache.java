@@ -0,0 +1,340 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.w3c.dom.Document;
+
+import de.codesourcery.spring.contextrewrite.XMLRewrite.Rule;
+
+/**
+ * In-memory cache of XML files that have been rewritten by a prefix of a rule list, shared by all test classes running in the same JVM.
+ *
+ * <p>Test classes usually inherit most of their rules from a common base class, so their rule lists share a long prefix
+ * if inherited rules are applied first (see {@link RewriteConfig#isInheritedRulesFirst()}). For each source file, this cache keeps a trie whose edges are rule fingerprints
+ * and whose nodes may hold a snapshot of the file after applying all rules on the path to the node. Rewriting a file then starts
+ * from a copy of the deepest snapshot matching the rule list and only needs to apply the remaining rules.</p>
+ *
+ * <p>Snapshots are identified by the source file's URL and content hash, so a changed file never matches snapshots of
+ * its previous version.</p>
+ *
+ * <p>The cache is bounded by the estimated memory used by all snapshots, the least recently used snapshot gets evicted first. 
+ * The memory used by a DOM is estimated from the size of the XML it was parsed from, see {@link #estimateSize(long)}. The size of the
+ * process-wide instance returned by {@link #getInstance()} is configured through the {@link #MAX_SIZE_PROPERTY} system property,
+ * zero disables it.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class SnapshotCache
+{
+    /**
+     * System property holding the max. estimated number of bytes the snapshots in the process-wide cache may use.
+     */
+    public static final String MAX_SIZE_PROPERTY = "contextrewrite.snapshotCache.maxSize";
+
+    public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Rough number of bytes a DOM uses per byte of the XML it was parsed from.
+     */
+    private static final int DOM_BYTES_PER_XML_BYTE = 10;
+
+    private static final SnapshotCache INSTANCE = new SnapshotCache( getMaxSizeFromSystemProperties() );
+
+    private final long maxSize;
+
+    // guarded by 'this'
+    private final Map<String,Node> roots = new HashMap<>();
+    private final LinkedHashMap<Node,Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true );
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * A rewritten XML file.
+     */
+    public static final class Snapshot
+    {
+        /**
+         * The rewritten XML, owned by the caller and free to be modified.
+         */
+        public final Document document;
+        /**
+         * Number of rules that have been applied.
+         */
+        public final int ruleCount;
+        /**
+         * Indices of the rules that matched at least one node.
+         */
+        public final BitSet matchedRules;
+        /**
+         * Number of nodes rules were applied to.
+         */
+        public final long nodesMatched;
+        /**
+         * Estimated number of bytes used by the document.
+         */
+        public final long size;
+
+        public Snapshot(Document document, int ruleCount, BitSet matchedRules, long nodesMatched, long size)
+        {
+            Validate.notNull(document, "document must not be NULL");
+            Validate.notNull(matchedRules, "matchedRules must not be NULL");
+            Validate.isTrue( size >= 0 , "size must be >= 0");
+            this.document = document;
+            this.ruleCount = ruleCount;
+            this.matchedRules = matchedRules;
+            this.nodesMatched = nodesMatched;
+            this.size = size;
+        }
+
+        private Snapshot copy()
+        {
+            // deferred DOM implementations are not safe for concurrent reads
+            synchronized( document ) {
+                return new Snapshot( (Document) document.cloneNode( true ) , ruleCount , (BitSet) matchedRules.clone() , nodesMatched , size );
+            }
+        }
+    }
+
+    private static final class Node
+    {
+        public final String source;
+        public final Node parent;
+        public final String fingerprint;
+        public final Map<String,Node> children = new HashMap<>(1);
+        public Snapshot snapshot; // must never be modified
+
+        public Node(String source,Node parent,String fingerprint)
+        {
+            this.source = source;
+            this.parent = parent;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param maxSize max. estimated number of bytes the snapshots in this cache may use, zero disables the cache
+     */
+    public SnapshotCache(long maxSize)
+    {
+        Validate.isTrue( maxSize >= 0 , "maxSize must be >= 0");
+        this.maxSize = maxSize;
+    }
+
+    private static long getMaxSizeFromSystemProperties()
+    {
+        final String value = System.getProperty( MAX_SIZE_PROPERTY );
+        return StringUtils.isBlank( value ) ? DEFAULT_MAX_SIZE : Long.parseLong( value.trim() );
+    }
+
+    /**
+     * Estimates the number of bytes used by a DOM.
+     *
+     * @param xmlBytes size of the XML the DOM was parsed from
+     * @return
+     */
+    public static long estimateSize(long xmlBytes) {
+        return xmlBytes * DOM_BYTES_PER_XML_BYTE;
+    }
+
+    /**
+     * Returns whether a snapshot of the given size would be stored at all.
+     *
+     * <p>Callers should check this before copying a document to avoid needless copies.</p>
+     *
+     * @param size estimated size of the snapshot
+     * @return
+     */
+    public boolean accepts(long size) {
+        return size <= maxSize && maxSize > 0;
+    }
+
+    /**
+     * Returns the process-wide cache instance.
+     *
+     * @return
+     */
+    public static SnapshotCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a copy of the deepest snapshot whose rules are a prefix of the given rules.
+     *
+     * @param source identifies the source file and its content
+     * @param rules
+     * @return snapshot or an empty optional if no snapshot matches
+     */
+    public Optional<Snapshot> get(String source,List<Rule> rules)
+    {
+        Validate.notNull(source, "source must not be NULL");
+        Validate.notNull(rules, "rules must not be NULL");
+
+        Snapshot deepest = null;
+        synchronized( this )
+        {
+            Node node = roots.get( source );
+            for ( int i = 0 , len = rules.size() ; node != null && i < len ; i++ )
+            {
+                node = node.children.get( rules.get(i).fingerprint );
+                if ( node != null && node.snapshot != null ) {
+                    deepest = node.snapshot;
+                    snapshots.get( node ); // update LRU order
+                }
+            }
+            if ( deepest == null ) {
+                misses++;
+                return Optional.empty();
+            }
+            hits++;
+        }
+        return Optional.of( deepest.copy() );
+    }
+
+    /**
+     * Returns whether a snapshot exists for a given rule prefix.
+     *
+     * @param source identifies the source file and its content
+     * @param rules
+     * @param ruleCount length of the rule prefix
+     * @return
+     */
+    public synchronized boolean contains(String source,List<Rule> rules,int ruleCount)
+    {
+        Node node = roots.get( source );
+        for ( int i = 0 ; node != null && i < ruleCount ; i++ ) {
+            node = node.children.get( rules.get(i).fingerprint );
+        }
+        return node != null && node.snapshot != null;
+    }
+
+    /**
+     * Stores a snapshot.
+     *
+     * <p>Snapshots larger than the max. cache size are silently ignored.</p>
+     *
+     * @param source identifies the source file and its content
+     * @param rules rules, the first {@link Snapshot#ruleCount} of which have been applied
+     * @param snapshot snapshot, must not be modified by the caller afterwards
+     */
+    public void put(String source,List<Rule> rules,Snapshot snapshot)
+    {
+        Validate.notNull(source, "source must not be NULL");
+        Validate.notNull(rules, "rules must not be NULL");
+        Validate.notNull(snapshot, "snapshot must not be NULL");
+        Validate.isTrue( snapshot.ruleCount > 0 && snapshot.ruleCount <= rules.size() , "snapshot needs to cover 1..rules.size() rules" );
+
+        if ( ! accepts( snapshot.size ) ) {
+            return;
+        }
+        synchronized( this )
+        {
+            Node node = roots.computeIfAbsent( source , key -> new Node( key , null , null ) );
+            for ( int i = 0 ; i < snapshot.ruleCount ; i++ )
+            {
+                final Node parent = node;
+                node = parent.children.computeIfAbsent( rules.get(i).fingerprint , key -> new Node( source , parent , key ) );
+            }
+            node.snapshot = snapshot;
+            final Snapshot existing = snapshots.put( node , snapshot );
+            if ( existing != null ) {
+                size -= existing.size;
+            }
+            size += snapshot.size;
+
+            // the snapshot just added is the most recently used one and fits, so it never gets evicted here
+            final Iterator<Map.Entry<Node,Snapshot>> it = snapshots.entrySet().iterator();
+            while ( size > maxSize && it.hasNext() )
+            {
+                final Map.Entry<Node,Snapshot> eldest = it.next();
+                size -= eldest.getValue().size;
+                it.remove();
+                evict( eldest.getKey() );
+                evictions++;
+            }
+        }
+    }
+
+    // must be called while holding the lock
+    private void evict(Node node)
+    {
+        node.snapshot = null;
+        // remove nodes that lead nowhere
+        while ( node.snapshot == null && node.children.isEmpty() )
+        {
+            if ( node.parent == null ) {
+                roots.remove( node.source );
+                break;
+            }
+            node.parent.children.remove( node.fingerprint );
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Removes all snapshots from this cache.
+     *
+     * <p>Statistics are not reset.</p>
+     */
+    public synchronized void clear()
+    {
+        snapshots.clear();
+        roots.clear();
+        size = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the estimated number of bytes used by all snapshots in this cache.
+     *
+     * @return
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return snapshots.size();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+}
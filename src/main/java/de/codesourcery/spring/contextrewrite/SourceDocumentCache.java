@@ -0,0 +1,301 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StreamUtils;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * In-memory LRU cache of parsed but not yet rewritten XML files, shared by all test classes running in the same JVM.
+ *
+ * <p>Files that get imported by lots of different application contexts (data sources, transaction setup etc.) only
+ * need to be parsed once, every rewrite then starts from a deep copy of the cached DOM.</p>
+ *
+ * <p>A cached document is re-used as long as the resource's last-modified time and length did not change. If a resource
+ * does not provide a last-modified time, its content is read and compared against the hash of the cached version instead,
+ * which still saves the parsing.</p>
+ *
+ * <p>Resources that do not have an URL (for example <code>InputStreamResource</code>) are never cached. The size of the
+ * process-wide instance returned by {@link #getInstance()} is configured through the {@link #MAX_ENTRIES_PROPERTY} system property,
+ * zero disables it.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class SourceDocumentCache
+{
+    /**
+     * System property holding the max. number of documents the process-wide cache may hold.
+     */
+    public static final String MAX_ENTRIES_PROPERTY = "contextrewrite.documentCache.maxEntries";
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static final SourceDocumentCache INSTANCE = new SourceDocumentCache( getMaxEntriesFromSystemProperties() );
+
+    private final int maxEntries;
+
+    // guarded by 'this'
+    private final LinkedHashMap<String,Entry> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * A parsed XML file.
+     */
+    public static final class ParsedSource
+    {
+        /**
+         * The parsed XML, owned by the caller and free to be modified.
+         */
+        public final Document document;
+        /**
+         * Content hash as returned by {@link Fingerprint#of(byte[])}.
+         */
+        public final String hash;
+        /**
+         * Size of the XML in bytes.
+         */
+        public final long size;
+
+        private ParsedSource(Document document, String hash, long size)
+        {
+            this.document = document;
+            this.hash = hash;
+            this.size = size;
+        }
+
+        /**
+         * Loads and parses a resource without using any cache.
+         *
+         * @param resource
+         * @return
+         * @throws IOException
+         * @throws ParserConfigurationException
+         * @throws SAXException
+         */
+        public static ParsedSource parse(Resource resource) throws IOException, ParserConfigurationException, SAXException
+        {
+            final byte[] data = read( resource );
+            return new ParsedSource( XMLRewrite.parseXML( new ByteArrayInputStream( data ) ) , Fingerprint.of( data ) , data.length );
+        }
+    }
+
+    /**
+     * A cached document, immutable so that the staleness check never sees a half-updated entry.
+     */
+    private static final class Entry
+    {
+        public final Document document; // must never be modified
+        public final String hash;
+        public final long size;
+        public final long lastModified;
+        public final long length;
+
+        public Entry(Document document, String hash, long size, long lastModified, long length)
+        {
+            this.document = document;
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * Returns an entry for the same document with a different last-modified time and length.
+         *
+         * @param lastModified
+         * @param length
+         * @return
+         */
+        public Entry withTimestamps(long lastModified,long length) {
+            return new Entry( document , hash , size , lastModified , length );
+        }
+
+        public ParsedSource copy()
+        {
+            // deferred DOM implementations are not safe for concurrent reads
+            synchronized( document ) {
+                return new ParsedSource( (Document) document.cloneNode( true ) , hash , size );
+            }
+        }
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param maxEntries max. number of documents this cache may hold, zero disables the cache
+     */
+    public SourceDocumentCache(int maxEntries)
+    {
+        Validate.isTrue( maxEntries >= 0 , "maxEntries must be >= 0");
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+                return size() > SourceDocumentCache.this.maxEntries;
+            }
+        };
+    }
+
+    private static int getMaxEntriesFromSystemProperties()
+    {
+        final String value = System.getProperty( MAX_ENTRIES_PROPERTY );
+        return StringUtils.isBlank( value ) ? DEFAULT_MAX_ENTRIES : Integer.parseInt( value.trim() );
+    }
+
+    /**
+     * Returns the process-wide cache instance.
+     *
+     * @return
+     */
+    public static SourceDocumentCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a parsed copy of a resource, loading it only if it is not cached or changed since it was cached.
+     *
+     * @param resource
+     * @return
+     * @throws IOException
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     */
+    public ParsedSource load(Resource resource) throws IOException, ParserConfigurationException, SAXException
+    {
+        Validate.notNull(resource, "resource must not be NULL");
+
+        final String url = maxEntries > 0 ? getURL( resource ) : null;
+        if ( url == null ) {
+            return ParsedSource.parse( resource );
+        }
+
+        final long lastModified = lastModified( resource );
+        final long length = length( resource );
+
+        Entry entry;
+        synchronized( this ) {
+            entry = entries.get( url );
+        }
+        if ( entry != null && lastModified > 0 && entry.lastModified == lastModified && entry.length == length )
+        {
+            hit();
+            return entry.copy();
+        }
+
+        final byte[] data = read( resource );
+        final String hash = Fingerprint.of( data );
+        if ( entry != null && entry.hash.equals( hash ) )
+        {
+            final Entry updated = entry.withTimestamps( lastModified , length );
+            synchronized( this ) {
+                // only if nobody replaced the entry in the meantime
+                entries.replace( url , entry , updated );
+            }
+            hit();
+            return entry.copy();
+        }
+
+        synchronized(this) {
+            misses++;
+        }
+        final Document document = XMLRewrite.parseXML( new ByteArrayInputStream( data ) );
+        entry = new Entry( document , hash , data.length , lastModified , length );
+        synchronized( this ) {
+            entries.put( url , entry );
+        }
+        return entry.copy();
+    }
+
+    private synchronized void hit() {
+        hits++;
+    }
+
+    /**
+     * Removes all entries from this cache.
+     *
+     * <p>Statistics are not reset.</p>
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    private static byte[] read(Resource resource) throws IOException
+    {
+        try ( InputStream in = resource.getInputStream() ) {
+            return StreamUtils.copyToByteArray( in );
+        }
+    }
+
+    private static String getURL(Resource resource)
+    {
+        if ( resource.isOpen() ) {
+            return null;
+        }
+        try {
+            return resource.getURL().toExternalForm();
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private static long lastModified(Resource resource)
+    {
+        try {
+            return resource.lastModified();
+        } catch(IOException e) {
+            return -1;
+        }
+    }
+
+    private static long length(Resource resource)
+    {
+        try {
+            return resource.contentLength();
+        } catch(IOException e) {
+            return -1;
+        }
+    }
+}
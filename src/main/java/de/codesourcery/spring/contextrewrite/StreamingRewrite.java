@@ -0,0 +1,630 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StreamUtils;
+
+import de.codesourcery.spring.contextrewrite.SimplePath.Step;
+import de.codesourcery.spring.contextrewrite.XMLRewrite.RewriteContext;
+import de.codesourcery.spring.contextrewrite.XMLRewrite.Rule;
+
+/**
+ * Rewrites XML in a single streaming pass without ever building a DOM.
+ *
+ * <p>Only rules whose XPath expressions are part of the subset described in {@link SimplePath} are supported.
+ * Rules are evaluated against each file separately (just like the DOM-based implementation does before inlining imports)
+ * and imports are inlined while streaming.</p>
+ *
+ * <p>This class is conservative: whenever the result might differ from what {@link XMLRewrite} would produce
+ * (rules that might affect each other's matches, DTDs, rules that did not match anything, ...) it gives up and the
+ * caller is expected to fall back to the DOM-based implementation.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class StreamingRewrite
+{
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+    private final List<Rule> rules;
+    private final List<SimplePath> paths;
+    private final Consumer<String> debug;
+
+    private static final class NotStreamableException extends Exception
+    {
+        public NotStreamableException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class ElementState
+    {
+        public final String name;
+        // alive[i] is true if rule i's path matches all ancestors up to (and including) this element
+        public final boolean[] alive;
+        // XML fragments to append before the element's end tag
+        public final List<String> inserts = new ArrayList<>();
+        // 'profile' attribute of a <beans> element, null otherwise
+        public String profile;
+
+        public ElementState(String name, boolean[] alive)
+        {
+            this.name = name;
+            this.alive = alive;
+        }
+    }
+
+    /**
+     * Minimal XML writer that is able to write raw XML fragments and self-closes empty elements.
+     */
+    private static final class Output
+    {
+        private final Writer out;
+        private boolean startTagOpen;
+
+        public Output(Writer out) {
+            this.out = out;
+        }
+
+        public void startElement(String name,Map<String,String> attributes) throws IOException
+        {
+            closeStartTag();
+            out.write('<');
+            out.write( name );
+            for ( Map.Entry<String,String> attr : attributes.entrySet() )
+            {
+                out.write(' ');
+                out.write( attr.getKey() );
+                out.write("=\"");
+                escape( attr.getValue() , true );
+                out.write('"');
+            }
+            startTagOpen = true;
+        }
+
+        public void endElement(String name) throws IOException
+        {
+            if ( startTagOpen ) {
+                out.write("/>");
+                startTagOpen = false;
+            } else {
+                out.write("</");
+                out.write( name );
+                out.write('>');
+            }
+        }
+
+        public void closeStartTag() throws IOException
+        {
+            if ( startTagOpen ) {
+                out.write('>');
+                startTagOpen = false;
+            }
+        }
+
+        public void text(String text) throws IOException
+        {
+            closeStartTag();
+            escape( text , false );
+        }
+
+        public void cdata(String text) throws IOException
+        {
+            closeStartTag();
+            out.write("<![CDATA[");
+            out.write( text.replace("]]>" , "]]]]><![CDATA[>") );
+            out.write("]]>");
+        }
+
+        public void comment(String text) throws IOException
+        {
+            closeStartTag();
+            out.write("<!--");
+            out.write( text );
+            out.write("-->");
+        }
+
+        public void processingInstruction(String target,String data) throws IOException
+        {
+            closeStartTag();
+            out.write("<?");
+            out.write( target );
+            if ( StringUtils.isNotEmpty( data ) ) {
+                out.write(' ');
+                out.write( data );
+            }
+            out.write("?>");
+        }
+
+        public void raw(String xml) throws IOException
+        {
+            closeStartTag();
+            out.write( xml );
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private void escape(String text,boolean attribute) throws IOException
+        {
+            for ( int i = 0 , len = text.length() ; i < len ; i++ )
+            {
+                final char c = text.charAt( i );
+                switch( c )
+                {
+                    case '&': out.write("&amp;"); break;
+                    case '<': out.write("&lt;"); break;
+                    case '>': out.write("&gt;"); break;
+                    case '\r': out.write("&#13;"); break;
+                    case '"': out.write( attribute ? "&quot;" : "\"" ); break;
+                    case '\n': out.write( attribute ? "&#10;" : "\n" ); break;
+                    case '\t': out.write( attribute ? "&#9;" : "\t" ); break;
+                    default:
+                        out.write( c );
+                }
+            }
+        }
+    }
+
+    private StreamingRewrite(List<Rule> rules,List<SimplePath> paths,Consumer<String> debug)
+    {
+        this.rules = rules;
+        this.paths = paths;
+        this.debug = debug;
+    }
+
+    /**
+     * Creates a streaming rewriter for a list of rules.
+     *
+     * @param rules
+     * @param debug receives debug output
+     * @return rewriter or an empty optional if the rules cannot be applied in a streaming fashion
+     */
+    public static Optional<StreamingRewrite> create(List<Rule> rules,Consumer<String> debug)
+    {
+        final List<SimplePath> paths = new ArrayList<>();
+        for ( Rule rule : rules )
+        {
+            final Optional<SimplePath> path = SimplePath.parse( rule.xpath );
+            if ( ! path.isPresent() || ! isSupported( rule , path.get() ) ) {
+                debug.accept("Rule is not streamable: "+rule);
+                return Optional.empty();
+            }
+            paths.add( path.get() );
+        }
+        for ( int i = 0 ; i < rules.size() ; i++ )
+        {
+            for ( int j = 0 ; j < rules.size() ; j++ )
+            {
+                if ( i != j && mayInterfere( rules.get(i) , paths.get(i) , paths.get(j) ) ) {
+                    debug.accept("Rules may interfere with each other: "+rules.get(i)+" <-> "+rules.get(j));
+                    return Optional.empty();
+                }
+            }
+        }
+        return Optional.of( new StreamingRewrite( rules , paths , debug ) );
+    }
+
+    private static boolean isSupported(Rule rule,SimplePath path)
+    {
+        switch( rule.type )
+        {
+            case "REPLACE":
+                return path.isAttributePath() || ( path.depth() > 1 && isElementFragment( rule.parameters.get(0) ) );
+            case "REMOVE":
+                return ! path.isAttributePath() && path.depth() > 1;
+            case "INSERT_ELEMENT":
+                return ! path.isAttributePath() && isElementFragment( rule.parameters.get(0) );
+            case "INSERT_ATTRIBUTE":
+                return ! path.isAttributePath() && ! rule.parameters.get(0).startsWith("xmlns");
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isElementFragment(String xml)
+    {
+        final String trimmed = xml.trim();
+        // inserted imports would need to be expanded
+        return trimmed.startsWith("<") && ! trimmed.startsWith("<!") && ! trimmed.startsWith("<?") && ! trimmed.contains("<import");
+    }
+
+    /**
+     * Check whether applying a rule might change the set of nodes matched by another rule.
+     */
+    private static boolean mayInterfere(Rule rule,SimplePath path,SimplePath other)
+    {
+        final String modifiedAttribute;
+        switch( rule.type )
+        {
+            case "REMOVE":
+                // removing an element does not affect matching its ancestors
+                return other.depth() >= path.depth() && path.mayOverlap( other );
+            case "REPLACE":
+                if ( ! path.isAttributePath() ) {
+                    return other.depth() >= path.depth() && path.mayOverlap( other );
+                }
+                modifiedAttribute = path.attribute;
+                break;
+            case "INSERT_ELEMENT":
+                return other.depth() > path.depth() && path.mayOverlap( other ) && mayMatch( rule.parameters.get(0) , other.steps.get( path.depth() ) );
+            case "INSERT_ATTRIBUTE":
+                modifiedAttribute = rule.parameters.get(0);
+                break;
+            default:
+                return true;
+        }
+        // predicates on the modified attribute cannot be used to tell whether the paths overlap
+        return other.depth() >= path.depth() && other.steps.get( path.depth() - 1 ).predicates.containsKey( modifiedAttribute );
+    }
+
+    /**
+     * Check whether the root element of an XML fragment might match a location step.
+     */
+    private static boolean mayMatch(String fragment,Step step)
+    {
+        try
+        {
+            final XMLStreamReader reader = JAXPResources.xmlStreamReader( new ByteArrayInputStream( fragment.trim().getBytes( StandardCharsets.UTF_8 ) ) );
+            try
+            {
+                reader.nextTag();
+                if ( StringUtils.isNotEmpty( reader.getPrefix() ) ) {
+                    return true;
+                }
+                return step.matches( reader.getLocalName() , getAttributes( reader ) );
+            } 
+            finally {
+                reader.close();
+            }
+        }
+        catch(Exception e) {
+            return true; // better safe than sorry
+        }
+    }
+
+    /**
+     * Rewrites XML.
+     *
+     * @param resource
+     * @param context
+     * @return rewritten XML or an empty optional if the XML could not be rewritten in a streaming fashion
+     */
+    public Optional<byte[]> rewrite(Resource resource,RewriteContext context)
+    {
+        final boolean[] matched = new boolean[ rules.size() ];
+        final Map<String,String> rootAttributes = new LinkedHashMap<>();
+        final StringWriter prolog = new StringWriter();
+        final StringWriter epilogue = new StringWriter();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final String rootName;
+        try
+        {
+            final Output bodyOutput = new Output( new BufferedWriter( new OutputStreamWriter( body , StandardCharsets.UTF_8 ) ) );
+            rootName = streamFile( resource , "" , rootAttributes , bodyOutput , new Output( prolog ) , new Output( epilogue ) , context , matched ).get();
+            bodyOutput.flush();
+        }
+        catch(Exception e)
+        {
+            debug.accept("Streaming rewrite of "+resource+" failed: "+e.getMessage());
+            return Optional.empty();
+        }
+
+        for ( int i = 0 ; i < matched.length ; i++ )
+        {
+            if ( ! matched[i] ) {
+                debug.accept("Rule did not match while streaming: "+rules.get(i));
+                return Optional.empty();
+            }
+        }
+
+        final ByteArrayOutputStream result = new ByteArrayOutputStream( body.size() + 1024 );
+        try
+        {
+            final Writer writer = new OutputStreamWriter( result , StandardCharsets.UTF_8 );
+            final Output out = new Output( writer );
+            out.raw( XML_HEADER );
+            out.raw( prolog.toString() );
+            out.startElement( rootName , rootAttributes );
+            if ( body.size() > 0 ) {
+                out.closeStartTag();
+                out.flush();
+                body.writeTo( result );
+            }
+            out.endElement( rootName );
+            out.raw( epilogue.toString() );
+            out.flush();
+        }
+        catch(IOException e) {
+            throw new RuntimeException("Writing to memory failed?",e); // cannot happen
+        }
+        return Optional.of( result.toByteArray() );
+    }
+
+    /**
+     * Streams a file, writing the rewritten content of its root element to <code>body</code>.
+     *
+     * @param scope profile scope of the import that referenced the file
+     * @return name of the root element or an empty optional if the file has already been loaded before
+     */
+    private Optional<String> streamFile(Resource resource,String scope,Map<String,String> rootAttributes,Output body,Output prolog,Output epilogue,RewriteContext context,boolean[] matched) throws Exception
+    {
+        final boolean loadedBefore = context.isLoaded( resource );
+        if ( ! context.startLoading( resource , scope ) ) {
+            debug.accept("Skipping "+resource+" , already loaded");
+            return Optional.empty();
+        }
+        try
+        {
+            debug.accept("Now streaming "+resource);
+            final byte[] data;
+            try ( InputStream in = resource.getInputStream() ) {
+                data = StreamUtils.copyToByteArray( in );
+            }
+            if ( ! loadedBefore ) {
+                context.sourceLoaded( resource , Fingerprint.of( data ) );
+            }
+
+            final XMLStreamReader reader = JAXPResources.xmlStreamReader( new ByteArrayInputStream( data ) );
+            try {
+                return Optional.of( stream( resource , scope , reader , rootAttributes , body , prolog , epilogue , context , matched ) );
+            } finally {
+                reader.close();
+            }
+        }
+        finally {
+            context.finishedLoading();
+        }
+    }
+
+    private String stream(Resource resource,String scope,XMLStreamReader reader,Map<String,String> rootAttributes,Output body,Output prolog,Output epilogue,RewriteContext context,boolean[] matched) throws Exception
+    {
+        final Deque<ElementState> stack = new ArrayDeque<>();
+        String rootName = null;
+        while ( reader.hasNext() )
+        {
+            final int event = reader.next();
+            final Output out = ! stack.isEmpty() ? body : rootName == null ? prolog : epilogue;
+            switch( event )
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                    final String name = qualifiedName( reader.getPrefix() , reader.getLocalName() );
+                    final Map<String,String> attributes = getAttributes( reader );
+                    final int level = stack.size() + 1;
+                    final boolean[] parentAlive = stack.isEmpty() ? null : stack.peek().alive;
+                    final ElementState state = new ElementState( name , new boolean[ rules.size() ] );
+
+                    boolean remove = false;
+                    String replacement = null;
+                    for ( int i = 0 , len = rules.size() ; i < len ; i++ )
+                    {
+                        final SimplePath path = paths.get(i);
+                        if ( ( parentAlive != null && ! parentAlive[i] ) || level > path.depth() ) {
+                            continue;
+                        }
+                        final Step step = path.steps.get( level - 1 );
+                        checkUnambiguous( step , reader , attributes );
+                        if ( ! step.matches( name , attributes ) ) {
+                            continue;
+                        }
+                        state.alive[i] = true;
+                        if ( level < path.depth() ) {
+                            continue;
+                        }
+
+                        final Rule rule = rules.get(i);
+                        if ( path.isAttributePath() ) // REPLACE
+                        {
+                            checkUnambiguous( path.attribute , attributes );
+                            if ( attributes.containsKey( path.attribute ) ) {
+                                attributes.put( path.attribute , rule.parameters.get(0) );
+                                matched[i] = true;
+                            }
+                            continue;
+                        }
+                        matched[i] = true;
+                        switch( rule.type )
+                        {
+                            case "REMOVE":
+                                remove = true;
+                                break;
+                            case "REPLACE":
+                                remove = true;
+                                replacement = rule.parameters.get(0).trim();
+                                break;
+                            case "INSERT_ELEMENT":
+                                state.inserts.add( rule.parameters.get(0).trim() );
+                                break;
+                            case "INSERT_ATTRIBUTE":
+                                attributes.put( rule.parameters.get(0) , rule.parameters.get(1) );
+                                break;
+                            default:
+                                throw new NotStreamableException("Unsupported rule type: "+rule);
+                        }
+                    }
+
+                    if ( "beans".equals( name ) ) {
+                        state.profile = attributes.get("profile");
+                    }
+
+                    if ( remove )
+                    {
+                        skipElement( reader );
+                        if ( replacement != null ) {
+                            body.raw( replacement );
+                        }
+                    }
+                    else if ( level == 1 )
+                    {
+                        rootName = name;
+                        rootAttributes.putAll( attributes );
+                        stack.push( state );
+                    }
+                    else if ( "import".equals( name ) && "beans".equals( rootName ) )
+                    {
+                        final String location = attributes.get("resource");
+                        if ( location == null ) {
+                            throw new NotStreamableException("<import> without 'resource' attribute in "+resource);
+                        }
+                        skipElement( reader );
+                        final Map<String,String> importedRootAttributes = new LinkedHashMap<>();
+                        final List<String> profiles = new ArrayList<>();
+                        stack.descendingIterator().forEachRemaining( parent -> profiles.add( parent.profile ) );
+                        final String importScope = XMLRewrite.profileScope( scope , profiles );
+                        if ( streamFile( XMLRewrite.resolveImport( resource , location ) , importScope , importedRootAttributes , body , null , null , context , matched ).isPresent() ) {
+                            mergeAttributes( importedRootAttributes , rootAttributes );
+                        }
+                    }
+                    else
+                    {
+                        body.startElement( name , attributes );
+                        stack.push( state );
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    final ElementState ended = stack.pop();
+                    for ( String insert : ended.inserts ) {
+                        body.raw( insert );
+                    }
+                    if ( ! stack.isEmpty() ) {
+                        body.endElement( ended.name );
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    if ( ! stack.isEmpty() ) {
+                        body.text( reader.getText() );
+                    }
+                    break;
+                case XMLStreamConstants.CDATA:
+                    if ( ! stack.isEmpty() ) {
+                        body.cdata( reader.getText() );
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    if ( out != null ) {
+                        out.comment( reader.getText() );
+                    }
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    if ( out != null ) {
+                        out.processingInstruction( reader.getPITarget() , reader.getPIData() );
+                    }
+                    break;
+                case XMLStreamConstants.DTD:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    throw new NotStreamableException("DTDs and entity references are not supported: "+resource);
+                default:
+                    // nothing to do
+            }
+        }
+        if ( rootName == null ) {
+            throw new NotStreamableException("No root element: "+resource);
+        }
+        return rootName;
+    }
+
+    private static void mergeAttributes(Map<String,String> source,Map<String,String> target)
+    {
+        source.forEach( (name,value) ->
+        {
+            final String existing = target.get( name );
+            target.put( name , existing == null ? value : XMLRewrite.mergeAttributeValue( name , existing , value ) );
+        });
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+    {
+        int level = 1;
+        while ( level > 0 )
+        {
+            switch( reader.next() )
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                    level++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    level--;
+                    break;
+                default:
+                    // skip
+            }
+        }
+    }
+
+    /*
+     * The DOM-based implementation parses XML without namespace support, make sure
+     * we bail out whenever a prefixed name might match a step there.
+     */
+    private static void checkUnambiguous(Step step,XMLStreamReader reader,Map<String,String> attributes) throws NotStreamableException
+    {
+        if ( ! step.isWildcard() && StringUtils.isNotEmpty( reader.getPrefix() ) && step.name.equals( reader.getLocalName() ) ) {
+            throw new NotStreamableException("Ambiguous element name: "+reader.getName());
+        }
+        for ( String attribute : step.predicates.keySet() ) {
+            checkUnambiguous( attribute , attributes );
+        }
+    }
+
+    private static void checkUnambiguous(String attribute,Map<String,String> attributes) throws NotStreamableException
+    {
+        if ( ! attributes.containsKey( attribute ) && attributes.keySet().stream().anyMatch( key -> key.endsWith( ":"+attribute ) ) ) {
+            throw new NotStreamableException("Ambiguous attribute name: "+attribute);
+        }
+    }
+
+    private static Map<String,String> getAttributes(XMLStreamReader reader)
+    {
+        final Map<String,String> result = new LinkedHashMap<>();
+        for ( int i = 0 , len = reader.getNamespaceCount() ; i < len ; i++ )
+        {
+            final String prefix = reader.getNamespacePrefix( i );
+            result.put( StringUtils.isEmpty( prefix ) ? "xmlns" : "xmlns:"+prefix , StringUtils.defaultString( reader.getNamespaceURI( i ) ) );
+        }
+        for ( int i = 0 , len = reader.getAttributeCount() ; i < len ; i++ ) {
+            result.put( qualifiedName( reader.getAttributePrefix( i ) , reader.getAttributeLocalName( i ) ) , reader.getAttributeValue( i ) );
+        }
+        return result;
+    }
+
+    private static String qualifiedName(String prefix,String localName) {
+        return StringUtils.isEmpty( prefix ) ? localName : prefix+":"+localName;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.Validate;
+import org.springframework.core.SpringVersion;
+
+/**
+ * Remembers rewritten XML that already passed Spring's XSD validation, so that loading the same XML again
+ * may skip validation.
+ *
+ * <p>Validated XML is always remembered in memory. If a directory is given, a marker file per validated XML is
+ * written there as well, so that validation is skipped across JVM restarts. The process-wide instance returned by
+ * {@link #getInstance()} uses the {@link #DIRECTORY} sub-directory of the {@link DiskCache} directory, if one is configured.</p>
+ *
+ * <p>Keys cover the content of the XML and the Spring version (whose JARs provide the XSDs), XSDs from other sources
+ * are assumed not to change.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see RewriteConfig#isValidateOnce()
+ */
+public class ValidationCache
+{
+    /**
+     * Name of the directory marker files get written to, relative to the disk cache directory.
+     */
+    public static final String DIRECTORY = "validated";
+
+    private static final ValidationCache INSTANCE = new ValidationCache( DiskCache.fromSystemProperties().map( cache -> new File( cache.getDirectory() , DIRECTORY ) ).orElse( null ) );
+
+    private final File directory;
+    private final Set<String> validated = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create instance.
+     *
+     * @param directory directory to write marker files to or <code>null</code> to only remember validated XML in memory
+     */
+    public ValidationCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the process-wide instance.
+     *
+     * @return
+     */
+    public static ValidationCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the key for some rewritten XML.
+     *
+     * @param xml
+     * @return
+     */
+    public static String key(byte[] xml)
+    {
+        Validate.notNull(xml, "xml must not be NULL");
+        return Fingerprint.of( Fingerprint.of( xml ) , SpringVersion.getVersion() );
+    }
+
+    /**
+     * Returns whether XML has already been validated.
+     *
+     * @param key key as returned by {@link #key(byte[])}
+     * @return
+     */
+    public boolean isValidated(String key)
+    {
+        Validate.notBlank(key, "key must not be NULL or blank");
+        if ( validated.contains( key ) ) {
+            return true;
+        }
+        if ( directory != null && new File( directory , key ).isFile() )
+        {
+            validated.add( key );
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remembers that XML passed validation.
+     *
+     * <p>I/O errors while writing the marker file are silently ignored, the XML then simply gets validated again by the next JVM.</p>
+     *
+     * @param key key as returned by {@link #key(byte[])}
+     */
+    public void setValidated(String key)
+    {
+        Validate.notBlank(key, "key must not be NULL or blank");
+        if ( validated.add( key ) && directory != null )
+        {
+            try
+            {
+                Files.createDirectories( directory.toPath() );
+                new File( directory , key ).createNewFile();
+            }
+            catch(IOException e) {
+                // ignored, see javadoc
+            }
+        }
+    }
+
+    /**
+     * Returns the directory marker files get written to.
+     *
+     * @return directory or <code>null</code> if validated XML is only remembered in memory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+}
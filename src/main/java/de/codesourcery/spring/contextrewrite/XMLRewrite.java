@@ -19,31 +19,42 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
-import org.springframework.core.io.AbstractResource;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import org.w3c.dom.Attr;
@@ -54,33 +65,230 @@ import org.xml.sax.SAXException;
 
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertAttributeRule;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertElementRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.LazyInitRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.PruneRule;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.RemoveRule;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ReplaceRule;
+import de.codesourcery.spring.contextrewrite.RewriteListener.Phase;
+import de.codesourcery.spring.contextrewrite.SnapshotCache.Snapshot;
+import de.codesourcery.spring.contextrewrite.SourceDocumentCache.ParsedSource;
 
 /**
  * Helper class that performs the actual XML parsing and rewriting.
  *
+ * <p>Instances are thread-safe once configured, a single instance may serve any number of concurrent
+ * {@link #filterResource(Resource, RewriteConfig)} calls. All state of a single rewrite is kept in a
+ * {@link RewriteContext}, rules are immutable and may be shared between rewrites.</p>
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public class XMLRewrite 
 {
-    private boolean debugEnabled = false;
+    private static final CompiledXPath IMPORTS = CompiledXPath.of( "/beans//import" );
+    private static final CompiledXPath BLANK_TEXT_NODES = CompiledXPath.of( "//text()[normalize-space(.) = '']" );
+
+    /**
+     * Bump this whenever a change to the rewriting logic would produce different output for the same
+     * input, so that stale cache entries are ignored.
+     *
+     * <ul>
+     * <li>2: imports of resources that already got inlined are removed</li>
+     * <li>3: imports of files with a comment before the root element are inlined correctly</li>
+     * <li>4: <code>@LazyInitRule</code> added</li>
+     * <li>5: imports in different profile scopes are inlined once per scope</li>
+     * </ul>
+     */
+    private static final String CACHE_FORMAT = "5";
+
+    /**
+     * System property holding the number of threads used to load imported XML files when
+     * {@link RewriteConfig#isParallelImports()} is enabled and to rewrite multiple context locations. 
+     * Defaults to the number of available processors.
+     */
+    public static final String IMPORT_THREADS_PROPERTY = "contextrewrite.importThreads";
+
+    private volatile DiskCache diskCache;
+    private volatile DiskCache precomputedCache;
+    private volatile RewriteCache memoryCache;
+    private volatile SourceDocumentCache documentCache;
+    private volatile SnapshotCache snapshotCache;
+    private final List<RewriteListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile RuleStatistics ruleStatistics;
+
+    /**
+     * Per-invocation state of {@link XMLRewrite#filterResource(Resource, RewriteConfig)}.
+     */
+    static final class RewriteContext
+    {
+        // source files that contributed to the result, only tracked if a disk cache is configured
+        public final List<DiskCache.Source> sources;
+        public boolean cacheable;
+
+        private final boolean debugEnabled;
+        private final List<RewriteListener> listeners;
+        public final RewriteMetrics metrics;
+        // rules that matched at least one node, updated concurrently when loading imports in parallel
+        private final Set<Rule> matched = ConcurrentHashMap.newKeySet();
+
+        // profile scopes each resource has already been inlined in
+        private final Map<String,List<String>> loaded = new HashMap<>();
+        // resources currently being loaded, outermost first
+        private final Deque<String> importChain = new ArrayDeque<>();
+
+        public RewriteContext(boolean trackSources) {
+            this( trackSources , false , Collections.emptyList() , new RewriteMetrics( "unnamed" ) );
+        }
+
+        public RewriteContext(boolean trackSources,boolean debugEnabled,List<RewriteListener> listeners,RewriteMetrics metrics) {
+            this.sources = trackSources ? new ArrayList<>() : null;
+            this.cacheable = trackSources;
+            this.debugEnabled = debugEnabled;
+            this.listeners = listeners;
+            this.metrics = metrics;
+        }
+
+        public boolean isDebugEnabled() {
+            return debugEnabled;
+        }
+
+        /**
+         * Hands debug output to all listeners, printing it to <code>System.out</code> if there are none.
+         * 
+         * @param msg
+         */
+        public void debug(String msg)
+        {
+            if ( debugEnabled ) 
+            {
+                if ( listeners.isEmpty() ) {
+                    System.out.println("DEBUG: "+msg);
+                } else {
+                    listeners.forEach( listener -> listener.debug( msg ) );
+                }
+            }
+        }
+
+        /**
+         * Hands informational output to all listeners, printing it to <code>System.out</code> if there are none.
+         * 
+         * @param msg
+         */
+        public void info(String msg)
+        {
+            if ( listeners.isEmpty() ) {
+                System.out.println("INFO: "+msg);
+            } else {
+                listeners.forEach( listener -> listener.info( msg ) );
+            }
+        }
+
+        public void ruleMatched(Rule rule) {
+            matched.add( rule );
+        }
+
+        public boolean isMatched(Rule rule) {
+            return matched.contains( rule );
+        }
+
+        /**
+         * Marks a resource as being loaded.
+         * 
+         * <p>An import is redundant if the resource has already been inlined in the same or an enclosing profile scope,
+         * because that earlier import is active whenever this one is.</p>
+         * 
+         * @param resource
+         * @param scope profile scope of the import, see {@link XMLRewrite#profileScope(String, Iterable)}
+         * @return <code>false</code> if the resource has already been loaded in the same or an enclosing profile scope
+         * @throws IllegalArgumentException if the resource is currently being loaded (cyclic import)
+         */
+        public boolean startLoading(Resource resource,String scope) throws IllegalArgumentException
+        {
+            final String key = resourceKey( resource );
+            if ( importChain.contains( key ) ) {
+                throw new IllegalArgumentException("Cyclic import detected: "+String.join(" -> " , importChain )+" -> "+key);
+            }
+            final List<String> scopes = loaded.computeIfAbsent( key , k -> new ArrayList<>() );
+            if ( scopes.stream().anyMatch( scope::startsWith ) ) {
+                return false;
+            }
+            scopes.add( scope );
+            importChain.addLast( key );
+            return true;
+        }
+
+        /**
+         * Returns whether a resource has already been loaded in any profile scope.
+         * 
+         * @param resource
+         * @return
+         */
+        public boolean isLoaded(Resource resource) {
+            return loaded.containsKey( resourceKey( resource ) );
+        }
+
+        public void finishedLoading() {
+            importChain.removeLast();
+        }
+
+        public void sourceLoaded(Resource resource,String hash)
+        {
+            if ( sources != null )
+            {
+                final Optional<String> url = getURL( resource );
+                if ( url.isPresent() ) {
+                    sources.add( new DiskCache.Source( url.get() , hash ) );
+                } else {
+                    cacheable = false;
+                }
+            }
+        }
+    }
 
     protected static abstract class Rule
     {
         public final String xpath;
         public final String id;
+        /**
+         * Class the rule's annotation was declared on, <code>null</code> if unknown.
+         */
+        public final Class<?> declaringClass;
+        /**
+         * Type of the rule's annotation.
+         */
+        public final Class<? extends Annotation> annotationType;
+        public final CompiledXPath compiledXPath;
+        /**
+         * Stable string that uniquely describes what this rule does (type,xpath and parameters but not the ID).
+         */
+        public final String fingerprint;
+        /**
+         * Kind of rule (REPLACE,REMOVE,INSERT_ELEMENT,INSERT_ATTRIBUTE,LAZY_INIT or PRUNE).
+         */
+        public final String type;
+        /**
+         * Type-specific rule parameters.
+         */
+        public final List<String> parameters;
+        /**
+         * How to resolve this rule's XPath expression through a {@link BeanIndex}, if possible.
+         */
+        final Optional<BeanIndex.Lookup> indexLookup;
 
-        public boolean matched;
-
-
-        public Rule(String xpath,String id)
+        public Rule(Annotation annotation,Class<?> declaringClass,String xpath,String id,String type,String... parameters)
         {
+            Validate.notNull(annotation, "annotation must not be NULL");
             if ( StringUtils.isBlank( xpath ) ) {
                 throw new IllegalArgumentException("xpath expression must not be NULL/blank");
             }
+            this.annotationType = annotation.annotationType();
+            this.declaringClass = declaringClass;
             this.xpath = xpath;
             this.id = id;
+            this.type = type;
+            this.parameters = Collections.unmodifiableList( Arrays.asList( parameters ) );
+            this.compiledXPath = CompiledXPath.of( xpath );
+            this.indexLookup = BeanIndex.lookupFor( xpath );
+            this.fingerprint = type+":"+Fingerprint.encode( xpath )+Fingerprint.encode( parameters );
         }
 
         public final boolean isIDSet() 
@@ -94,14 +302,92 @@ public class XMLRewrite
 
         public abstract void apply(Document document,Node matchedNode) throws Exception;
 
+        /**
+         * Apply this rule to a matched node.
+         * 
+         * <p>The default implementation just calls {@link #apply(Document, Node)}.</p>
+         * 
+         * @param document
+         * @param matchedNode
+         * @param context
+         * @throws Exception
+         */
+        public void apply(Document document,Node matchedNode,RewriteContext context) throws Exception {
+            apply( document , matchedNode );
+        }
+
+        /**
+         * Whether this rule needs to see the whole context, with all imports inlined.
+         * 
+         * <p>Global rules are not applied to individual files while loading them, they are applied to the 
+         * flattened document after all other rules.</p>
+         * 
+         * @return
+         */
+        public boolean isGlobal() {
+            return false;
+        }
+
         public boolean hasID(String id) 
         {
             Validate.notNull(id, "id must not be NULL");
             return Objects.equals( this.id , id );
         }
+
+        /**
+         * Returns a string that identifies this rule across test classes (declaring class, annotation type, ID and XPath expression).
+         * 
+         * @return
+         */
+        public final String getKey() 
+        {
+            return ( declaringClass != null ? declaringClass.getName() : "<unknown>" )+"|@"+annotationType.getSimpleName()+"|"+( isIDSet() ? id : "" )+"|"+xpath;
+        }
+    }
+
+    /**
+     * An XML fragment that is parsed once and then imported into target documents as often as needed.
+     */
+    protected static final class Template
+    {
+        private final Node node;
+
+        /**
+         * Parse XML fragment.
+         *
+         * @param xml
+         * @throws IllegalArgumentException if the fragment is not well-formed XML
+         */
+        public Template(String xml) throws IllegalArgumentException
+        {
+            try {
+                this.node = parseXMLFragment( xml ).getFirstChild();
+            }
+            catch (Exception e) {
+                throw new IllegalArgumentException("Malformed XML fragment: "+xml,e);
+            }
+        }
+
+        /**
+         * Returns a deep copy of this template that is owned by the given document.
+         *
+         * @param document
+         * @return
+         */
+        public Node importInto(Document document)
+        {
+            // DOM implementations are not required to support concurrent reads
+            synchronized( node ) {
+                return document.importNode( node , true );
+            }
+        }
     }
 
-    private static Rule wrap(ReplaceRule r)
+    static boolean isAttributeXPath(String xpath) {
+        return xpath.matches(".*/@([\\w:.-]+|\\*)$");
+    }
+
+    private static Rule wrap(ReplaceRule r,Class<?> declaringClass)
     {
         final String newValue;
 
@@ -119,7 +405,14 @@ public class XMLRewrite
         {
             throw new RuntimeException("You need to provide EITHER 'replacement' OR 'replacementClassName' attributes");
         }
-        return new Rule( r.xpath() , r.id() )
+
+        final Template template;
+        if ( newValue.trim().startsWith("<") && ! isAttributeXPath( r.xpath() ) ) {
+            template = new Template( newValue );
+        } else {
+            template = null;
+        }
+        return new Rule( r , declaringClass , r.xpath() , r.id() , "REPLACE" , newValue )
         {
             public void apply(Document document,Node matchedNode) throws Exception
             {
@@ -129,10 +422,10 @@ public class XMLRewrite
                         matchedNode.setNodeValue( newValue );
                         break;
                     case Node.ELEMENT_NODE:
-                        final Document replDocument = parseXMLFragment( newValue );
-                        final Node firstChild = replDocument.getFirstChild();
-                        final Node adoptedNode = document.importNode( firstChild , true );
-                        matchedNode.getParentNode().replaceChild( adoptedNode , matchedNode );
+                        if ( template == null ) {
+                            throw new RuntimeException("Replacement '"+newValue+"' is not an XML fragment, cannot replace element matched by "+r.xpath());
+                        }
+                        matchedNode.getParentNode().replaceChild( template.importInto( document ) , matchedNode );
                         break;
                     default:
                         throw new RuntimeException();
@@ -153,9 +446,21 @@ public class XMLRewrite
      * @return
      */      
     public static List<Rule> wrap(ReplaceRule[] rules)
+    {
+        return wrap( rules , null );
+    }
+
+    /**
+     * Converts an array of <code>ReplaceRule</code> annotations declared on a given class into the corresponding rewriting rules.
+     * 
+     * @param rules
+     * @param declaringClass class the annotations were declared on, may be <code>null</code>
+     * @return
+     */
+    public static List<Rule> wrap(ReplaceRule[] rules,Class<?> declaringClass)
     {
         Validate.notNull(rules, "rules must not be NULL");
-        return Stream.of( rules ).map( XMLRewrite::wrap ).collect( Collectors.toCollection( ArrayList::new ) );
+        return Stream.of( rules ).map( r -> wrap( r , declaringClass ) ).collect( Collectors.toCollection( ArrayList::new ) );
     }
 
     /**
@@ -165,9 +470,21 @@ public class XMLRewrite
      * @return
      */    
     public static List<Rule> wrap(RemoveRule[] rules)
+    {
+        return wrap( rules , null );
+    }
+
+    /**
+     * Converts an array of <code>RemoveRule</code> annotations declared on a given class into the corresponding rewriting rules.
+     * 
+     * @param rules
+     * @param declaringClass class the annotations were declared on, may be <code>null</code>
+     * @return
+     */
+    public static List<Rule> wrap(RemoveRule[] rules,Class<?> declaringClass)
     {
         Validate.notNull(rules, "rules must not be NULL");
-        return Stream.of( rules ).map( XMLRewrite::wrap ).collect( Collectors.toCollection( ArrayList::new ) );
+        return Stream.of( rules ).map( r -> wrap( r , declaringClass ) ).collect( Collectors.toCollection( ArrayList::new ) );
     }
 
     /**
@@ -177,9 +494,21 @@ public class XMLRewrite
      * @return
      */
     public static List<Rule> wrap(InsertElementRule[] rules)
+    {
+        return wrap( rules , null );
+    }
+
+    /**
+     * Converts an array of <code>InsertElementRule</code> annotations declared on a given class into the corresponding rewriting rules.
+     * 
+     * @param rules
+     * @param declaringClass class the annotations were declared on, may be <code>null</code>
+     * @return
+     */
+    public static List<Rule> wrap(InsertElementRule[] rules,Class<?> declaringClass)
     {
         Validate.notNull(rules, "rules must not be NULL");
-        return Stream.of( rules ).map( XMLRewrite::wrap ).collect( Collectors.toCollection( ArrayList::new ) );
+        return Stream.of( rules ).map( r -> wrap( r , declaringClass ) ).collect( Collectors.toCollection( ArrayList::new ) );
     }
 
     /**
@@ -189,14 +518,50 @@ public class XMLRewrite
      * @return
      */
     public static List<Rule> wrap(InsertAttributeRule[] rules)
+    {
+        return wrap( rules , null );
+    }
+
+    /**
+     * Converts an array of <code>InsertAttributeRule</code> annotations declared on a given class into the corresponding rewriting rules.
+     * 
+     * @param rules
+     * @param declaringClass class the annotations were declared on, may be <code>null</code>
+     * @return
+     */
+    public static List<Rule> wrap(InsertAttributeRule[] rules,Class<?> declaringClass)
+    {
+        Validate.notNull(rules, "rules must not be NULL");
+        return Stream.of( rules ).map( r -> wrap( r , declaringClass ) ).collect( Collectors.toCollection( ArrayList::new ) );
+    }
+
+    /**
+     * Converts an array of <code>LazyInitRule</code> annotations into the corresponding rewriting rules.
+     * 
+     * @param rules
+     * @return
+     */
+    public static List<Rule> wrap(LazyInitRule[] rules)
+    {
+        return wrap( rules , null );
+    }
+
+    /**
+     * Converts an array of <code>LazyInitRule</code> annotations declared on a given class into the corresponding rewriting rules.
+     * 
+     * @param rules
+     * @param declaringClass class the annotations were declared on, may be <code>null</code>
+     * @return
+     */
+    public static List<Rule> wrap(LazyInitRule[] rules,Class<?> declaringClass)
     {
         Validate.notNull(rules, "rules must not be NULL");
-        return Stream.of( rules ).map( XMLRewrite::wrap ).collect( Collectors.toCollection( ArrayList::new ) );
+        return Stream.of( rules ).map( r -> wrap( r , declaringClass ) ).collect( Collectors.toCollection( ArrayList::new ) );
     }
 
-    private static Rule wrap(RemoveRule r)
+    private static Rule wrap(RemoveRule r,Class<?> declaringClass)
     {
-        return new Rule( r.xpath() , r.id() )
+        return new Rule( r , declaringClass , r.xpath() , r.id() , "REMOVE" )
         {
             @Override
             public void apply(Document document, Node matchedNode) throws Exception {
@@ -210,16 +575,14 @@ public class XMLRewrite
         };
     }
 
-    private static Rule wrap(InsertElementRule r)
+    private static Rule wrap(InsertElementRule r,Class<?> declaringClass)
     {
-        return new Rule( r.xpath() , r.id() )
+        final Template template = new Template( r.insert() );
+        return new Rule( r , declaringClass , r.xpath() , r.id() , "INSERT_ELEMENT" , r.insert() )
         {
             @Override
             public void apply(Document document, Node matchedNode) throws Exception {
-                final Document newDocument = parseXMLFragment( r.insert() );
-                final Node firstChild = newDocument.getFirstChild();
-                final Node adoptedNode = document.importNode( firstChild , true );
-                matchedNode.appendChild( adoptedNode );
+                matchedNode.appendChild( template.importInto( document ) );
             }
 
             @Override
@@ -229,9 +592,9 @@ public class XMLRewrite
         };
     }
 
-    private static Rule wrap(InsertAttributeRule r)
+    private static Rule wrap(InsertAttributeRule r,Class<?> declaringClass)
     {
-        return new Rule( r.xpath() , r.id() )
+        return new Rule( r , declaringClass , r.xpath() , r.id() , "INSERT_ATTRIBUTE" , r.name() , r.value() )
         {
             @Override
             public void apply(Document document, Node matchedNode) throws Exception
@@ -248,13 +611,126 @@ public class XMLRewrite
         };
     }    
 
+    /**
+     * Converts an array of <code>PruneRule</code> annotations into the corresponding rewriting rules.
+     * 
+     * @param rules
+     * @return
+     */
+    public static List<Rule> wrap(PruneRule[] rules)
+    {
+        return wrap( rules , null );
+    }
+
+    /**
+     * Converts an array of <code>PruneRule</code> annotations declared on a given class into the corresponding rewriting rules.
+     * 
+     * @param rules
+     * @param declaringClass class the annotations were declared on, may be <code>null</code>
+     * @return
+     */
+    public static List<Rule> wrap(PruneRule[] rules,Class<?> declaringClass)
+    {
+        Validate.notNull(rules, "rules must not be NULL");
+        return Stream.of( rules ).map( r -> wrap( r , declaringClass ) ).collect( Collectors.toCollection( ArrayList::new ) );
+    }
+
+    private static Rule wrap(PruneRule r,Class<?> declaringClass)
+    {
+        if ( r.roots().length == 0 && r.rootTypes().length == 0 ) {
+            throw new RuntimeException("@PruneRule needs at least one root bean or root type");
+        }
+        final List<String> roots = Arrays.asList( r.roots() );
+        final List<Class<?>> rootTypes = Arrays.asList( r.rootTypes() );
+        final String[] parameters = Stream.concat( roots.stream().sorted() , rootTypes.stream().map( Class::getName ).sorted().map( name -> "class:"+name ) ).toArray( String[]::new );
+        return new Rule( r , declaringClass , "/*" , r.id() , "PRUNE" , parameters )
+        {
+            @Override
+            public void apply(Document document, Node matchedNode) throws Exception {
+                apply( document , matchedNode , new RewriteContext( false ) );
+            }
+
+            @Override
+            public void apply(Document document, Node matchedNode, RewriteContext context) throws Exception
+            {
+                final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+                final BeanGraph graph = new BeanGraph( document , contextClassLoader != null ? contextClassLoader : XMLRewrite.class.getClassLoader() );
+                final BeanGraph.Result result = graph.prune( roots , rootTypes , context::debug );
+                context.info( result.toString() );
+                if ( context.isDebugEnabled() ) {
+                    result.prunedBeans.forEach( bean -> context.debug("Pruned bean "+bean ) );
+                }
+            }
+
+            @Override
+            public boolean isGlobal() {
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                return "PRUNE: roots="+roots+", rootTypes="+rootTypes;
+            }
+        };
+    }
+
+    private static Rule wrap(LazyInitRule r,Class<?> declaringClass)
+    {
+        final Set<String> eager = new HashSet<>( Arrays.asList( r.eager() ) );
+        final boolean includeBeans = r.beans() || ! eager.isEmpty();
+        final String xpath = includeBeans ? "//beans | //beans/bean" : "//beans";
+        final String[] parameters = Stream.concat( Stream.of( Boolean.toString( r.beans() ) ) , eager.stream().sorted() ).toArray( String[]::new );
+        return new Rule( r , declaringClass , xpath , r.id() , "LAZY_INIT" , parameters )
+        {
+            @Override
+            public void apply(Document document, Node matchedNode) throws Exception
+            {
+                if ( "beans".equals( matchedNode.getNodeName() ) ) {
+                    setAttribute( document , matchedNode , "default-lazy-init" , "true" );
+                } 
+                else if ( isEager( matchedNode ) ) {
+                    setAttribute( document , matchedNode , "lazy-init" , "false" );
+                } 
+                else if ( r.beans() ) {
+                    setAttribute( document , matchedNode , "lazy-init" , "true" );
+                }
+            }
+
+            private boolean isEager(Node bean) 
+            {
+                if ( eager.isEmpty() ) {
+                    return false;
+                }
+                final Node id = bean.getAttributes().getNamedItem("id");
+                if ( id != null && eager.contains( id.getNodeValue() ) ) {
+                    return true;
+                }
+                final Node name = bean.getAttributes().getNamedItem("name");
+                // same delimiters Spring uses for bean name aliases
+                return name != null && Stream.of( StringUtils.split( name.getNodeValue() , ",; " ) ).anyMatch( eager::contains );
+            }
+
+            @Override
+            public String toString() {
+                return "LAZY INIT: beans="+r.beans()+", eager="+eager;
+            }
+        };
+    }
+
+    private static void setAttribute(Document document,Node element,String name,String value)
+    {
+        final Attr attribute = document.createAttribute( name );
+        attribute.setValue( value );
+        element.getAttributes().setNamedItem( attribute );
+    }
+
     protected static Document parseXMLFragment(String xml) throws ParserConfigurationException, SAXException, IOException
     {
         final String replacement = "<?xml version=\"1.0\" ?>"+xml;
         return parseXML( new ByteArrayInputStream( replacement.getBytes() ) );
     }    
 
-    private void mergeAttributes(Node source,Node target,Document targetDocument)
+    static void mergeAttributes(Node source,Node target,Document targetDocument,RewriteContext context)
     {
         for ( int i = 0 , len = source.getAttributes().getLength() ; i < len ; i++ )
         {
@@ -264,46 +740,55 @@ public class XMLRewrite
             final Optional<Node> existingAttr = findAttribute( target , attrToMerge );
             if ( existingAttr.isPresent() )
             {
-                final String[] existingValues = split( existingAttr.get().getNodeValue() );
-
-                if ( attrName.endsWith(":schemaLocation" ) || attrName.equals("schemaLocation" ))
-                {
-                    final List<Pair> existingPairs = toPairs( existingValues );
-                    final List<Pair> newPairs = toPairs( split( attrValue ) );
-                    final String toAdd = newPairs.stream()
-                            .filter( p -> existingPairs.stream().noneMatch( x -> x.sameFirst(p) ) )
-                            .map( p -> p.first+" "+p.second ).collect( Collectors.joining(" ") );
-                    if ( ! toAdd.isEmpty() )
-                    {
-                        existingAttr.get().setNodeValue( existingAttr.get().getNodeValue()+" "+toAdd );
-                    }
-                    continue;
-                }
-
-                // merge value
-                if ( Stream.of( existingValues ).noneMatch( value -> value.equals( attrToMerge.getNodeValue() ) ) )
-                {
-                    if ( existingValues.length == 0 ) {
-                        debug("adding missing attribute value "+attrName+"="+attrValue );
-                        existingAttr.get().setNodeValue( attrValue );
-                    } else {
-                        debug("Appending existing attribute "+existingAttr.get().getNodeName()+"="+attrValue );
-                        existingAttr.get().setNodeValue( existingAttr.get().getNodeValue()+" "+attrValue );
-                    }
+                final String existingValue = existingAttr.get().getNodeValue();
+                final String mergedValue = mergeAttributeValue( attrName , existingValue , attrValue );
+                if ( ! mergedValue.equals( existingValue ) ) {
+                    context.debug("Merged attribute "+attrName+"="+mergedValue );
+                    existingAttr.get().setNodeValue( mergedValue );
                 } else {
-                    debug("Already present: attribute "+existingAttr.get().getNodeName()+"="+attrValue );
+                    context.debug("Already present: attribute "+attrName+"="+attrValue );
                 }
             }
             else
             {
-                debug("Adding new attribute "+attrName+"="+attrValue );
+                context.debug("Adding new attribute "+attrName+"="+attrValue );
                 final Node cloned = targetDocument.adoptNode( attrToMerge.cloneNode( true ));
                 target.getAttributes().setNamedItem( cloned );
             }
         }
     }
 
-    private Optional<Node> findAttribute( Node n , Node attr)
+    /**
+     * Merges the value of an attribute from the root element of an imported file into the value of 
+     * the same attribute on the importing file's root element.
+     * 
+     * @param attrName
+     * @param existingValue
+     * @param attrValue
+     * @return merged value
+     */
+    static String mergeAttributeValue(String attrName,String existingValue,String attrValue)
+    {
+        final String[] existingValues = split( existingValue );
+
+        if ( attrName.endsWith(":schemaLocation" ) || attrName.equals("schemaLocation" ))
+        {
+            final List<Pair> existingPairs = toPairs( existingValues );
+            final List<Pair> newPairs = toPairs( split( attrValue ) );
+            final String toAdd = newPairs.stream()
+                    .filter( p -> existingPairs.stream().noneMatch( x -> x.sameFirst(p) ) )
+                    .map( p -> p.first+" "+p.second ).collect( Collectors.joining(" ") );
+            return toAdd.isEmpty() ? existingValue : existingValue+" "+toAdd;
+        }
+
+        // merge value
+        if ( Stream.of( existingValues ).noneMatch( value -> value.equals( attrValue ) ) ) {
+            return existingValues.length == 0 ? attrValue : existingValue+" "+attrValue;
+        }
+        return existingValue;
+    }
+
+    private static Optional<Node> findAttribute( Node n , Node attr)
     {
         for ( int i = 0 , len = n.getAttributes().getLength() ; i < len ; i++ )
         {
@@ -316,40 +801,137 @@ public class XMLRewrite
     }
 
 
-    protected void rewriteXML(Document doc,List<Rule> rules,boolean failOnUnmatchedRule,boolean onlyUnmatchedRules) throws Exception
+    protected void rewriteXML(Document doc,List<Rule> rules,RewriteContext context,boolean failOnUnmatchedRule,boolean onlyUnmatchedRules) throws Exception
+    {
+        applyRules( doc , globalRulesLast( rules ) , context , onlyUnmatchedRules , null );
+
+        final List<Rule> unmatched = new ArrayList<>( rules );
+        unmatched.removeIf( context::isMatched );
+
+        if ( failOnUnmatchedRule && ! unmatched.isEmpty() ) 
+        {
+            unmatched.forEach( r -> System.err.println("ERROR: Unmatched rule "+r) );
+            throw new RuntimeException("One or more rules were not matched");
+        }
+    }
+
+    /**
+     * Applies rules in the given order.
+     * 
+     * @param doc
+     * @param rules
+     * @param context
+     * @param onlyUnmatchedRules
+     * @param matchedRules if not <code>null</code>, receives the indices of all rules that matched at least one node
+     * @return number of nodes rules were applied to
+     * @throws Exception
+     */
+    private long applyRules(Document doc,List<Rule> rules,RewriteContext context,boolean onlyUnmatchedRules,BitSet matchedRules) throws Exception
     {
-        for ( Rule r : rules )
+        final long start = System.nanoTime();
+        final RuleStatistics ruleStatistics = this.ruleStatistics;
+        final BeanIndex index = new BeanIndex( doc );
+        long nodesMatched = 0;
+        for ( int i = 0 , len = rules.size() ; i < len ; i++ )
         {
-            if ( onlyUnmatchedRules && r.matched ) {
+            final Rule r = rules.get(i);
+            if ( onlyUnmatchedRules && context.isMatched( r ) ) {
                 continue;
             }
             
-            final List<Node> nodes = evaluateXPath( r.xpath , doc );
+            final long evaluationStart = System.nanoTime();
+            final List<Node> nodes = index.evaluate( r );
+            if ( ruleStatistics != null ) {
+                ruleStatistics.evaluated( r , System.nanoTime() - evaluationStart , nodes.size() );
+            }
 
-            if ( debugEnabled ) {
-                debug("RULE MATCHED "+nodes.size()+" nodes: "+r);
+            if ( context.isDebugEnabled() ) {
+                context.debug("RULE MATCHED "+nodes.size()+" nodes: "+r);
             }
-            if ( nodes.size() > 0 ) {
-                r.matched = true;
+            if ( nodes.size() > 0 ) 
+            {
+                context.ruleMatched( r );
+                context.metrics.addNodesMatched( nodes.size() );
+                nodesMatched += nodes.size();
+                if ( matchedRules != null ) {
+                    matchedRules.set( i );
+                }
             }
 
+            final long applyStart = System.nanoTime();
             for ( Node child : nodes )
             {
-                r.apply( doc , child );
+                index.beforeModification( child );
+                r.apply( doc , child , context );
+            }
+            if ( ruleStatistics != null && ! nodes.isEmpty() ) {
+                ruleStatistics.applied( r , System.nanoTime() - applyStart );
             }
         }
+        context.metrics.addTimeSince( Phase.RULE_EVALUATION , start );
+        return nodesMatched;
+    }
 
-        final List<Rule> unmatched = new ArrayList<>( rules );
-        unmatched.removeIf( r -> r.matched );
+    /**
+     * Applies rules to a single XML file, starting from the deepest snapshot of the file that has already been 
+     * rewritten by a prefix of the rules.
+     * 
+     * <p>New snapshots are taken whenever the class declaring the rules changes, so test classes sharing a base class
+     * only need to apply the rules that are not inherited.</p>
+     * 
+     * @param snapshotSize estimated size of a snapshot of the document
+     * @return the rewritten document
+     */
+    private Document applyRules(String source,Document doc,long snapshotSize,List<Rule> rules,RewriteContext context,SnapshotCache snapshotCache) throws Exception
+    {
+        Document result = doc;
+        int applied = 0;
+        final BitSet matched = new BitSet( rules.size() );
+        long nodesMatched = 0;
 
-        if ( failOnUnmatchedRule && ! unmatched.isEmpty() ) 
+        final Optional<Snapshot> snapshot = snapshotCache.get( source , rules );
+        if ( snapshot.isPresent() ) 
         {
-            unmatched.forEach( r -> System.err.println("ERROR: Unmatched rule "+r) );
-            throw new RuntimeException("One or more rules were not matched");
+            result = snapshot.get().document;
+            applied = snapshot.get().ruleCount;
+            matched.or( snapshot.get().matchedRules );
+            nodesMatched = snapshot.get().nodesMatched;
+            matched.stream().forEach( i -> context.ruleMatched( rules.get( i ) ) );
+            context.metrics.addNodesMatched( nodesMatched );
+            context.debug("Starting from snapshot after "+applied+" of "+rules.size()+" rules: "+source );
+        }
+
+        while ( applied < rules.size() )
+        {
+            int end = applied + 1;
+            while ( end < rules.size() && rules.get( end ).declaringClass == rules.get( end - 1 ).declaringClass ) {
+                end++;
+            }
+            final BitSet segmentMatched = new BitSet();
+            nodesMatched += applyRules( result , rules.subList( applied , end ) , context , false , segmentMatched );
+            final int offset = applied;
+            segmentMatched.stream().forEach( i -> matched.set( offset + i ) );
+            applied = end;
+
+            if ( snapshotCache.accepts( snapshotSize ) && ! snapshotCache.contains( source , rules , applied ) ) {
+                snapshotCache.put( source , rules , new Snapshot( (Document) result.cloneNode( true ) , applied , (BitSet) matched.clone() , nodesMatched , snapshotSize ) );
+            }
+        }
+        return result;
+    }
+
+    private static List<Rule> globalRulesLast(List<Rule> rules)
+    {
+        if ( rules.stream().noneMatch( Rule::isGlobal ) ) {
+            return rules;
         }
+        final List<Rule> result = new ArrayList<>( rules.size() );
+        rules.stream().filter( r -> ! r.isGlobal() ).forEach( result::add );
+        rules.stream().filter( Rule::isGlobal ).forEach( result::add );
+        return result;
     }
 
-    private List<Node> wrapNodeList(NodeList list)
+    private static List<Node> wrapNodeList(NodeList list)
     {
         final List<Node> result = new ArrayList<>( list.getLength() );
         for ( int i = 0 , len=list.getLength() ; i < len ; i++ ) {
@@ -358,7 +940,7 @@ public class XMLRewrite
         return result;
     }    
 
-    protected final class Pair
+    protected static final class Pair
     {
         public final String first;
         public final String second;
@@ -378,7 +960,7 @@ public class XMLRewrite
         }
     }
 
-    private List<Pair> toPairs(String[] data)
+    private static List<Pair> toPairs(String[] data)
     {
         final List<Pair> result = new ArrayList<>();
         for ( int i = 0 ; i < data.length ; i+=2 )
@@ -388,7 +970,7 @@ public class XMLRewrite
         return result;
     }
 
-    private String[] split(String input)
+    private static String[] split(String input)
     {
         if ( input == null ) {
             return new String[0];
@@ -406,13 +988,11 @@ public class XMLRewrite
 
     protected static byte[] toByteArray(Document doc,boolean prettyPrint) throws TransformerException, XPathExpressionException
     {
-        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        final Transformer transformer = transformerFactory.newTransformer();
+        final Transformer transformer = JAXPResources.transformer();
         if ( prettyPrint ) {
             transformer.setOutputProperty(OutputKeys.INDENT, "yes");
             doc.getDocumentElement().normalize();
-            XPathExpression xpath = XPathFactory.newInstance().newXPath().compile("//text()[normalize-space(.) = '']");
-            NodeList blankTextNodes = (NodeList) xpath.evaluate(doc, XPathConstants.NODESET);
+            NodeList blankTextNodes = BLANK_TEXT_NODES.evaluate( doc );
             for (int i = 0; i < blankTextNodes.getLength(); i++) {
                 blankTextNodes.item(i).getParentNode().removeChild(blankTextNodes.item(i));
             }            
@@ -427,10 +1007,12 @@ public class XMLRewrite
 
     protected List<Node> evaluateXPath(String xpathExpression,Node node) throws XPathExpressionException
     {
-        final XPathFactory factory = XPathFactory.newInstance();
-        final XPath xpath = factory.newXPath();
-        final XPathExpression pathExpression = xpath.compile( xpathExpression );
-        return wrapNodeList( (NodeList) pathExpression.evaluate(node,XPathConstants.NODESET) );
+        return evaluateXPath( CompiledXPath.of( xpathExpression ) , node );
+    }
+
+    protected List<Node> evaluateXPath(CompiledXPath xpath,Node node) throws XPathExpressionException
+    {
+        return wrapNodeList( xpath.evaluate( node ) );
     }
 
     protected static Document parseXML(InputStream in) throws ParserConfigurationException, SAXException, IOException
@@ -438,9 +1020,7 @@ public class XMLRewrite
         Validate.notNull(in, "in must not be NULL");
         try 
         {
-            final DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            final DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            return dBuilder.parse( in );
+            return JAXPResources.documentBuilder().parse( in );
         } 
         finally 
         {
@@ -450,108 +1030,729 @@ public class XMLRewrite
         }
     }
 
-    private void debug(String msg)
+    /**
+     * A single XML file that has been loaded and rewritten but whose imports have not been inlined yet.
+     */
+    private static final class LoadedResource
     {
-        if ( debugEnabled ) {
-            System.out.println("DEBUG: "+msg);
-        }
-    }    
+        public final String hash;
+        public final Document document;
+        public final List<Node> importNodes;
+        public final List<Resource> imports;
+
+        public LoadedResource(String hash,Document document,List<Node> importNodes,List<Resource> imports)
+        {
+            this.hash = hash;
+            this.document = document;
+            this.importNodes = importNodes;
+            this.imports = imports;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ResourceLoader
+    {
+        public LoadedResource load(Resource resource) throws Exception;
+
+        /**
+         * Loads a resource whose previously loaded document has already been inlined.
+         * 
+         * @param resource
+         * @return newly loaded resource
+         * @throws Exception
+         */
+        public default LoadedResource reload(Resource resource) throws Exception {
+            return load( resource );
+        }
+    }
 
-    private Document parseXML(Resource resource,List<Rule> rules) throws ParserConfigurationException, SAXException, IOException, XPathExpressionException
+    /**
+     * Loads imported resources concurrently.
+     *
+     * <p>Loading a resource submits all resources it imports, so the whole import graph gets loaded
+     * without any task ever waiting for another one. Each distinct resource is only loaded once.</p>
+     */
+    private final class ParallelLoader implements ResourceLoader
     {
-        debug("Now loading "+resource);
+        private final List<Rule> rules;
+        private final RewriteContext context;
+        private final ConcurrentMap<String,CompletableFuture<LoadedResource>> futures = new ConcurrentHashMap<>();
 
-        try ( InputStream in = resource.getInputStream() )
+        public ParallelLoader(Resource root,List<Rule> rules,RewriteContext context)
         {
-            final Document doc = XMLRewrite.parseXML( in );
-            rewriteXML( doc , rules , false , false );
+            this.rules = rules;
+            this.context = context;
+            submit( root );
+        }
 
-            final List<Node> importNodes = evaluateXPath( "/beans//import", doc);
-            debug("Found "+importNodes.size()+" import statements");
-            for ( Node importNode : importNodes )
+        private void submit(Resource resource)
+        {
+            futures.computeIfAbsent( resourceKey( resource ) , key -> CompletableFuture.supplyAsync( () ->
             {
-                debug("(1) Node has parent: "+importNode.getParentNode());
-                String path = importNode.getAttributes().getNamedItem("resource").getNodeValue();
-                if ( path.startsWith("classpath:" ) ) {
-                    path = path.substring( "classpath:".length() );
+                try
+                {
+                    final LoadedResource result = XMLRewrite.this.load( resource , rules , context );
+                    result.imports.forEach( this::submit );
+                    return result;
                 }
-                debug("Including '"+path+"' , now at "+resource);
-                final Resource imported;
-                if ( path.startsWith( "/" ) ) { // absolute
-                    imported = new ClassPathResource( path );
-                } else {
-                    imported = resource.createRelative( path );
+                catch(Exception e) {
+                    throw new CompletionException( e );
+                }
+            } , ImportExecutor.INSTANCE ) );
+        }
+
+        @Override
+        public LoadedResource reload(Resource resource) throws Exception {
+            return XMLRewrite.this.load( resource , rules , context );
+        }
+
+        @Override
+        public LoadedResource load(Resource resource) throws Exception
+        {
+            try {
+                return futures.get( resourceKey( resource ) ).join();
+            }
+            catch(CompletionException e)
+            {
+                if ( e.getCause() instanceof Exception ) {
+                    throw (Exception) e.getCause();
                 }
-                final Document importedXML = parseXML( imported , rules );
-                mergeAttributes( importedXML.getFirstChild() , doc.getFirstChild() , doc );
+                throw e;
+            }
+        }
+    }
 
-                final List<Node> beans = wrapNodeList( importedXML.getFirstChild().getChildNodes() );
+    /**
+     * Bounded thread pool shared by all parallel rewrites, created on first use.
+     */
+    private static final class ImportExecutor
+    {
+        public static final ExecutorService INSTANCE = newExecutor( "contextrewrite-import-" );
+    }
+
+    /**
+     * Bounded thread pool for rewriting multiple context locations concurrently, created on first use.
+     * 
+     * <p>Separate from {@link ImportExecutor} because rewriting a location waits for its imports to be loaded.</p>
+     */
+    private static final class LocationExecutor
+    {
+        public static final ExecutorService INSTANCE = newExecutor( "contextrewrite-location-" );
+    }
+
+    private static ExecutorService newExecutor(String threadNamePrefix)
+    {
+        final String value = System.getProperty( IMPORT_THREADS_PROPERTY );
+        final int threads = StringUtils.isBlank( value ) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt( value.trim() );
+        Validate.isTrue( threads > 0 , IMPORT_THREADS_PROPERTY+" must be > 0");
+        return Executors.newFixedThreadPool( threads , new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                final Thread t = new Thread( r , threadNamePrefix+count.incrementAndGet() );
+                t.setDaemon( true );
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Loads and rewrites a single XML file, without inlining any imports.
+     */
+    private LoadedResource load(Resource resource,List<Rule> rules,RewriteContext context) throws Exception
+    {
+        context.debug("Now loading "+resource);
+
+        final long start = System.nanoTime();
+        final SourceDocumentCache documentCache = this.documentCache;
+        final ParsedSource source = documentCache != null ? documentCache.load( resource ) : ParsedSource.parse( resource );
+        context.metrics.addTimeSince( Phase.RESOURCE_LOADING , start );
+        context.metrics.addBytesRead( source.size );
+        context.metrics.fileLoaded();
+
+        final SnapshotCache snapshotCache = this.snapshotCache;
+        final Optional<String> url = snapshotCache != null && ! rules.isEmpty() ? getURL( resource ) : Optional.empty();
+        final Document doc;
+        if ( url.isPresent() ) {
+            doc = applyRules( url.get()+"|"+source.hash , source.document , SnapshotCache.estimateSize( source.size ) , rules , context , snapshotCache );
+        } 
+        else 
+        {
+            doc = source.document;
+            rewriteXML( doc , rules , context , false , false );
+        }
+
+        final List<Node> importNodes = evaluateXPath( IMPORTS , doc );
+        context.debug("Found "+importNodes.size()+" import statements");
+        final List<Resource> imports = new ArrayList<>( importNodes.size() );
+        for ( Node importNode : importNodes )
+        {
+            final String path = importNode.getAttributes().getNamedItem("resource").getNodeValue();
+            context.debug("Including '"+path+"' , now at "+resource);
+            imports.add( resolveImport( resource , path ) );
+        }
+        return new LoadedResource( source.hash , doc , importNodes , imports );
+    }
+
+    /**
+     * Loads and rewrites XML, recursively inlining all imported files.
+     * 
+     * <p>Imports of resources that already got inlined in the same or an enclosing profile scope
+     * are just removed (Spring would ignore the duplicate bean definitions anyway). A resource imported 
+     * within different <code>&lt;beans profile="..."&gt;</code> elements gets inlined once per profile scope, 
+     * each resource is loaded and rewritten only once unless that happens.</p>
+     * 
+     * <p>Imports are always inlined sequentially and in document order, regardless of how the given loader 
+     * obtains the resources.</p>
+     * 
+     * @param scope profile scope of the import that referenced the resource
+     * @return the XML or an empty optional if the resource has already been loaded before 
+     */
+    private Optional<Document> parseXML(Resource resource,String scope,ResourceLoader loader,RewriteContext context)
+    {
+        final boolean loadedBefore = context.isLoaded( resource );
+        if ( ! context.startLoading( resource , scope ) ) {
+            context.debug("Skipping "+resource+" , already loaded");
+            return Optional.empty();
+        }
+
+        try
+        {
+            final LoadedResource loaded;
+            if ( loadedBefore ) 
+            {
+                // the document loaded before has already been inlined elsewhere
+                context.debug("Loading "+resource+" again for another profile scope");
+                loaded = loader.reload( resource );
+            } 
+            else 
+            {
+                loaded = loader.load( resource );
+                context.sourceLoaded( resource , loaded.hash );
+            }
 
-                for ( Node beanNode : beans )
+            final Document doc = loaded.document;
+            // root attributes of imported files get merged, so determine all scopes before inlining anything
+            final List<String> importScopes = loaded.importNodes.stream().map( node -> profileScope( scope , node ) ).collect( Collectors.toList() );
+            for ( int i = 0 , len = loaded.importNodes.size() ; i < len ; i++ )
+            {
+                final Node importNode = loaded.importNodes.get(i);
+                final Optional<Document> importedXML = parseXML( loaded.imports.get(i) , importScopes.get(i) , loader , context );
+                final long start = System.nanoTime();
+                if ( importedXML.isPresent() )
                 {
-                    final Node adoptedNode = doc.adoptNode( beanNode.cloneNode(true) );
-                    importNode.getParentNode().insertBefore( adoptedNode , importNode );
+                    mergeAttributes( importedXML.get().getDocumentElement() , doc.getDocumentElement() , doc , context );
+
+                    final List<Node> beans = wrapNodeList( importedXML.get().getDocumentElement().getChildNodes() );
+
+                    for ( Node beanNode : beans )
+                    {
+                        final Node adoptedNode = doc.adoptNode( beanNode.cloneNode(true) );
+                        importNode.getParentNode().insertBefore( adoptedNode , importNode );
+                    }
+                    context.metrics.addNodesInlined( beans.size() );
                 }
                 importNode.getParentNode().removeChild( importNode );
+                context.metrics.addTimeSince( Phase.IMPORT_EXPANSION , start );
             }
-            debug("*** return ***");
-            return doc;
+            context.debug("*** return ***");
+            return Optional.of( doc );
         }
         catch(Exception e) {
             throw new RuntimeException("Failed to load XML from '"+resource+"'",e);
         }
+        finally {
+            context.finishedLoading();
+        }
     }    
 
+    /**
+     * Returns the profile scope of an <code>&lt;import/&gt;</code> element.
+     * 
+     * @param scope profile scope of the file containing the element
+     * @param importNode
+     * @return
+     * @see #profileScope(String, Iterable)
+     */
+    private static String profileScope(String scope,Node importNode)
+    {
+        final Deque<String> profiles = new ArrayDeque<>();
+        for ( Node node = importNode.getParentNode() ; node != null && node.getNodeType() == Node.ELEMENT_NODE ; node = node.getParentNode() )
+        {
+            final Node profile = "beans".equals( node.getNodeName() ) ? node.getAttributes().getNamedItem("profile") : null;
+            if ( profile != null ) {
+                profiles.addFirst( profile.getNodeValue() );
+            }
+        }
+        return profileScope( scope , profiles );
+    }
+
+    /**
+     * Returns the profile scope of an element nested in <code>&lt;beans profile="..."&gt;</code> elements.
+     * 
+     * <p>The scope of an element is a prefix of the scope of another element if the first one is active 
+     * whenever the second one is.</p>
+     * 
+     * @param scope profile scope of the file containing the element, the empty string for a top-level file
+     * @param profiles <code>profile</code> attributes of all enclosing <code>&lt;beans&gt;</code> elements, outermost first
+     * @return
+     */
+    static String profileScope(String scope,Iterable<String> profiles)
+    {
+        final StringBuilder result = new StringBuilder( scope );
+        for ( String profile : profiles ) 
+        {
+            if ( StringUtils.isNotBlank( profile ) ) {
+                result.append( Fingerprint.encode( profile.trim() ) );
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Resolves the resource referenced by an <code>&lt;import/&gt;</code> element.
+     * 
+     * @param importingResource
+     * @param path value of the import's <code>resource</code> attribute
+     * @return
+     * @throws IOException
+     */
+    static Resource resolveImport(Resource importingResource,String path) throws IOException
+    {
+        if ( path.startsWith("classpath:" ) ) {
+            path = path.substring( "classpath:".length() );
+        }
+        if ( path.startsWith( "/" ) ) { // absolute
+            return new ClassPathResource( path );
+        }
+        return importingResource.createRelative( path );
+    }
+
+    private static String resourceKey(Resource resource) {
+        return getURL( resource ).orElseGet( resource::getDescription );
+    }
+
+    private static Optional<String> getURL(Resource resource)
+    {
+        if ( resource.isOpen() ) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of( resource.getURL().toExternalForm() );
+        } catch(IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Adds a listener that receives debug output and metrics.
+     * 
+     * <p>If no listener has been added, debug output is printed to <code>System.out</code>.</p>
+     * 
+     * @param listener
+     */
+    public void addListener(RewriteListener listener) 
+    {
+        Validate.notNull(listener, "listener must not be NULL");
+        listeners.add( listener );
+    }
+
+    /**
+     * Hands the metrics of a completed context load to all listeners.
+     * 
+     * @param metrics
+     */
+    public void fireContextLoaded(RewriteMetrics metrics) 
+    {
+        Validate.notNull(metrics, "metrics must not be NULL");
+        listeners.forEach( listener -> listener.contextLoaded( metrics ) );
+    }
+
+    /**
+     * Sets where to record per-rule costs.
+     * 
+     * <p>Rules applied by a streaming rewrite are not recorded.</p>
+     * 
+     * @param ruleStatistics statistics or <code>null</code> to not record any
+     */
+    public void setRuleStatistics(RuleStatistics ruleStatistics) {
+        this.ruleStatistics = ruleStatistics;
+    }
+
+    /**
+     * Sets the disk cache to use.
+     * 
+     * @param diskCache disk cache or <code>null</code> to disable disk caching
+     */
+    public void setDiskCache(DiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * Sets the in-memory cache to use.
+     * 
+     * @param memoryCache cache or <code>null</code> to disable in-memory caching
+     */
+    public void setMemoryCache(RewriteCache memoryCache) {
+        this.memoryCache = memoryCache;
+    }
+
+    /**
+     * Sets the read-only cache holding XML that has been rewritten at build time.
+     * 
+     * @param precomputedCache cache or <code>null</code>
+     * @see ContextPrecomputer
+     */
+    public void setPrecomputedCache(DiskCache precomputedCache) {
+        this.precomputedCache = precomputedCache;
+    }
+
+    /**
+     * Sets the cache for parsed source XML files.
+     * 
+     * @param documentCache cache or <code>null</code> to always load and parse source XML files
+     */
+    public void setDocumentCache(SourceDocumentCache documentCache) {
+        this.documentCache = documentCache;
+    }
+
+    /**
+     * Sets the cache for XML files rewritten by a prefix of the rules.
+     * 
+     * @param snapshotCache cache or <code>null</code> to always apply all rules to the source XML files
+     */
+    public void setSnapshotCache(SnapshotCache snapshotCache) {
+        this.snapshotCache = snapshotCache;
+    }
+
+    /**
+     * Transforms XML according to a given <code>RewriteConfig</code> and reports the gathered metrics 
+     * to all listeners.
+     *  
+     * @param resource
+     * @param config
+     * @return Resource that provides the transformed XML. The XML is only serialized on demand, callers that
+     * can process a DOM directly should use {@link RewrittenResource#getNamespaceAwareDocument()}.
+     * @throws Exception
+     * @see #filterResource(Resource, RewriteConfig, RewriteMetrics)
+     */
+    public RewrittenResource filterResource(Resource resource, RewriteConfig config) throws Exception 
+    {
+        Validate.notNull(resource, "resource must not be NULL");
+        final RewriteMetrics metrics = new RewriteMetrics( resource.getDescription() );
+        final RewrittenResource result = filterResource( resource , config , metrics );
+        fireContextLoaded( metrics );
+        return result;
+    }
+
     /**
      * Transforms XML according to a given <code>RewriteConfig</code>.
      *  
      * @param resource
      * @param config
-     * @return Resource that provides the transformed XML.
+     * @param metrics receives timings and sizes, the caller is responsible for reporting them through {@link #fireContextLoaded(RewriteMetrics)}
+     * @return Resource that provides the transformed XML. The XML is only serialized on demand, callers that
+     * can process a DOM directly should use {@link RewrittenResource#getNamespaceAwareDocument()}.
      * @throws Exception
      */
-    public Resource filterResource(Resource resource, RewriteConfig config) throws Exception 
+    public RewrittenResource filterResource(Resource resource, RewriteConfig config, RewriteMetrics metrics) throws Exception 
     {
         Validate.notNull(resource, "resource must not be NULL");
+        return filterResources( Collections.singletonList( resource ) , config , metrics ).get(0);
+    }
+
+    /**
+     * Transforms multiple XML files according to a given <code>RewriteConfig</code> and reports the gathered metrics 
+     * to all listeners.
+     *  
+     * @param resources
+     * @param config
+     * @return transformed XML, in the same order as the input resources
+     * @throws Exception
+     * @see #filterResources(List, RewriteConfig, RewriteMetrics)
+     */
+    public List<RewrittenResource> filterResources(List<Resource> resources, RewriteConfig config) throws Exception 
+    {
+        Validate.notEmpty(resources, "resources must not be NULL or empty");
+        final RewriteMetrics metrics = new RewriteMetrics( resources.stream().map( Resource::getDescription ).collect( Collectors.joining(", ") ) );
+        final List<RewrittenResource> result = filterResources( resources , config , metrics );
+        fireContextLoaded( metrics );
+        return result;
+    }
+
+    /**
+     * Transforms multiple XML files according to a given <code>RewriteConfig</code>.
+     * 
+     * <p>Each file is loaded and rewritten on its own, concurrently if there is more than one. All rules are applied to 
+     * every file but only need to match in one of them. Cached results are only used if they are available for all files.
+     * Rules that need to see the whole context (like <code>@PruneRule</code>) cannot be used with more than one file.</p>
+     *  
+     * @param resources
+     * @param config
+     * @param metrics receives timings and sizes, the caller is responsible for reporting them through {@link #fireContextLoaded(RewriteMetrics)}
+     * @return transformed XML, in the same order as the input resources. The XML is only serialized on demand, callers that
+     * can process a DOM directly should use {@link RewrittenResource#getNamespaceAwareDocument()}.
+     * @throws Exception
+     */
+    public List<RewrittenResource> filterResources(List<Resource> resources, RewriteConfig config, RewriteMetrics metrics) throws Exception 
+    {
+        Validate.notEmpty(resources, "resources must not be NULL or empty");
         Validate.notNull(config, "config must not be NULL");
+        Validate.notNull(metrics, "metrics must not be NULL");
 
         final boolean dumpRewrittenXML = config.isDumpXML();
-        this.debugEnabled = config.isDebug();
-        
+        final DiskCache diskCache = this.diskCache;
+        final RewriteCache memoryCache = this.memoryCache;
+
         final List<Rule> rules = config.getRules();
+        if ( resources.size() > 1 && rules.stream().anyMatch( Rule::isGlobal ) ) {
+            throw new IllegalArgumentException("Rules that need to see the whole context (like @PruneRule) cannot be used with more than one context location");
+        }
 
-        // parse XML
-        final Document doc = parseXML( resource , rules );
+        final List<Optional<String>> cacheKeys = getCacheKeys( resources , config );
+        final Optional<List<byte[]>> cached = getCached( resources , cacheKeys , new RewriteContext( false , config.isDebug() , listeners , metrics ) );
+        if ( cached.isPresent() ) 
+        {
+            metrics.setCacheHit();
+            metrics.addBytesWritten( cached.get().stream().mapToLong( data -> data.length ).sum() );
+            final List<RewrittenResource> result = new ArrayList<>();
+            for ( int i = 0 ; i < resources.size() ; i++ ) 
+            {
+                result.add( new RewrittenResource( resources.get(i) , cached.get().get(i) ) );
+                if ( dumpRewrittenXML ) {
+                    dump( cached.get().get(i) );
+                }
+            }
+            return result;
+        }
 
-        // rewrite XML
-        rewriteXML( doc , rules , true , true );
+        final List<Rewritten> rewritten = new ArrayList<>();
+        if ( resources.size() == 1 ) {
+            rewritten.add( rewrite( resources.get(0) , rules , config , cacheKeys.get(0).isPresent() && diskCache != null , metrics ) );
+        } 
+        else 
+        {
+            final List<CompletableFuture<Rewritten>> futures = new ArrayList<>();
+            for ( int i = 0 ; i < resources.size() ; i++ )
+            {
+                final Resource resource = resources.get(i);
+                final boolean trackSources = cacheKeys.get(i).isPresent() && diskCache != null;
+                futures.add( CompletableFuture.supplyAsync( () -> 
+                {
+                    try {
+                        return rewrite( resource , rules , config , trackSources , metrics );
+                    } 
+                    catch(Exception e) {
+                        throw new CompletionException( e );
+                    }
+                } , LocationExecutor.INSTANCE ) );
+            }
+            for ( CompletableFuture<Rewritten> future : futures ) 
+            {
+                try {
+                    rewritten.add( future.join() );
+                }
+                catch(CompletionException e)
+                {
+                    if ( e.getCause() instanceof Exception ) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
 
-        // write XML to byte[] array
-        final byte[] data = toByteArray( doc , false );
+        // rules only need to match in one of the files
+        final List<Rule> unmatched = new ArrayList<>( rules );
+        unmatched.removeIf( r -> rewritten.stream().anyMatch( x -> x.context.isMatched( r ) ) );
+        if ( ! unmatched.isEmpty() ) 
+        {
+            unmatched.forEach( r -> System.err.println("ERROR: Unmatched rule "+r) );
+            throw new RuntimeException("One or more rules were not matched");
+        }
 
-        if ( dumpRewrittenXML )
+        final List<RewrittenResource> result = new ArrayList<>();
+        for ( int i = 0 ; i < rewritten.size() ; i++ )
         {
-            final String[] lines = new String(data).split("\n");
-            int no = 1;
-            for ( String line : lines )
+            final Rewritten current = rewritten.get(i);
+            final Optional<String> cacheKey = cacheKeys.get(i);
+            // serializing a DOM that gets handed to Spring directly would defeat the purpose of not re-parsing it
+            final boolean memoryCacheable = cacheKey.isPresent() && memoryCache != null && 
+                    ( config.isReparseXML() || current.result.isSerialized() || ! current.result.usesOnlyBeansNamespace() );
+            if ( dumpRewrittenXML || memoryCacheable || current.context.cacheable ) 
             {
-                System.out.println( no+":   "+line);
-                no++;
+                final byte[] data = serialize( current.result , metrics );
+                if ( dumpRewrittenXML ) {
+                    dump( data );
+                }
+                if ( memoryCacheable ) {
+                    memoryCache.put( cacheKey.get() , data );
+                }
+                if ( current.context.cacheable ) {
+                    diskCache.put( cacheKey.get() , current.context.sources , data );
+                }
             }
+            result.add( current.result );
         }
-        return new AbstractResource()
+        return result;
+    }
+
+    /**
+     * A single rewritten file along with the context used to rewrite it.
+     */
+    private static final class Rewritten 
+    {
+        public final RewrittenResource result;
+        public final RewriteContext context;
+
+        public Rewritten(RewrittenResource result, RewriteContext context) 
         {
-            @Override
-            public String getDescription() {
-                return "Spring XML filtered from "+resource;
+            this.result = result;
+            this.context = context;
+        }
+    }
+
+    /**
+     * Returns the keys cached results for each resource are stored under.
+     * 
+     * @return keys in the same order as the resources, an empty optional if a result cannot be cached
+     */
+    private List<Optional<String>> getCacheKeys(List<Resource> resources,RewriteConfig config)
+    {
+        if ( diskCache == null && memoryCache == null && precomputedCache == null ) {
+            return resources.stream().map( r -> Optional.<String>empty() ).collect( Collectors.toList() );
+        }
+        final String engine = config.isStreaming() ? "stream" : "dom";
+        final List<Optional<String>> urls = resources.stream().map( XMLRewrite::getURL ).collect( Collectors.toList() );
+        // whether rewriting a file succeeds depends on the rules matched in all other files
+        final String locations = resources.size() == 1 ? "" : "|"+Fingerprint.of( urls.stream().map( url -> url.orElse( null ) ).toArray( String[]::new ) );
+        return urls.stream().map( url -> url.map( u -> CACHE_FORMAT+"|"+engine+"|"+u+"|"+config.getRulesFingerprint()+locations ) ).collect( Collectors.toList() );
+    }
+
+    /**
+     * Looks up cached results for all resources, trying the memory cache, precomputed results and the disk cache (in that order).
+     * 
+     * @return cached results in the same order as the resources or an empty optional unless all of them are cached
+     */
+    private Optional<List<byte[]>> getCached(List<Resource> resources,List<Optional<String>> cacheKeys,RewriteContext context)
+    {
+        final DiskCache diskCache = this.diskCache;
+        final DiskCache precomputedCache = this.precomputedCache;
+        final RewriteCache memoryCache = this.memoryCache;
+
+        final List<byte[]> result = new ArrayList<>();
+        for ( int i = 0 ; i < resources.size() ; i++ )
+        {
+            final Resource resource = resources.get(i);
+            final Optional<String> cacheKey = cacheKeys.get(i);
+            if ( ! cacheKey.isPresent() ) {
+                return Optional.empty();
+            }
+            Optional<byte[]> cached = memoryCache != null ? memoryCache.get( cacheKey.get() ) : Optional.empty();
+            if ( cached.isPresent() ) {
+                context.debug("Memory cache hit for "+resource);
+            } 
+            if ( ! cached.isPresent() && precomputedCache != null ) 
+            {
+                cached = precomputedCache.get( cacheKey.get() );
+                if ( cached.isPresent() ) 
+                {
+                    context.debug("Using precomputed XML for "+resource);
+                    if ( memoryCache != null ) {
+                        memoryCache.put( cacheKey.get() , cached.get() );
+                    }
+                }
             }
+            if ( ! cached.isPresent() && diskCache != null ) 
+            {
+                cached = diskCache.get( cacheKey.get() );
+                if ( cached.isPresent() ) 
+                {
+                    context.debug("Disk cache hit for "+resource);
+                    if ( memoryCache != null ) {
+                        memoryCache.put( cacheKey.get() , cached.get() );
+                    }
+                }
+            }
+            if ( ! cached.isPresent() ) {
+                return Optional.empty();
+            }
+            result.add( cached.get() );
+        }
+        return Optional.of( result );
+    }
 
-            @Override
-            public InputStream getInputStream() throws IOException
+    /**
+     * Loads and rewrites a single XML file, without failing on unmatched rules.
+     */
+    private Rewritten rewrite(Resource resource,List<Rule> rules,RewriteConfig config,boolean trackSources,RewriteMetrics metrics) throws Exception
+    {
+        final boolean debugEnabled = config.isDebug();
+        RewriteContext context = new RewriteContext( trackSources , debugEnabled , listeners , metrics );
+        if ( config.isStreaming() ) 
+        {
+            final long start = System.nanoTime();
+            final Optional<StreamingRewrite> streaming = StreamingRewrite.create( rules , context::debug );
+            final Optional<byte[]> data = streaming.isPresent() ? streaming.get().rewrite( resource , context ) : Optional.empty();
+            metrics.addTimeSince( Phase.RULE_EVALUATION , start );
+            if ( data.isPresent() ) 
             {
-                return new ByteArrayInputStream( data  );
+                metrics.addBytesWritten( data.get().length );
+                // streaming only succeeds if all rules matched
+                rules.forEach( context::ruleMatched );
+                return new Rewritten( new RewrittenResource( resource , data.get() ) , context );
             }
-        };            
+            context.debug("Falling back to DOM-based rewriting of "+resource);
+            context = new RewriteContext( trackSources , debugEnabled , listeners , metrics );
+        }
+
+        // parse XML
+        final RewriteContext domContext = context;
+        // global rules need to see the flattened document
+        final List<Rule> fileRules = rules.stream().filter( r -> ! r.isGlobal() ).collect( Collectors.toList() );
+        final ResourceLoader loader = config.isParallelImports() ? new ParallelLoader( resource , fileRules , domContext ) : r -> load( r , fileRules , domContext );
+        final Document doc = parseXML( resource , "" , loader , domContext ).get();
+
+        // rewrite XML
+        rewriteXML( doc , rules , domContext , false , true );
+
+        return new Rewritten( new RewrittenResource( resource , doc ) , domContext );
+    }
+
+    /**
+     * Returns the serialized XML of a rewrite result, accounting for the time it takes to serialize it.
+     * 
+     * <p>Results that have already been serialized are not accounted again.</p>
+     * 
+     * @param resource
+     * @param metrics
+     * @return
+     * @throws IOException
+     */
+    static byte[] serialize(RewrittenResource resource,RewriteMetrics metrics) throws IOException 
+    {
+        if ( resource.isSerialized() ) {
+            return resource.getData();
+        }
+        final long start = System.nanoTime();
+        final byte[] data = resource.getData();
+        metrics.addTimeSince( Phase.SERIALIZATION , start );
+        metrics.addBytesWritten( data.length );
+        return data;
+    }
+
+    private static void dump(byte[] data)
+    {
+        final String[] lines = new String( data ).split("\n");
+        int no = 1;
+        for ( String line : lines )
+        {
+            System.out.println( no+":   "+line);
+            no++;
+        }
     }
 
     protected static String readXMLString(Resource resource) throws IOException, ParserConfigurationException, SAXException, TransformerException, XPathExpressionException 
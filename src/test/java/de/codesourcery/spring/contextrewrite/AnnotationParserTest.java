@@ -18,9 +18,12 @@ package de.codesourcery.spring.contextrewrite;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import org.apache.commons.lang3.Validate;
@@ -34,6 +37,7 @@ import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.Insert
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertElementRule;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.RemoveRule;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ReplaceRule;
+import de.codesourcery.spring.contextrewrite.XMLRewrite.Rule;
 
 public class AnnotationParserTest 
 {
@@ -131,6 +135,51 @@ public class AnnotationParserTest
     @ReplaceRule(xpath="/beans/bean2" , replacement="<bean5/>")   
     public static final class InheritRulesWithAndWithoutID2 extends ClassF { }      
     
+    @ContextConfiguration(value="/test.xml")
+    @RemoveRule(xpath="/beans/bean[@id='unterminated")
+    public static final class ClassWithInvalidXPath { }
+
+    @ContextConfiguration(value="/test.xml")
+    @InsertElementRule(xpath="/beans",insert="<bean1>" )
+    public static final class ClassWithMalformedInsertFragment { }
+
+    @ContextConfiguration(value="/test.xml")
+    @InsertElementRule(xpath="/beans/bean",insert="<property/>" )
+    public static final class ClassWithInsertIntoMultipleNodes { }
+    
+    @ContextConfiguration(value="/test.xml")
+    @RemoveRule(xpath="/beans/bean1")
+    public static class SharedBaseClass { }
+    
+    public static class UnannotatedIntermediateClass extends SharedBaseClass { }
+    
+    @RemoveRule(xpath="/beans/bean2")
+    public static final class SharedBaseSubclass1 extends UnannotatedIntermediateClass { }
+    
+    @RemoveRule(xpath="/beans/bean3")
+    public static final class SharedBaseSubclass2 extends SharedBaseClass { }
+    
+    @ContextConfiguration(value="/test.xml",inheritedRulesFirst=true)
+    @ReplaceRule(id="rule1",xpath="/beans/bean1" , replacement="<bean4/>")    
+    @ReplaceRule(xpath="/beans/bean2" , replacement="<bean5/>")   
+    public static final class InheritedRulesFirst extends ClassF { }      
+    
+    @ContextConfiguration(value="/test.xml",inheritedRulesFirst=true)
+    @RemoveRule(id="rule1",xpath="/beans/bean1")
+    @RemoveRule(xpath="/beans/bean2")
+    public static class OverridableBaseClass { }
+    
+    @RemoveRule(xpath="/beans/bean3")
+    @RemoveRule(id="rule1",xpath="/beans/bean1")
+    public static final class OverrideKeepsPosition extends OverridableBaseClass { }
+    
+    @ContextConfiguration(value="/test.xml",inheritedRulesFirst=true)
+    @RemoveRule(xpath="/beans/bean1")
+    public static class RemovingBaseClass { }
+    
+    @ReplaceRule(xpath="/beans/*" , replacement="<bean3/>")
+    public static final class ReplaceAfterInheritedRemove extends RemovingBaseClass { }
+
     /* === end: test classes === */    
     
     @Before
@@ -153,6 +202,23 @@ public class AnnotationParserTest
         parser.parse( ClassWithBlankContext.class );
     }     
     
+    @Test(expected=IllegalArgumentException.class)
+    public void testParsingClassWithInvalidXPathFails() {
+        parser.parse( ClassWithInvalidXPath.class );
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testParsingClassWithMalformedInsertFragmentFails() {
+        parser.parse( ClassWithMalformedInsertFragment.class );
+    }
+
+    @Test
+    public void testInsertIntoMultipleNodesWorks() throws Exception
+    {
+        final RewriteConfig config = parser.parse( ClassWithInsertIntoMultipleNodes.class );
+        assertThat("<beans><bean/><bean/></beans>").with( config ).transformsTo( "<beans><bean><property/></bean><bean><property/></bean></beans>" );
+    }
+
     @Test
     public void testParsingClassWithNoRulesWorks()
     {
@@ -351,6 +417,88 @@ public class AnnotationParserTest
         assertThat("<beans><bean1/><bean2/><bean3/></beans>").with( config ).transformsTo( "<beans><bean4/><bean5/><bean6/></beans>" );
     }     
     
+    @Test
+    public void testParseResultsAreMemoizedAndShareBaseClassConfiguration() throws Exception
+    {
+        final RewriteConfig config1 = parser.parse( SharedBaseSubclass1.class );
+        final RewriteConfig config2 = parser.parse( SharedBaseSubclass2.class );
+        
+        assertSame( config1 , new AnnotationParser().parse( SharedBaseSubclass1.class ) );
+        assertSame( parser.parse( UnannotatedIntermediateClass.class ) , parser.parse( SharedBaseClass.class ) );
+        
+        // rule inherited from the base class has been parsed only once
+        assertEquals( 2 , config1.getRules().size() );
+        assertEquals( 2 , config2.getRules().size() );
+        assertSame( config1.getRules().get(1) , config2.getRules().get(1) );
+        assertEquals( SharedBaseClass.class , config1.getRules().get(1).declaringClass );
+        
+        assertThat("<beans><bean1/><bean2/><bean3/></beans>").with( config1 ).transformsTo( "<beans><bean3/></beans>" );
+    }
+    
+    @Test
+    public void testOwnRulesComeFirstByDefault() throws Exception
+    {
+        final RewriteConfig config = parser.parse( InheritRulesWithAndWithoutID2.class );
+        assertFalse( config.isInheritedRulesFirst() );
+        
+        final List<Rule> rules = config.getRules();
+        assertEquals( 3 , rules.size() );
+        assertEquals( InheritRulesWithAndWithoutID2.class , rules.get(0).declaringClass );
+        assertEquals( InheritRulesWithAndWithoutID2.class , rules.get(1).declaringClass );
+        assertEquals( ClassF.class , rules.get(2).declaringClass );
+    }
+    
+    @Test
+    public void testInheritedRulesComeFirstAndOverridesKeepTheirPosition() throws Exception
+    {
+        final RewriteConfig config = parser.parse( InheritedRulesFirst.class );
+        assertTrue( config.isInheritedRulesFirst() );
+        
+        final List<Rule> rules = config.getRules();
+        assertEquals( 3 , rules.size() );
+        assertEquals( ClassF.class , rules.get(0).declaringClass );
+        assertEquals( InheritedRulesFirst.class , rules.get(1).declaringClass );
+        assertEquals( InheritedRulesFirst.class , rules.get(2).declaringClass );
+        
+        final List<Rule> overridden = parser.parse( OverrideKeepsPosition.class ).getRules();
+        assertEquals( 3 , overridden.size() );
+        assertEquals( "/beans/bean2" , overridden.get(0).xpath );
+        assertEquals( "/beans/bean1" , overridden.get(1).xpath );
+        assertEquals( OverrideKeepsPosition.class , overridden.get(1).declaringClass );
+        assertEquals( "/beans/bean3" , overridden.get(2).xpath );
+        
+        // base class removes bean1 before the subclass replaces bean2
+        assertThat("<beans><bean1/><bean2/></beans>").with( parser.parse( ReplaceAfterInheritedRemove.class ) ).transformsTo( "<beans><bean3/></beans>" );
+    }
+    
+    @Test
+    public void testParsedConfigurationIsFrozen() 
+    {
+        final RewriteConfig config = parser.parse( SharedBaseSubclass1.class );
+        assertTrue( config.isFrozen() );
+        assertSame( config.getRules() , config.getRules() );
+        assertSame( config.getRulesFingerprint() , config.getRulesFingerprint() );
+        try {
+            config.setDebug( true );
+            fail("Should've failed");
+        } catch(IllegalStateException e) {
+            // ok
+        }
+        try {
+            config.getRules().clear();
+            fail("Should've failed");
+        } catch(UnsupportedOperationException e) {
+            // ok
+        }
+        
+        // frozen configurations may still be used as parents
+        final RewriteConfig child = new RewriteConfig();
+        child.setParent( config );
+        child.setDebug( true );
+        assertTrue( child.isDebug() );
+        assertEquals( config.getRulesFingerprint() , child.getRulesFingerprint() );
+    }
+    
     // == helper methods ==
     
     private TransformHelper assertThat(String xml) {
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.AnnotatedGenericBeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinitionHolder;
+import org.springframework.beans.factory.config.TypedStringValue;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.ByteArrayResource;
+
+public class BeanDefinitionCacheTest
+{
+    private static final byte[] XML = ("<beans xmlns=\"http://www.springframework.org/schema/beans\" "
+            + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+            + "xsi:schemaLocation=\"http://www.springframework.org/schema/beans http://www.springframework.org/schema/beans/spring-beans.xsd\">"
+            + "<bean id=\"bean\" name=\"alias\" class=\"java.util.ArrayList\">"
+            + "  <constructor-arg><list><bean class=\"java.lang.String\"><constructor-arg value=\"${value}\"/></bean></list></constructor-arg>"
+            + "</bean>"
+            + "</beans>").getBytes( StandardCharsets.UTF_8 );
+
+    @Test
+    public void testCachedDefinitionsAreCopied() throws Exception
+    {
+        final BeanDefinitionCache cache = new BeanDefinitionCache( 1 );
+        final String key = BeanDefinitionCache.key( XML , true , new StandardEnvironment() );
+
+        final DefaultListableBeanFactory first = new DefaultListableBeanFactory();
+        assertEquals( 1 , cache.load( key , first , () -> new XmlBeanDefinitionReader( first ).loadBeanDefinitions( new ByteArrayResource( XML ) ) ) );
+
+        // placeholder resolution modifies definitions in-place
+        getValue( first ).setValue( "resolved" );
+
+        final DefaultListableBeanFactory second = new DefaultListableBeanFactory();
+        assertEquals( 1 , cache.load( key , second , () -> { throw new AssertionError("XML must not be parsed again"); } ) );
+
+        assertArrayEquals( new String[] { "bean" } , second.getBeanDefinitionNames() );
+        assertArrayEquals( new String[] { "alias" } , second.getAliases( "bean" ) );
+        assertEquals( "${value}" , getValue( second ).getValue() );
+        assertNotSame( first.getBeanDefinition( "bean" ) , second.getBeanDefinition( "bean" ) );
+        assertEquals( 1 , cache.getHits() );
+        assertEquals( 1 , cache.getMisses() );
+    }
+
+    @Test
+    public void testDefinitionsThatCannotBeCopiedAreNotCached() throws Exception
+    {
+        final BeanDefinitionCache cache = new BeanDefinitionCache( 1 );
+        final DefaultListableBeanFactory registry = new DefaultListableBeanFactory();
+
+        assertEquals( 1 , cache.load( "key" , registry , () ->
+        {
+            registry.registerBeanDefinition( "bean" , new AnnotatedGenericBeanDefinition( BeanDefinitionCacheTest.class ) );
+            return 1;
+        }));
+        assertEquals( 0 , cache.getEntryCount() );
+    }
+
+    @Test
+    public void testOnlyXMLWithoutNamespaceHandlersIsCacheable() throws Exception
+    {
+        assertTrue( new RewrittenResource( new ByteArrayResource( XML ) , XML ).usesOnlyBeansNamespace() );
+        assertTrue( rewritten( "<beans><bean id=\"bean\" class=\"java.lang.Object\"/></beans>" ).usesOnlyBeansNamespace() );
+
+        assertFalse( rewritten( "<beans xmlns=\"http://www.springframework.org/schema/beans\" xmlns:context=\"http://www.springframework.org/schema/context\">"
+                + "<context:property-placeholder/></beans>" ).usesOnlyBeansNamespace() );
+        assertFalse( rewritten( "<beans xmlns=\"http://www.springframework.org/schema/beans\">"
+                + "<property-placeholder xmlns=\"http://www.springframework.org/schema/context\"/></beans>" ).usesOnlyBeansNamespace() );
+        assertFalse( rewritten( "<beans xmlns=\"http://www.springframework.org/schema/beans\" xmlns:p=\"http://www.springframework.org/schema/p\">"
+                + "<bean id=\"bean\" class=\"java.lang.Object\" p:value=\"1\"/></beans>" ).usesOnlyBeansNamespace() );
+    }
+
+    private static RewrittenResource rewritten(String xml)
+    {
+        final byte[] data = xml.getBytes( StandardCharsets.UTF_8 );
+        return new RewrittenResource( new ByteArrayResource( data ) , data );
+    }
+
+    private static TypedStringValue getValue(DefaultListableBeanFactory factory)
+    {
+        final ManagedList<?> list = (ManagedList<?>) factory.getBeanDefinition( "bean" ).getConstructorArgumentValues().getGenericArgumentValues().get(0).getValue();
+        final BeanDefinitionHolder inner = (BeanDefinitionHolder) list.get(0);
+        return (TypedStringValue) inner.getBeanDefinition().getConstructorArgumentValues().getGenericArgumentValues().get(0).getValue();
+    }
+}
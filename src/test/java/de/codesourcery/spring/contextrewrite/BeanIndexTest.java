@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ContextConfiguration;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertAttributeRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertElementRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.RemoveRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ReplaceRule;
+
+public class BeanIndexTest 
+{
+    private static final String XML = "<beans default-lazy-init=\"false\">"+
+            "<bean id=\"a\" class=\"A\"><property name=\"p\" value=\"1\"/></bean>"+
+            "<bean name=\"b\" class=\"B\"><property name=\"p\" value=\"2\"/></bean>"+
+            "<bean id=\"it's\" class=\"C\"/>"+
+            "<alias name=\"a\" alias=\"x\"/>"+
+            "<nested><bean id=\"a\" class=\"Nested\"/></nested>"+
+            "<bean id=\"a\" class=\"A2\"/>"+
+            "</beans>";
+
+    /* === start: test classes === */
+    
+    // note that rules are applied grouped by annotation type (replace,remove,insert element,insert attribute)
+    @ContextConfiguration(value="/ignored.xml")
+    @RemoveRule(xpath="/beans/bean[@id='a'][@class='A']")
+    @InsertElementRule(xpath="/beans",insert="<bean id=\"a\" class=\"Inserted\"/>")
+    @InsertAttributeRule(xpath="/beans/bean[@id='a']",name="lazy-init",value="true")
+    @ReplaceRule(xpath="/beans/bean[@id='a'][@class='A2']/@id",replacement="renamed")
+    @InsertAttributeRule(xpath="/beans/bean[@id='renamed']",name="primary",value="true")
+    public static final class ModifyingRules { }
+    
+    /* === end: test classes === */
+    
+    @Test
+    public void testIndexedLookupsMatchXPath() throws Exception 
+    {
+        final Document doc = XMLRewrite.parseXML( new ByteArrayInputStream( XML.getBytes( StandardCharsets.UTF_8 ) ) );
+        final BeanIndex index = new BeanIndex( doc );
+        
+        final String[] expressions = {
+                "/beans/bean[@id='a']",
+                "/beans/bean[@id='a']/property/@value",
+                "/beans/bean[@name='b']/property[@name='p']/@value",
+                "/beans/bean[@id=\"it's\"]",
+                "/beans/alias[@name='a']",
+                "/beans/bean",
+                "/beans/*[@id='a']",
+                "/beans/bean[@id='doesNotExist']",
+                "/other/bean[@id='a']",
+                "/beans/bean[@id='a'][@class='A2']",
+                "/beans/nested/bean[@id='a']",
+        };
+        for ( String xpath : expressions ) 
+        {
+            final XMLRewrite.Rule rule = XMLRewrite.wrap( new RemoveRule[] { removeRule( xpath ) } ).get(0);
+            Assert.assertTrue( "Not indexed: "+xpath , rule.indexLookup.isPresent() );
+            Assert.assertEquals( xpath , toList( rule.compiledXPath.evaluate( doc ) ) , index.evaluate( rule ) );
+        }
+    }
+    
+    @Test
+    public void testIndexStaysCorrectWhenRulesModifyDocument() throws Exception 
+    {
+        final RewriteConfig config = new AnnotationParser().parse( ModifyingRules.class );
+        final String result = XMLRewrite.stripXML( XMLRewrite.readXMLString( new XMLRewrite().filterResource( new ByteArrayResource( XML.getBytes( StandardCharsets.UTF_8 ) ) , config ) ) );
+        Assert.assertEquals( "<beans default-lazy-init=\"false\">"+
+                "<bean class=\"B\" name=\"b\"><property name=\"p\" value=\"2\"/></bean>"+
+                "<bean class=\"C\" id=\"it's\"/>"+
+                "<alias alias=\"x\" name=\"a\"/>"+
+                "<nested><bean class=\"Nested\" id=\"a\"/></nested>"+
+                "<bean class=\"A2\" id=\"renamed\" primary=\"true\"/>"+
+                "<bean class=\"Inserted\" id=\"a\" lazy-init=\"true\"/>"+
+                "</beans>" , result );
+    }
+    
+    // == helper methods ==
+    
+    private static RemoveRule removeRule(String xpath) 
+    {
+        return new RemoveRule() 
+        {
+            @Override
+            public Class<? extends java.lang.annotation.Annotation> annotationType() {
+                return RemoveRule.class;
+            }
+
+            @Override
+            public String xpath() {
+                return xpath;
+            }
+
+            @Override
+            public String id() {
+                return ContextRewritingBootStrapper.NULL_STRING;
+            }
+        };
+    }
+    
+    private static List<Node> toList(NodeList list) 
+    {
+        final List<Node> result = new ArrayList<>();
+        for ( int i = 0 ; i < list.getLength() ; i++ ) {
+            result.add( list.item( i ) );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.codesourcery.spring.contextrewrite.XMLRewriteTest.TestDiskCache;
+import de.codesourcery.spring.contextrewrite.XMLRewriteTest.TestMergeNamespaces;
+
+public class ContextPrecomputerTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPrecomputedXMLIsUsedAtRuntime() throws Exception
+    {
+        final File classes = folder.newFolder( "test-classes" );
+        copyClassFile( TestMergeNamespaces.class , classes );
+        copyClassFile( AnnotationParserTest.UnannotatedClass.class , classes );
+
+        assertEquals( 1 , ContextPrecomputer.precompute( classes , 2 ) );
+
+        final Properties manifest = new Properties();
+        try ( InputStream in = Files.newInputStream( new File( classes , ContextPrecomputer.MANIFEST ).toPath() ) ) {
+            manifest.load( in );
+        }
+        assertEquals( 1 , manifest.size() );
+        assertTrue( manifest.containsKey( TestMergeNamespaces.class.getName() ) );
+
+        final Optional<DiskCache> cache;
+        try ( URLClassLoader classLoader = new URLClassLoader( new URL[] { classes.toURI().toURL() } , null ) ) {
+            cache = ContextPrecomputer.find( classLoader );
+        }
+        assertTrue( cache.isPresent() );
+
+        final RewriteConfig config = new AnnotationParser().parse( TestMergeNamespaces.class );
+        final String expected = XMLRewrite.readXMLString( new XMLRewrite().filterResource( config.getResource() , config ) );
+
+        final List<RewriteMetrics> metrics = new ArrayList<>();
+        final XMLRewrite rewrite = new XMLRewrite();
+        rewrite.setPrecomputedCache( cache.get() );
+        rewrite.addListener( new RewriteListener()
+        {
+            @Override
+            public void contextLoaded(RewriteMetrics m) {
+                metrics.add( m );
+            }
+        });
+        assertEquals( expected , XMLRewrite.readXMLString( rewrite.filterResource( config.getResource() , config ) ) );
+        assertEquals( 1 , metrics.size() );
+        assertTrue( metrics.get(0).isCacheHit() );
+    }
+
+    @Test
+    public void testClassesAreTakenFromRuleIndex() throws Exception
+    {
+        final File classes = folder.newFolder( "test-classes" );
+        final File index = new File( classes , RuleIndex.DIRECTORY );
+        Files.createDirectories( index.toPath() );
+        // same fingerprint, so only the first class of the group gets loaded
+        for ( String className : new String[] { "does.not.Exist" , TestMergeNamespaces.class.getName() , "also.does.not.Exist" } )
+        {
+            try ( OutputStream out = Files.newOutputStream( new File( index , className ).toPath() ) ) {
+                RuleIndex.write( new RuleIndex.Entry( className , "/parent.xml" , "fingerprint" ) , out );
+            }
+        }
+
+        assertEquals( 1 , ContextPrecomputer.precompute( classes , 1 ) );
+
+        final Properties manifest = new Properties();
+        try ( InputStream in = Files.newInputStream( new File( classes , ContextPrecomputer.MANIFEST ).toPath() ) ) {
+            manifest.load( in );
+        }
+        assertEquals( 3 , manifest.size() );
+        assertEquals( manifest.getProperty( TestMergeNamespaces.class.getName() ) , manifest.getProperty( "does.not.Exist" ) );
+    }
+
+    @Test
+    public void testFailuresAreReportedAsWarnings() throws Exception
+    {
+        final File classes = folder.newFolder( "test-classes" );
+        copyClassFile( TestMergeNamespaces.class , classes );
+        // context path does not exist
+        copyClassFile( TestDiskCache.class , classes );
+
+        final List<String> warnings = new ArrayList<>();
+        assertEquals( 1 , ContextPrecomputer.precompute( classes , 2 , warnings::add ) );
+
+        assertEquals( 1 , warnings.size() );
+        assertTrue( warnings.get(0).startsWith( "Failed to rewrite XML for "+TestDiskCache.class.getName() ) );
+    }
+
+    @Test
+    public void testNoPrecomputedXMLOnClasspath() throws Exception
+    {
+        try ( URLClassLoader classLoader = new URLClassLoader( new URL[] { folder.getRoot().toURI().toURL() } , null ) ) {
+            assertFalse( ContextPrecomputer.find( classLoader ).isPresent() );
+        }
+    }
+
+    private static void copyClassFile(Class<?> clazz,File classesDirectory) throws Exception
+    {
+        final String path = clazz.getName().replace( '.' , '/' )+".class";
+        final File target = new File( classesDirectory , path );
+        Files.createDirectories( target.getParentFile().toPath() );
+        try ( InputStream in = clazz.getClassLoader().getResourceAsStream( path ) ) {
+            Files.copy( in , target.toPath() );
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.test.annotation.DirtiesContext.HierarchyMode;
+import org.springframework.test.context.BootstrapWith;
+import org.springframework.test.context.TestContext;
+import org.springframework.test.context.TestContextManager;
+
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ContextConfiguration;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.RemoveRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ReplaceRule;
+
+public class ContextRewritingBootStrapperTest 
+{
+    /* === start: test classes === */
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value="/bootstrap-parent.xml",reparseXML=false)
+    @RemoveRule(xpath="/beans/bean[@id='removed']")
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="rewritten")
+    public static final class DirectDOMRegistration { }
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value="/bootstrap-parent.xml")
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="first")
+    public static final class FirstReplacement { }
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value="/bootstrap-parent.xml")
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="first")
+    public static final class SameAsFirstReplacement { }
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value="/bootstrap-parent.xml")
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="second")
+    public static final class SecondReplacement { }
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value="/bootstrap-parent.xml")
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="metrics")
+    public static final class MetricsReplacement { }
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value={"/bootstrap-child.xml","classpath:bootstrap-extra.xml"})
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="multiple")
+    @RemoveRule(xpath="/beans/bean[@id='removedExtra']")
+    public static final class MultipleLocations { }
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value="/bootstrap-validate.xml",validateOnce=true)
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="validated")
+    public static final class ValidateOnce { }
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value="/bootstrap-validate.xml",validateOnce=true)
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="alreadyValidated")
+    public static final class AlreadyValidated { }
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value="/bootstrap-placeholder.xml",validateOnce=true)
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="otherNamespace")
+    public static final class ValidateOnceWithOtherNamespace { }
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value="/bootstrap-placeholder.xml",reparseXML=false)
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="directWithOtherNamespace")
+    public static final class DirectDOMRegistrationWithOtherNamespace { }
+    
+    @BootstrapWith(ContextRewritingBootStrapper.class)
+    @ContextConfiguration(value="/bootstrap-validate.xml",reparseXML=false)
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="notSerialized")
+    public static final class DirectDOMRegistrationWithoutSerialization { }
+    
+    /* === end: test classes === */
+    
+    @Test
+    public void testRegisterRewrittenDOMDirectly() 
+    {
+        final ApplicationContext ctx = loadContext( DirectDOMRegistration.class );
+        
+        assertFalse( ctx.containsBean( "removed" ) );
+        assertEquals( "rewritten" , ctx.getBean( "builder" ).toString() );
+        assertEquals( Arrays.asList( "a" ) , ctx.getBean( "names" ) );
+        // XSD default attribute values must be honored
+        assertTrue( ((ConfigurableApplicationContext) ctx).getBeanFactory().getBeanDefinition( "list" ).isLazyInit() );
+    }
+    
+    @Test
+    public void testDirectlyRegisteredDOMIsNotSerialized() 
+    {
+        final RewriteStatistics statistics = RewriteStatistics.getInstance();
+        final long contextLoads = statistics.getContextLoads();
+        final long bytesWritten = statistics.getBytesWritten();
+        
+        assertEquals( "notSerialized" , loadContext( DirectDOMRegistrationWithoutSerialization.class ).getBean( "builder" ).toString() );
+        
+        assertEquals( contextLoads + 1 , statistics.getContextLoads() );
+        assertEquals( bytesWritten , statistics.getBytesWritten() );
+    }
+    
+    @Test
+    public void testXMLUsingOtherNamespacesIsAlwaysReparsed() 
+    {
+        final ApplicationContext ctx = loadContext( DirectDOMRegistrationWithOtherNamespace.class );
+        
+        assertEquals( "directWithOtherNamespace" , ctx.getBean( "builder" ).toString() );
+        // default attribute values from spring-context.xsd must be honored
+        assertTrue( beanClassNames( ctx ).containsValue( PropertySourcesPlaceholderConfigurer.class.getName() ) );
+    }
+    
+    @Test
+    public void testContextIsSharedBetweenClassesWithSameRules() 
+    {
+        final ApplicationContext first = loadContext( FirstReplacement.class );
+        
+        assertEquals( "first" , first.getBean( "builder" ).toString() );
+        assertSame( first , loadContext( SameAsFirstReplacement.class ) );
+    }
+    
+    @Test
+    public void testContextIsNotSharedBetweenClassesWithDifferentRules() 
+    {
+        final ApplicationContext first = loadContext( FirstReplacement.class );
+        final ApplicationContext second = loadContext( SecondReplacement.class );
+        
+        assertNotSame( first , second );
+        assertEquals( "first" , first.getBean( "builder" ).toString() );
+        assertEquals( "second" , second.getBean( "builder" ).toString() );
+    }
+    
+    @Test
+    public void testContextLoadsAreReportedToStatisticsMBean() throws Exception
+    {
+        final RewriteStatistics statistics = RewriteStatistics.getInstance();
+        final long contextLoads = statistics.getContextLoads();
+        final long bytesRead = statistics.getBytesRead();
+        
+        assertEquals( "metrics" , loadContext( MetricsReplacement.class ).getBean( "builder" ).toString() );
+        
+        assertEquals( contextLoads + 1 , statistics.getContextLoads() );
+        assertTrue( statistics.getBytesRead() > bytesRead );
+        assertTrue( Arrays.stream( statistics.getSlowestContextLoads() ).anyMatch( s -> s.startsWith( "/bootstrap-parent.xml: " ) ) );
+        assertTrue( ManagementFactory.getPlatformMBeanServer().isRegistered( new ObjectName( RewriteStatistics.OBJECT_NAME ) ) );
+    }
+    
+    @Test
+    public void testRulesApplyToAllLocationsAndBeansAreRegisteredInOrder() 
+    {
+        final ApplicationContext ctx = loadContext( MultipleLocations.class );
+        
+        assertEquals( "multiple" , ctx.getBean( "builder" ).toString() );
+        assertFalse( ctx.containsBean( "removedExtra" ) );
+        assertEquals( LinkedList.class , ctx.getBean( "names" ).getClass() );
+    }
+    
+    @Test
+    public void testValidatedXMLIsRemembered() throws Exception
+    {
+        final String key = validationKey( ValidateOnce.class );
+        assertFalse( ValidationCache.getInstance().isValidated( key ) );
+        
+        assertEquals( "validated" , loadContext( ValidateOnce.class ).getBean( "builder" ).toString() );
+        
+        assertTrue( ValidationCache.getInstance().isValidated( key ) );
+    }
+    
+    @Test
+    public void testAlreadyValidatedXMLIsNotValidatedAgain() throws Exception
+    {
+        ValidationCache.getInstance().setValidated( validationKey( AlreadyValidated.class ) );
+        
+        final ApplicationContext ctx = loadContext( AlreadyValidated.class );
+        
+        assertEquals( "alreadyValidated" , ctx.getBean( "builder" ).toString() );
+        // XSD default attribute values must still be honored
+        assertTrue( ((ConfigurableApplicationContext) ctx).getBeanFactory().getBeanDefinition( "list" ).isLazyInit() );
+    }
+    
+    @Test
+    public void testXMLUsingOtherNamespacesIsValidatedOnEveryLoad() throws Exception
+    {
+        final TestContext testContext = new TestContextManager( ValidateOnceWithOtherNamespace.class ).getTestContext();
+        final Map<String,String> first = beanClassNames( testContext.getApplicationContext() );
+        
+        testContext.markApplicationContextDirty( HierarchyMode.EXHAUSTIVE );
+        final Map<String,String> second = beanClassNames( testContext.getApplicationContext() );
+        
+        // default attribute values from spring-context.xsd must be honored on every load
+        assertTrue( first.containsValue( PropertySourcesPlaceholderConfigurer.class.getName() ) );
+        assertEquals( first , second );
+        assertFalse( ValidationCache.getInstance().isValidated( validationKey( ValidateOnceWithOtherNamespace.class ) ) );
+    }
+    
+    // == helper methods ==
+    
+    private static Map<String,String> beanClassNames(ApplicationContext ctx)
+    {
+        final ConfigurableListableBeanFactory factory = ((ConfigurableApplicationContext) ctx).getBeanFactory();
+        final Map<String,String> result = new HashMap<>();
+        for ( String name : factory.getBeanDefinitionNames() ) {
+            result.put( name , factory.getBeanDefinition( name ).getBeanClassName() );
+        }
+        return result;
+    }
+    
+    private static String validationKey(Class<?> testClass) throws Exception
+    {
+        final RewriteConfig config = new AnnotationParser().parse( testClass );
+        return ValidationCache.key( new XMLRewrite().filterResource( config.getResource() , config ).getData() );
+    }
+    
+    private static ApplicationContext loadContext(Class<?> testClass) {
+        return new TestContextManager( testClass ).getTestContext().getApplicationContext();
+    }
+}
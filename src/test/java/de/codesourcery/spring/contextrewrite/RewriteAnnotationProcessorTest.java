@@ -0,0 +1,132 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RewriteAnnotationProcessorTest
+{
+    private static final String IMPORTS = "import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.*;\n";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testValidRulesAreIndexed() throws Exception
+    {
+        final List<Diagnostic<? extends JavaFileObject>> errors = compile(
+                source( "test.Base" , IMPORTS+"@ContextConfiguration(\"/parent.xml\") @RemoveRule(xpath=\"/beans/bean[@id='bean1']\") "
+                        + "@ReplaceRule(xpath=\"/beans/bean[@id='bean2']/@class\",replacementClassName=String.class) public abstract class Base {}" ),
+                source( "test.Leaf1" , "public class Leaf1 extends Base {}" ),
+                source( "test.Leaf2" , "public class Leaf2 extends Base {}" ),
+                source( "test.Leaf3" , IMPORTS+"@InsertAttributeRule(xpath=\"/beans\",name=\"a\",value=\"b\") public class Leaf3 extends Base {}" ),
+                source( "test.Unrelated" , "public class Unrelated {}" ) );
+        assertEquals( Collections.emptyList() , errors );
+
+        final Map<String,RuleIndex.Entry> index = RuleIndex.read( folder.getRoot() ).stream().collect( Collectors.toMap( e -> e.className , Function.identity() ) );
+        assertEquals( Arrays.asList( "test.Leaf1" , "test.Leaf2" , "test.Leaf3" ) , index.keySet().stream().sorted().collect( Collectors.toList() ) );
+        assertEquals( "/parent.xml" , index.get( "test.Leaf3" ).contextPath );
+        assertEquals( index.get( "test.Leaf1" ).fingerprint , index.get( "test.Leaf2" ).fingerprint );
+        assertNotEquals( index.get( "test.Leaf1" ).fingerprint , index.get( "test.Leaf3" ).fingerprint );
+    }
+
+    @Test
+    public void testInvalidRulesFailCompilation() throws Exception
+    {
+        final List<Diagnostic<? extends JavaFileObject>> errors = compile(
+                source( "test.InvalidXPath" , IMPORTS+"@ContextConfiguration(\"/parent.xml\") @RemoveRule(xpath=\"/beans/bean[\") public class InvalidXPath {}" ),
+                source( "test.MalformedFragment" , IMPORTS+"@InsertElementRule(xpath=\"/beans\",insert=\"<bean>\") public class MalformedFragment {}" ),
+                source( "test.BothReplacements" , IMPORTS+"@ReplaceRule(xpath=\"/beans/bean/@class\",replacement=\"x\",replacementClassName=String.class) public class BothReplacements {}" ),
+                source( "test.DuplicateIDs" , IMPORTS+"@RemoveRule(id=\"a\",xpath=\"/beans\") @LazyInitRule(id=\"a\") public class DuplicateIDs {}" ),
+                source( "test.NoRoots" , IMPORTS+"@PruneRule public class NoRoots {}" ) );
+
+        final List<String> messages = errors.stream().map( d -> d.getMessage( null ) ).collect( Collectors.toList() );
+        assertEquals( messages.toString() , 5 , messages.size() );
+        assertTrue( messages.get(0) , messages.get(0).contains("@RemoveRule: Invalid XPath expression: /beans/bean[") );
+        assertTrue( messages.get(1) , messages.get(1).contains("@InsertElementRule: Malformed XML fragment: <bean>") );
+        assertTrue( messages.get(2) , messages.get(2).contains("@ReplaceRule: Either replacement or replacementClassName needs to be set") );
+        assertTrue( messages.get(3) , messages.get(3).contains("@LazyInitRule: Rule with duplicate ID 'a'") );
+        assertTrue( messages.get(4) , messages.get(4).contains("@PruneRule: @PruneRule needs at least one root bean or root type") );
+    }
+
+    private List<Diagnostic<? extends JavaFileObject>> compile(JavaFileObject... sources) throws Exception
+    {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeNotNull( compiler );
+
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try ( StandardJavaFileManager fileManager = compiler.getStandardFileManager( diagnostics , null , null ) )
+        {
+            fileManager.setLocation( StandardLocation.CLASS_OUTPUT , Collections.singletonList( folder.getRoot() ) );
+            final List<String> options = Arrays.asList( "-proc:only" , "-classpath" , System.getProperty("java.class.path") );
+            final JavaCompiler.CompilationTask task = compiler.getTask( null , fileManager , diagnostics , options , null , Arrays.asList( sources ) );
+            task.setProcessors( Collections.singletonList( new RewriteAnnotationProcessor() ) );
+            task.call();
+        }
+        final List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+        for ( Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics() )
+        {
+            if ( diagnostic.getKind() == Diagnostic.Kind.ERROR ) {
+                errors.add( diagnostic );
+            }
+        }
+        return errors;
+    }
+
+    private static JavaFileObject source(String className,String body)
+    {
+        final String simpleName = className.substring( className.lastIndexOf('.') + 1 );
+        final String code = "package "+className.substring( 0 , className.lastIndexOf('.') )+";\n"+body;
+        return new SimpleJavaFileObject( URI.create( "string:///"+className.replace('.', File.separatorChar )+".java" ) , JavaFileObject.Kind.SOURCE )
+        {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+
+            @Override
+            public String toString() {
+                return simpleName;
+            }
+        };
+    }
+}
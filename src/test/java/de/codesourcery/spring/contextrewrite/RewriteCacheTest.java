@@ -0,0 +1,75 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RewriteCacheTest 
+{
+    @Test
+    public void testLeastRecentlyUsedEntryGetsEvicted() 
+    {
+        final RewriteCache cache = new RewriteCache( 20 , false );
+        cache.put( "a" , new byte[10] );
+        cache.put( "b" , new byte[10] );
+        assertTrue( cache.get( "a" ).isPresent() );
+        
+        cache.put( "c" , new byte[10] );
+        
+        assertFalse( cache.get( "b" ).isPresent() );
+        assertTrue( cache.get( "a" ).isPresent() );
+        assertTrue( cache.get( "c" ).isPresent() );
+        assertEquals( 20 , cache.getSize() );
+        assertEquals( 2 , cache.getEntryCount() );
+        assertEquals( 3 , cache.getHits() );
+        assertEquals( 1 , cache.getMisses() );
+        assertEquals( 1 , cache.getEvictions() );
+    }
+    
+    @Test
+    public void testCompressedStorage() 
+    {
+        final byte[] data = new byte[10000];
+        data[42] = 42;
+        
+        final RewriteCache cache = new RewriteCache( 1000 , true );
+        cache.put( "a" , data );
+        
+        assertTrue( cache.getSize() < 1000 );
+        assertArrayEquals( data , cache.get( "a" ).get() );
+    }
+    
+    @Test
+    public void testRewriteIsOnlyPerformedOnce() throws Exception 
+    {
+        final RewriteConfig config = new AnnotationParser().parse( XMLRewriteTest.TestMergeNamespaces.class );
+        final RewriteCache cache = new RewriteCache( RewriteCache.DEFAULT_MAX_SIZE , false );
+        final XMLRewrite rewrite = new XMLRewrite();
+        rewrite.setMemoryCache( cache );
+        
+        final byte[] first = rewrite.filterResource( config.getResource() , config ).getData();
+        final byte[] second = rewrite.filterResource( config.getResource() , config ).getData();
+        
+        assertArrayEquals( first , second );
+        assertEquals( 1 , cache.getMisses() );
+        assertEquals( 1 , cache.getHits() );
+    }
+}
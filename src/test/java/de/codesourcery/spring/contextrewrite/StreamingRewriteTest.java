@@ -0,0 +1,186 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Optional;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ContextConfiguration;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertAttributeRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertElementRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.RemoveRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ReplaceRule;
+
+public class StreamingRewriteTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File parent;
+
+    /* === start: test classes === */
+
+    @ContextConfiguration(value="/ignored.xml",streaming=true)
+    @RemoveRule(xpath="/beans/bean[@id='removed']")
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/constructor-arg/@value",replacement="rewritten & <escaped>")
+    @ReplaceRule(xpath="/beans/bean[@id='replaced']",replacement="<bean id=\"replacement\" class=\"java.lang.Object\"/>")
+    @InsertElementRule(xpath="/beans/bean[@id='child']",insert="<property name=\"inserted\" value=\"true\"/>")
+    @InsertAttributeRule(xpath="/beans/bean[@id='child']",name="lazy-init",value="true")
+    @InsertElementRule(xpath="/beans",insert="<bean id=\"last\"/>")
+    public static final class StreamableRules { }
+
+    @ContextConfiguration(value="/ignored.xml",streaming=true)
+    @RemoveRule(xpath="//bean[@id='removed']")
+    public static final class NonStreamableXPath { }
+
+    @ContextConfiguration(value="/ignored.xml",streaming=true)
+    @ReplaceRule(xpath="/beans/bean[@id='builder']/@id",replacement="removed")
+    @RemoveRule(xpath="/beans/bean[@id='removed']")
+    public static final class InterferingRules { }
+
+    @ContextConfiguration(value="/ignored.xml",streaming=true)
+    @RemoveRule(xpath="/beans/bean[@id='doesNotExist']")
+    public static final class UnmatchedRule { }
+
+    /* === end: test classes === */
+
+    @Before
+    public void setup() throws Exception
+    {
+        parent = folder.newFile( "parent.xml" );
+        write( parent , "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
+                "<!-- comment -->\n"+
+                "<beans xmlns=\"http://www.springframework.org/schema/beans\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"+
+                "       xsi:schemaLocation=\"http://www.springframework.org/schema/beans http://www.springframework.org/schema/beans/spring-beans.xsd\">\n"+
+                "  <bean id=\"removed\" class=\"java.lang.Object\"><property name=\"x\" value=\"y\"/></bean>\n"+
+                "  <bean id=\"builder\" class=\"java.lang.StringBuilder\">\n"+
+                "    <constructor-arg value=\"original\"/>\n"+
+                "    <!-- a comment -->\n"+
+                "  </bean>\n"+
+                "  <bean id=\"replaced\" class=\"java.lang.Object\"/>\n"+
+                "  <import resource=\"child.xml\"/>\n"+
+                "  <import resource=\"util.xml\"/>\n"+
+                "  <bean id=\"text\" class=\"java.lang.String\"><constructor-arg><value><![CDATA[a < b]]></value></constructor-arg></bean>\n"+
+                "</beans>" );
+        write( folder.newFile( "child.xml" ) , "<beans xmlns=\"http://www.springframework.org/schema/beans\" default-lazy-init=\"true\">"+
+                "<bean id=\"child\" class=\"java.lang.Object\"/>"+
+                "<bean id=\"removed\" class=\"java.lang.Object\"/>"+
+                "<import resource=\"util.xml\"/>"+
+                "</beans>" );
+        write( folder.newFile( "util.xml" ) , "<beans xmlns=\"http://www.springframework.org/schema/beans\" xmlns:util=\"http://www.springframework.org/schema/util\"\n"+
+                "       xsi:schemaLocation=\"http://www.springframework.org/schema/util http://www.springframework.org/schema/util/spring-util.xsd\"\n"+
+                "       xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"+
+                "<util:list id=\"names\"><value>a &amp; b</value></util:list>"+
+                "</beans>" );
+    }
+
+    @Test
+    public void testStreamingYieldsSameXMLAsDOM() throws Exception
+    {
+        final RewriteConfig config = new AnnotationParser().parse( StreamableRules.class );
+        Assert.assertTrue( StreamingRewrite.create( config.getRules() , msg -> {} ).get().rewrite( new FileSystemResource( parent ) , new XMLRewrite.RewriteContext( false ) ).isPresent() );
+
+        final String streamed = rewrite( config );
+        Assert.assertTrue( streamed.contains( "rewritten &amp; &lt;escaped&gt;" ) );
+        Assert.assertFalse( streamed.contains( "\"removed\"" ) );
+        Assert.assertEquals( rewrite( withoutStreaming( config ) ) , streamed );
+    }
+
+    @Test
+    public void testNonStreamableXPathFallsBackToDOM() throws Exception
+    {
+        final RewriteConfig config = new AnnotationParser().parse( NonStreamableXPath.class );
+        Assert.assertFalse( StreamingRewrite.create( config.getRules() , msg -> {} ).isPresent() );
+        Assert.assertEquals( rewrite( withoutStreaming( config ) ) , rewrite( config ) );
+    }
+
+    @Test
+    public void testInterferingRulesFallBackToDOM() throws Exception
+    {
+        final RewriteConfig config = new AnnotationParser().parse( InterferingRules.class );
+        Assert.assertFalse( StreamingRewrite.create( config.getRules() , msg -> {} ).isPresent() );
+    }
+
+    @Test
+    public void testUnmatchedRuleFallsBackToDOM() throws Exception
+    {
+        final RewriteConfig config = new AnnotationParser().parse( UnmatchedRule.class );
+        final Optional<StreamingRewrite> streaming = StreamingRewrite.create( config.getRules() , msg -> {} );
+        Assert.assertFalse( streaming.get().rewrite( new FileSystemResource( parent ) , new XMLRewrite.RewriteContext( false ) ).isPresent() );
+        try {
+            rewrite( config );
+            Assert.fail("Should've failed");
+        } catch(RuntimeException e) {
+            Assert.assertEquals( "One or more rules were not matched" , e.getMessage() );
+        }
+    }
+
+    @Test
+    public void testResourceWithoutRootElementIsNotStreamed() throws Exception
+    {
+        final RewriteConfig config = new AnnotationParser().parse( StreamableRules.class );
+        final Optional<StreamingRewrite> streaming = StreamingRewrite.create( config.getRules() , msg -> {} );
+        Assert.assertFalse( streaming.get().rewrite( new ByteArrayResource( "<!-- nothing -->".getBytes() ) , new XMLRewrite.RewriteContext( false ) ).isPresent() );
+    }
+
+    @Test
+    public void testSimplePathParsing()
+    {
+        final SimplePath path = SimplePath.parse( "/beans/bean[@id='a'][ @class = \"b\" ]/*/@value" ).get();
+        Assert.assertEquals( 3 , path.depth() );
+        Assert.assertEquals( "value" , path.attribute );
+        Assert.assertEquals( "bean[@id='a'][@class='b']" , path.steps.get(1).toString() );
+        Assert.assertTrue( path.steps.get(2).isWildcard() );
+
+        Assert.assertFalse( SimplePath.parse( "//bean" ).isPresent() );
+        Assert.assertFalse( SimplePath.parse( "/beans/bean[1]" ).isPresent() );
+        Assert.assertFalse( SimplePath.parse( "/beans/util:list" ).isPresent() );
+        Assert.assertFalse( SimplePath.parse( "/beans/bean/@*" ).isPresent() );
+        Assert.assertFalse( SimplePath.parse( "/beans/bean[@id='a' or @id='b']" ).isPresent() );
+        Assert.assertFalse( SimplePath.parse( "/beans/@id/bean" ).isPresent() );
+
+        Assert.assertTrue( SimplePath.parse( "/beans/bean[@id='a']" ).get().mayOverlap( SimplePath.parse( "/beans/*/property" ).get() ) );
+        Assert.assertFalse( SimplePath.parse( "/beans/bean[@id='a']" ).get().mayOverlap( SimplePath.parse( "/beans/bean[@id='b']/property" ).get() ) );
+    }
+
+    // == helper methods ==
+
+    private static RewriteConfig withoutStreaming(RewriteConfig config)
+    {
+        final RewriteConfig result = new RewriteConfig();
+        result.setParent( config );
+        result.setStreaming( false );
+        return result;
+    }
+
+    private String rewrite(RewriteConfig config) throws Exception {
+        return XMLRewrite.stripXML( XMLRewrite.readXMLString( new XMLRewrite().filterResource( new FileSystemResource( parent ) , config ) ) );
+    }
+
+    private static void write(File file,String xml) throws Exception {
+        Files.write( file.toPath() , xml.getBytes( StandardCharsets.UTF_8 ) );
+    }
+}
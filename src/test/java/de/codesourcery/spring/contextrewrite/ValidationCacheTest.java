@@ -0,0 +1,56 @@
+/**
+ * Copyright 2015 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.spring.contextrewrite;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ValidationCacheTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testValidatedXMLIsRememberedInMemory()
+    {
+        final ValidationCache cache = new ValidationCache( null );
+        final String key = ValidationCache.key( "<beans/>".getBytes() );
+        assertNotEquals( key , ValidationCache.key( "<beans></beans>".getBytes() ) );
+
+        assertFalse( cache.isValidated( key ) );
+        cache.setValidated( key );
+        assertTrue( cache.isValidated( key ) );
+    }
+
+    @Test
+    public void testValidatedXMLIsRememberedAcrossInstances()
+    {
+        final File directory = new File( folder.getRoot() , ValidationCache.DIRECTORY );
+        final String key = ValidationCache.key( "<beans/>".getBytes() );
+
+        new ValidationCache( directory ).setValidated( key );
+
+        assertTrue( new ValidationCache( directory ).isValidated( key ) );
+        assertFalse( new ValidationCache( folder.getRoot() ).isValidated( key ) );
+    }
+}
@@ -15,20 +15,89 @@
  */
 package de.codesourcery.spring.contextrewrite;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.ContextConfiguration;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.InsertAttributeRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.LazyInitRule;
+import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.PruneRule;
 import de.codesourcery.spring.contextrewrite.ContextRewritingBootStrapper.RemoveRule;
 
 public class XMLRewriteTest 
 {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    
     @ContextConfiguration(value="/parent.xml")
     @RemoveRule(xpath="/beans/bean[@id='bean1']")
     public static final class TestMergeNamespaces {
     }
     
+    @ContextConfiguration(value="/ignored.xml")
+    @RemoveRule(xpath="/beans/bean[@id='bean1']")
+    public static final class TestDiskCache {
+    }
+    
+    @ContextConfiguration(value={"/ignored1.xml","/ignored2.xml"})
+    @RemoveRule(xpath="/beans/bean[@id='first']")
+    @RemoveRule(xpath="/beans/bean[@id='second']")
+    public static final class TestMultipleLocations {
+    }
+    
+    @ContextConfiguration(value="/ignored.xml",parallelImports=true)
+    @RemoveRule(xpath="/beans/bean[@id='removed']")
+    public static final class TestParallelImports {
+    }
+    
+    @ContextConfiguration(value="/ignored.xml")
+    @LazyInitRule(eager="eager")
+    public static final class TestLazyInit {
+    }
+    
+    @LazyInitRule(beans=true,eager="bean2")
+    private static final class LazyInitRuleHolder {
+    }
+    
+    @ContextConfiguration(value="/ignored.xml")
+    @PruneRule(roots="root")
+    public static final class TestPrune {
+    }
+    
+    @PruneRule(id="prune",roots="root",rootTypes=Integer.class)
+    private static final class PruneRuleHolder {
+    }
+    
+    @ContextConfiguration(value="/ignored.xml",inheritedRulesFirst=true)
+    @RemoveRule(xpath="/beans/bean[@id='base1']")
+    @InsertAttributeRule(xpath="/beans/bean[@id='shared']", name="lazy-init", value="true")
+    public static class SnapshotBase {
+    }
+    
+    @RemoveRule(xpath="/beans/bean[@id='leaf1']")
+    public static final class SnapshotLeaf1 extends SnapshotBase {
+    }
+    
+    @RemoveRule(xpath="/beans/bean[@id='leaf2']")
+    public static final class SnapshotLeaf2 extends SnapshotBase {
+    }
+    
     @Test
     public void testSchemaLocationsAndNameSpacesGetMerged() throws Exception {
         
@@ -38,4 +107,489 @@ public class XMLRewriteTest
         final String transformed = XMLRewrite.stripXML( XMLRewrite.readXMLString( filtered ) );
         Assert.assertEquals( "<beans xmlns=\"http://www.springframework.org/schema/beans\" xmlns:tx=\"http://www.springframework.org/schema/tx\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"http://www.springframework.org/schema/beans         http://www.springframework.org/schema/beans/spring-beans.xsd http://www.springframework.org/schema/tx http://www.springframework.org/schema/tx/spring-tx.xsd\"/>" , transformed );
     }
+    
+    @Test
+    public void testRulesOnlyNeedToMatchInOneOfMultipleLocations() throws Exception {
+        
+        final File first = folder.newFile( "first.xml" );
+        final File second = folder.newFile( "second.xml" );
+        write( first , "<beans><bean id=\"first\"/><bean id=\"kept1\"/></beans>" );
+        write( second , "<beans><bean id=\"second\"/><bean id=\"kept2\"/></beans>" );
+        
+        final RewriteConfig config = new AnnotationParser().parse( TestMultipleLocations.class );
+        final XMLRewrite rewrite = new XMLRewrite();
+        final DiskCache cache = new DiskCache( folder.newFolder( "cache" ) , DiskCache.DEFAULT_MAX_SIZE );
+        rewrite.setDiskCache( cache );
+        
+        final List<Resource> resources = Arrays.asList( new FileSystemResource( first ) , new FileSystemResource( second ) );
+        Assert.assertEquals( Arrays.asList( "<beans><bean id=\"kept1\"/></beans>" , "<beans><bean id=\"kept2\"/></beans>" ) , rewrite( rewrite , resources , config ) );
+        Assert.assertEquals( 2 , cache.getDirectory().list().length );
+        Assert.assertEquals( Arrays.asList( "<beans><bean id=\"kept1\"/></beans>" , "<beans><bean id=\"kept2\"/></beans>" ) , rewrite( rewrite , resources , config ) );
+        
+        // cached result of the first location must not hide that a rule no longer matches anywhere
+        write( second , "<beans><bean id=\"kept2\"/></beans>" );
+        try {
+            rewrite( rewrite , resources , config );
+            Assert.fail("Should have failed");
+        } catch(RuntimeException e) {
+            Assert.assertEquals( "One or more rules were not matched" , e.getMessage() );
+        }
+    }
+    
+    @Test
+    public void testBytesWrittenAddUpOverAllLocations() throws Exception {
+        
+        final File first = folder.newFile( "first.xml" );
+        final File second = folder.newFile( "second.xml" );
+        write( first , "<beans><bean id=\"first\"/><bean id=\"kept1\"/></beans>" );
+        write( second , "<beans><bean id=\"second\"/><bean id=\"kept2\"/><bean id=\"kept3\"/></beans>" );
+        
+        final RewriteConfig config = new AnnotationParser().parse( TestMultipleLocations.class );
+        final XMLRewrite rewrite = new XMLRewrite();
+        rewrite.setDiskCache( new DiskCache( folder.newFolder( "cache" ) , DiskCache.DEFAULT_MAX_SIZE ) );
+        rewrite.setMemoryCache( new RewriteCache( RewriteCache.DEFAULT_MAX_SIZE , false ) );
+        
+        final List<Resource> resources = Arrays.asList( new FileSystemResource( first ) , new FileSystemResource( second ) );
+        for ( int i = 0 ; i < 2 ; i++ ) // second time around the results come from the memory cache
+        {
+            final RewriteMetrics metrics = new RewriteMetrics( "test" );
+            long expected = 0;
+            for ( RewrittenResource result : rewrite.filterResources( resources , config , metrics ) ) {
+                expected += result.getData().length;
+            }
+            Assert.assertEquals( i == 1 , metrics.isCacheHit() );
+            Assert.assertEquals( expected , metrics.getBytesWritten() );
+        }
+    }
+    
+    @Test
+    public void testDOMIsNotSerializedForMemoryCacheWithoutReparsing() throws Exception {
+
+        final File file = folder.newFile( "file.xml" );
+        write( file , "<beans><bean id=\"first\"/><bean id=\"kept1\"/><bean id=\"second\"/></beans>" );
+
+        final RewriteConfig config = new RewriteConfig();
+        config.setParent( new AnnotationParser().parse( TestMultipleLocations.class ) );
+        config.setReparseXML( false );
+        final XMLRewrite rewrite = new XMLRewrite();
+        final RewriteCache cache = new RewriteCache( RewriteCache.DEFAULT_MAX_SIZE , false );
+        rewrite.setMemoryCache( cache );
+
+        final RewriteMetrics metrics = new RewriteMetrics( "test" );
+        final List<RewrittenResource> result = rewrite.filterResources( Arrays.asList( new FileSystemResource( file ) ) , config , metrics );
+        Assert.assertEquals( 0 , metrics.getBytesWritten() );
+        Assert.assertFalse( result.get(0).isSerialized() );
+        Assert.assertEquals( 0 , cache.getEntryCount() );
+    }
+
+    @Test
+    public void testDiskCacheIsInvalidatedWhenImportedFileChanges() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        final File child = folder.newFile( "child.xml" );
+        write( parent , "<beans><bean id=\"bean1\"/><import resource=\"child.xml\"/></beans>" );
+        write( child , "<beans><bean id=\"bean2\"/></beans>" );
+        
+        final RewriteConfig config = new AnnotationParser().parse( TestDiskCache.class );
+        final XMLRewrite rewrite = new XMLRewrite();
+        final DiskCache cache = new DiskCache( folder.newFolder( "cache" ) , DiskCache.DEFAULT_MAX_SIZE );
+        rewrite.setDiskCache( cache );
+
+        Assert.assertEquals( "<beans><bean id=\"bean2\"/></beans>" , rewrite( rewrite , parent , config ) );
+        Assert.assertEquals( 1 , cache.getDirectory().list().length );
+        Assert.assertEquals( "<beans><bean id=\"bean2\"/></beans>" , rewrite( rewrite , parent , config ) );
+        
+        write( child , "<beans><bean id=\"bean3\"/></beans>" );
+        Assert.assertEquals( "<beans><bean id=\"bean3\"/></beans>" , rewrite( rewrite , parent , config ) );
+        Assert.assertEquals( 1 , cache.getDirectory().list().length );
+    }
+    
+    @Test
+    public void testDocumentCacheReusesUnmodifiedSourceDocuments() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        final File child = folder.newFile( "child.xml" );
+        write( parent , "<beans><bean id=\"bean1\"/><import resource=\"child.xml\"/></beans>" );
+        write( child , "<beans><bean id=\"bean2\"/></beans>" );
+        
+        final XMLRewrite rewrite = new XMLRewrite();
+        final SourceDocumentCache cache = new SourceDocumentCache( 10 );
+        rewrite.setDocumentCache( cache );
+
+        Assert.assertEquals( "<beans><bean id=\"bean2\"/></beans>" , rewrite( rewrite , parent , new AnnotationParser().parse( TestDiskCache.class ) ) );
+        Assert.assertEquals( 2 , cache.getMisses() );
+        
+        // rewriting must not have modified the cached documents 
+        final RewriteConfig noRules = new RewriteConfig();
+        noRules.setContextPath( "/ignored.xml" );
+        Assert.assertEquals( "<beans><bean id=\"bean1\"/><bean id=\"bean2\"/></beans>" , rewrite( rewrite , parent , noRules ) );
+        Assert.assertEquals( 2 , cache.getHits() );
+        Assert.assertEquals( 2 , cache.getMisses() );
+        
+        final long lastModified = child.lastModified();
+        write( child , "<beans><bean id=\"bean3\"/></beans>" );
+        child.setLastModified( lastModified + 2000 ); // same length, make sure the change is detected on file systems with coarse timestamps
+        Assert.assertEquals( "<beans><bean id=\"bean1\"/><bean id=\"bean3\"/></beans>" , rewrite( rewrite , parent , noRules ) );
+        Assert.assertEquals( 3 , cache.getHits() );
+        Assert.assertEquals( 3 , cache.getMisses() );
+    }
+    
+    @Test
+    public void testLazyInitRuleAppliesToImportedAndNestedBeansElements() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        write( parent , "<beans><bean id=\"bean1\"/><import resource=\"child.xml\"/></beans>" );
+        write( folder.newFile( "child.xml" ) , "<beans default-lazy-init=\"false\"><bean name=\"other,eager\"/><beans profile=\"test\"><bean id=\"bean2\"/></beans></beans>" );
+        
+        final RewriteConfig config = new AnnotationParser().parse( TestLazyInit.class );
+        Assert.assertEquals( "<beans default-lazy-init=\"true\"><bean id=\"bean1\"/><bean lazy-init=\"false\" name=\"other,eager\"/><beans default-lazy-init=\"true\" profile=\"test\"><bean id=\"bean2\"/></beans></beans>" , 
+                rewrite( new XMLRewrite() , parent , config ) );
+        
+        final RewriteConfig allBeans = new RewriteConfig();
+        allBeans.setContextPath( "/ignored.xml" );
+        allBeans.addRules( XMLRewrite.wrap( LazyInitRuleHolder.class.getAnnotationsByType( LazyInitRule.class ) ) );
+        Assert.assertEquals( "<beans default-lazy-init=\"true\"><bean id=\"bean1\" lazy-init=\"true\"/><bean lazy-init=\"true\" name=\"other,eager\"/><beans default-lazy-init=\"true\" profile=\"test\"><bean id=\"bean2\" lazy-init=\"false\"/></beans></beans>" , 
+                rewrite( new XMLRewrite() , parent , allBeans ) );
+    }
+    
+    @Test
+    public void testPruneRuleRemovesBeansNotReachableFromRoots() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        write( parent , "<beans><bean id=\"root\" class=\"java.lang.Object\"><property name=\"a\" ref=\"aAlias\"/></bean><alias name=\"a\" alias=\"aAlias\"/>"+
+                "<import resource=\"child.xml\"/><bean id=\"unused\"/></beans>" );
+        write( folder.newFile( "child.xml" ) , "<beans><bean id=\"a\" parent=\"template\"><property name=\"x\"><bean class=\"java.lang.String\"><constructor-arg ref=\"b\"/></bean></property></bean>"+
+                "<bean id=\"template\" abstract=\"true\"/><bean id=\"b\" depends-on=\"c\"/><bean id=\"c\"/>"+
+                "<bean id=\"pp\" class=\"org.springframework.beans.factory.config.PropertyPlaceholderConfigurer\"/><bean id=\"missing\" class=\"does.not.Exist\"/>"+
+                "<bean id=\"dead\" class=\"java.lang.Integer\"/><alias name=\"dead\" alias=\"deadAlias\"/></beans>" );
+        
+        final String kept = "<bean class=\"java.lang.Object\" id=\"root\"><property name=\"a\" ref=\"aAlias\"/></bean><alias alias=\"aAlias\" name=\"a\"/>"+
+                "<bean id=\"a\" parent=\"template\"><property name=\"x\"><bean class=\"java.lang.String\"><constructor-arg ref=\"b\"/></bean></property></bean>"+
+                "<bean abstract=\"true\" id=\"template\"/><bean depends-on=\"c\" id=\"b\"/><bean id=\"c\"/>"+
+                "<bean class=\"org.springframework.beans.factory.config.PropertyPlaceholderConfigurer\" id=\"pp\"/><bean class=\"does.not.Exist\" id=\"missing\"/>";
+        
+        final RewriteConfig config = new AnnotationParser().parse( TestPrune.class );
+        final List<String> messages = new ArrayList<>();
+        final XMLRewrite rewrite = new XMLRewrite();
+        rewrite.addListener( new RewriteListener() 
+        {
+            @Override
+            public void info(String message) {
+                messages.add( message );
+            }
+        });
+        Assert.assertEquals( "<beans>"+kept+"</beans>" , rewrite( rewrite , parent , config ) );
+        // summary gets reported even without debug output
+        Assert.assertEquals( 1 , messages.size() );
+        Assert.assertTrue( messages.get(0).startsWith( "Pruned " ) );
+        Assert.assertTrue( messages.get(0).contains( "unused" ) );
+        
+        final RewriteConfig withRootType = new RewriteConfig();
+        withRootType.setContextPath( "/ignored.xml" );
+        withRootType.addRules( XMLRewrite.wrap( PruneRuleHolder.class.getAnnotationsByType( PruneRule.class ) ) );
+        Assert.assertEquals( "<beans>"+kept+"<bean class=\"java.lang.Integer\" id=\"dead\"/><alias alias=\"deadAlias\" name=\"dead\"/></beans>" , rewrite( new XMLRewrite() , parent , withRootType ) );
+        Assert.assertNotEquals( config.getRulesFingerprint() , withRootType.getRulesFingerprint() );
+    }
+    
+    @Test
+    public void testPruneRuleFailsOnUnknownRoot() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        write( parent , "<beans><bean id=\"other\"/></beans>" );
+        try {
+            rewrite( new XMLRewrite() , parent , new AnnotationParser().parse( TestPrune.class ) );
+            Assert.fail("Should've failed");
+        } 
+        catch(IllegalArgumentException e) {
+            Assert.assertEquals( "Root bean 'root' does not exist" , e.getMessage() );
+        }
+    }
+    
+    @Test
+    public void testSnapshotsOfSharedRulePrefixesAreReused() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        final File child = folder.newFile( "child.xml" );
+        write( parent , "<beans><bean id=\"base1\"/><bean id=\"leaf1\"/><import resource=\"child.xml\"/></beans>" );
+        write( child , "<beans><bean id=\"shared\"/><bean id=\"leaf2\"/></beans>" );
+        
+        final RewriteConfig leaf1 = new AnnotationParser().parse( SnapshotLeaf1.class );
+        final RewriteConfig leaf2 = new AnnotationParser().parse( SnapshotLeaf2.class );
+        
+        final XMLRewrite rewrite = new XMLRewrite();
+        final SnapshotCache cache = new SnapshotCache( SnapshotCache.DEFAULT_MAX_SIZE );
+        rewrite.setSnapshotCache( cache );
+        
+        final String expected1 = "<beans><bean id=\"shared\" lazy-init=\"true\"/><bean id=\"leaf2\"/></beans>";
+        final String expected2 = "<beans><bean id=\"leaf1\"/><bean id=\"shared\" lazy-init=\"true\"/></beans>";
+        
+        Assert.assertEquals( expected1 , rewrite( rewrite , parent , leaf1 ) );
+        Assert.assertEquals( 0 , cache.getHits() );
+        Assert.assertEquals( 4 , cache.getEntryCount() ); // after base rules and after all rules, for both files
+        
+        // leaf2 starts from the snapshots taken after applying the base class rules
+        Assert.assertEquals( expected2 , rewrite( rewrite , parent , leaf2 ) );
+        Assert.assertEquals( 2 , cache.getHits() );
+        Assert.assertEquals( 6 , cache.getEntryCount() );
+        
+        // snapshots must not have been modified
+        Assert.assertEquals( expected1 , rewrite( rewrite , parent , leaf1 ) );
+        Assert.assertEquals( expected2 , rewrite( rewrite , parent , leaf2 ) );
+        Assert.assertEquals( 6 , cache.getHits() );
+        
+        // changed files never match snapshots of their previous content
+        write( child , "<beans><bean id=\"shared\"/><bean id=\"leaf2\"/><bean id=\"new\"/></beans>" );
+        Assert.assertEquals( "<beans><bean id=\"leaf1\"/><bean id=\"shared\" lazy-init=\"true\"/><bean id=\"new\"/></beans>" , rewrite( rewrite , parent , leaf2 ) );
+        Assert.assertEquals( expected2 , rewrite( new XMLRewrite() , parent , leaf2 ).replace( "<bean id=\"new\"/>" , "" ) );
+    }
+    
+    @Test
+    public void testSnapshotCacheEvictsLeastRecentlyUsedSnapshots() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        write( parent , "<beans><bean id=\"base1\"/><bean id=\"leaf1\"/><bean id=\"leaf2\"/><bean id=\"shared\"/></beans>" );
+        
+        final XMLRewrite rewrite = new XMLRewrite();
+        final SnapshotCache cache = new SnapshotCache( 2 * SnapshotCache.estimateSize( parent.length() ) );
+        rewrite.setSnapshotCache( cache );
+        
+        final RewriteConfig leaf1 = new AnnotationParser().parse( SnapshotLeaf1.class );
+        final RewriteConfig leaf2 = new AnnotationParser().parse( SnapshotLeaf2.class );
+        Assert.assertEquals( "<beans><bean id=\"leaf2\"/><bean id=\"shared\" lazy-init=\"true\"/></beans>" , rewrite( rewrite , parent , leaf1 ) );
+        Assert.assertEquals( "<beans><bean id=\"leaf1\"/><bean id=\"shared\" lazy-init=\"true\"/></beans>" , rewrite( rewrite , parent , leaf2 ) );
+        Assert.assertEquals( 2 , cache.getEntryCount() );
+        Assert.assertEquals( 1 , cache.getHits() );
+        
+        // snapshot with all rules of leaf1 got evicted, snapshot of base rules is still there 
+        Assert.assertEquals( "<beans><bean id=\"leaf2\"/><bean id=\"shared\" lazy-init=\"true\"/></beans>" , rewrite( rewrite , parent , leaf1 ) );
+        Assert.assertEquals( 2 , cache.getHits() );
+        Assert.assertEquals( 2 , cache.getEntryCount() );
+    }
+    
+    @Test
+    public void testDiamondImportsAreInlinedOnlyOnce() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        write( parent , "<beans><import resource=\"left.xml\"/><import resource=\"right.xml\"/></beans>" );
+        write( folder.newFile( "left.xml" ) , "<beans><bean id=\"left\"/><import resource=\"shared.xml\"/></beans>" );
+        write( folder.newFile( "right.xml" ) , "<beans><import resource=\"shared.xml\"/><bean id=\"right\"/></beans>" );
+        write( folder.newFile( "shared.xml" ) , "<beans><bean id=\"shared\"/></beans>" );
+        
+        final RewriteConfig config = new RewriteConfig();
+        config.setContextPath( "/ignored.xml" );
+        Assert.assertEquals( "<beans><bean id=\"left\"/><bean id=\"shared\"/><bean id=\"right\"/></beans>" , rewrite( new XMLRewrite() , parent , config ) );
+    }
+    
+    @Test
+    public void testImportsInDifferentProfileScopesAreAllInlined() throws Exception {
+
+        final File parent = folder.newFile( "parent.xml" );
+        final File reversed = folder.newFile( "reversed.xml" );
+        write( parent , "<beans><beans profile=\"dev\"><import resource=\"shared.xml\"/><import resource=\"shared.xml\"/></beans><import resource=\"shared.xml\"/></beans>" );
+        write( reversed , "<beans><import resource=\"shared.xml\"/><beans profile=\"dev\"><import resource=\"shared.xml\"/></beans></beans>" );
+        write( folder.newFile( "shared.xml" ) , "<beans><bean id=\"shared\"/></beans>" );
+
+        for ( boolean streaming : new boolean[] { false , true } )
+        {
+            final RewriteConfig config = new RewriteConfig();
+            config.setContextPath( "/ignored.xml" );
+            config.setStreaming( streaming );
+            // unconditional import must not be dropped because of an earlier import that is only active with profile 'dev'
+            Assert.assertEquals( "<beans><beans profile=\"dev\"><bean id=\"shared\"/></beans><bean id=\"shared\"/></beans>" , rewrite( new XMLRewrite() , parent , config ) );
+            // import within profile is redundant if the file has already been imported unconditionally
+            Assert.assertEquals( "<beans><bean id=\"shared\"/><beans profile=\"dev\"/></beans>" , rewrite( new XMLRewrite() , reversed , config ) );
+        }
+    }
+
+    @Test
+    public void testCyclicImportsAreDetected() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        write( parent , "<beans><import resource=\"child.xml\"/></beans>" );
+        write( folder.newFile( "child.xml" ) , "<beans><import resource=\"parent.xml\"/></beans>" );
+        
+        final RewriteConfig config = new RewriteConfig();
+        config.setContextPath( "/ignored.xml" );
+        try {
+            rewrite( new XMLRewrite() , parent , config );
+            Assert.fail("Should've failed");
+        } 
+        catch(RuntimeException e) 
+        {
+            Throwable cause = e;
+            while ( cause.getCause() != null ) {
+                cause = cause.getCause();
+            }
+            Assert.assertTrue( cause instanceof IllegalArgumentException );
+            final String expected = "Cyclic import detected: "+parent.toURI().toURL()+" -> "+new File( folder.getRoot() , "child.xml" ).toURI().toURL()+" -> "+parent.toURI().toURL();
+            Assert.assertEquals( expected , cause.getMessage() );
+        }
+    }
+    
+    @Test
+    public void testParallelImportsYieldSameXMLAsSequentialImports() throws Exception {
+        
+        final StringBuilder root = new StringBuilder("<beans xmlns=\"http://www.springframework.org/schema/beans\">");
+        for ( int i = 0 ; i < 20 ; i++ ) 
+        {
+            root.append("<bean id=\"root"+i+"\"/><import resource=\"file"+i+".xml\"/>");
+            write( folder.newFile( "file"+i+".xml" ) , "<beans xmlns:ns"+i+"=\"http://ns"+i+"\"><bean id=\"bean"+i+"\"/><import resource=\"shared"+(i%3)+".xml\"/></beans>" );
+        }
+        root.append("</beans>");
+        for ( int i = 0 ; i < 3 ; i++ ) {
+            write( folder.newFile( "shared"+i+".xml" ) , "<beans><bean id=\"shared"+i+"\"/><import resource=\"common.xml\"/></beans>" );
+        }
+        write( folder.newFile( "common.xml" ) , "<beans><bean id=\"common\"/><bean id=\"removed\"/></beans>" );
+        final File parent = folder.newFile( "parent.xml" );
+        write( parent , root.toString() );
+        
+        final RewriteConfig sequential = new RewriteConfig();
+        sequential.setContextPath( "/ignored.xml" );
+        sequential.addRules( XMLRewrite.wrap( TestParallelImports.class.getAnnotationsByType( RemoveRule.class ) ) );
+        final String expected = rewrite( new XMLRewrite() , parent , sequential );
+        Assert.assertFalse( expected.contains( "removed" ) );
+        
+        final RewriteConfig parallel = new AnnotationParser().parse( TestParallelImports.class );
+        Assert.assertTrue( parallel.isParallelImports() );
+        for ( int i = 0 ; i < 10 ; i++ ) {
+            Assert.assertEquals( expected , rewrite( new XMLRewrite() , parent , parallel ) );
+        }
+    }
+    
+    @Test
+    public void testConcurrentRewritesWithSharedInstanceAndRules() throws Exception {
+        
+        final File matching = folder.newFile( "matching.xml" );
+        write( matching , "<beans><bean id=\"kept\"/><bean id=\"removed\"/><import resource=\"imported.xml\"/></beans>" );
+        write( folder.newFile( "imported.xml" ) , "<beans><bean id=\"imported\"/></beans>" );
+        final File notMatching = folder.newFile( "notMatching.xml" );
+        write( notMatching , "<beans><bean id=\"kept\"/></beans>" );
+        
+        // one instance and one set of rules for all threads, rules matching one rewrite must not affect any other
+        final XMLRewrite rewrite = new XMLRewrite();
+        rewrite.setDocumentCache( new SourceDocumentCache( 16 ) );
+        final RewriteConfig config = new AnnotationParser().parse( TestParallelImports.class );
+        final String expected = rewrite( new XMLRewrite() , matching , config );
+        
+        final int threadCount = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool( threadCount );
+        try 
+        {
+            final CountDownLatch start = new CountDownLatch( 1 );
+            final List<Future<?>> futures = new ArrayList<>();
+            for ( int i = 0 ; i < threadCount ; i++ ) 
+            {
+                final Callable<Void> task = () -> 
+                {
+                    start.await();
+                    for ( int j = 0 ; j < 50 ; j++ ) 
+                    {
+                        Assert.assertEquals( expected , rewrite( rewrite , matching , config ) );
+                        try {
+                            rewrite( rewrite , notMatching , config );
+                            Assert.fail("Should've failed");
+                        } catch(RuntimeException e) {
+                            Assert.assertEquals( "One or more rules were not matched" , e.getMessage() );
+                        }
+                    }
+                    return null;
+                };
+                futures.add( executor.submit( task ) );
+            }
+            start.countDown();
+            for ( Future<?> future : futures ) {
+                future.get();
+            }
+        } 
+        finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testListenersReceiveMetricsAndDebugOutput() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        write( parent , "<beans><bean id=\"kept\"/><bean id=\"removed\"/><import resource=\"child.xml\"/></beans>" );
+        write( folder.newFile( "child.xml" ) , "<beans><bean id=\"child1\"/><bean id=\"child2\"/></beans>" );
+        
+        final List<RewriteMetrics> metrics = new ArrayList<>();
+        final List<String> messages = new ArrayList<>();
+        final XMLRewrite rewrite = new XMLRewrite();
+        rewrite.addListener( new RewriteListener() 
+        {
+            @Override
+            public void contextLoaded(RewriteMetrics m) {
+                metrics.add( m );
+            }
+            
+            @Override
+            public void debug(String message) {
+                messages.add( message );
+            }
+        });
+        final RewriteConfig config = new RewriteConfig();
+        config.setParent( new AnnotationParser().parse( TestParallelImports.class ) );
+        config.setDebug( true );
+        rewrite.filterResource( new FileSystemResource( parent ) , config ).getData();
+        
+        Assert.assertEquals( 1 , metrics.size() );
+        final RewriteMetrics m = metrics.get(0);
+        Assert.assertEquals( 2 , m.getFilesLoaded() );
+        Assert.assertEquals( parent.length() + new File( folder.getRoot() , "child.xml" ).length() , m.getBytesRead() );
+        Assert.assertEquals( 1 , m.getNodesMatched() );
+        Assert.assertEquals( 2 , m.getNodesInlined() );
+        Assert.assertFalse( m.isCacheHit() );
+        Assert.assertTrue( m.getNanos( RewriteListener.Phase.RESOURCE_LOADING ) > 0 );
+        Assert.assertTrue( m.getNanos( RewriteListener.Phase.RULE_EVALUATION ) > 0 );
+        Assert.assertTrue( messages.stream().anyMatch( msg -> msg.startsWith( "Now loading" ) ) );
+    }
+    
+    @Test
+    public void testRuleStatisticsRecordCostPerRule() throws Exception {
+        
+        final File parent = folder.newFile( "parent.xml" );
+        write( parent , "<beans><bean id=\"removed\"/><import resource=\"child.xml\"/></beans>" );
+        write( folder.newFile( "child.xml" ) , "<beans><bean id=\"child\"/></beans>" );
+        
+        final RuleStatistics statistics = new RuleStatistics();
+        final XMLRewrite rewrite = new XMLRewrite();
+        rewrite.setRuleStatistics( statistics );
+        rewrite( rewrite , parent , new AnnotationParser().parse( TestParallelImports.class ) );
+        
+        final List<RuleStatistics.Entry> entries = statistics.getEntries();
+        Assert.assertEquals( 1 , entries.size() );
+        final RuleStatistics.Entry entry = entries.get(0);
+        Assert.assertEquals( TestParallelImports.class.getName() , entry.declaringClass );
+        Assert.assertEquals( "@RemoveRule" , entry.annotationType );
+        Assert.assertEquals( "/beans/bean[@id='removed']" , entry.xpath );
+        Assert.assertEquals( 2 , entry.getEvaluations() ); // once per file, matched rules are not evaluated again
+        Assert.assertEquals( 1 , entry.getNodesMatched() );
+        
+        final File report = new File( folder.getRoot() , "report/rules.tsv" );
+        statistics.writeReport( report );
+        final List<String> lines = Files.readAllLines( report.toPath() , StandardCharsets.UTF_8 );
+        Assert.assertEquals( 2 , lines.size() );
+        final String[] columns = lines.get(1).split("\t");
+        Assert.assertEquals( "2" , columns[1] );
+        Assert.assertEquals( "1" , columns[3] );
+        Assert.assertEquals( Arrays.asList( TestParallelImports.class.getName() , "@RemoveRule" , "" , "/beans/bean[@id='removed']" ) , Arrays.asList( columns ).subList( 5 , 9 ) );
+    }
+    
+    private static String rewrite(XMLRewrite rewrite,File file,RewriteConfig config) throws Exception {
+        return XMLRewrite.stripXML( XMLRewrite.readXMLString( rewrite.filterResource( new FileSystemResource( file ) , config ) ) );
+    }
+    
+    private static List<String> rewrite(XMLRewrite rewrite,List<Resource> resources,RewriteConfig config) throws Exception 
+    {
+        final List<String> result = new ArrayList<>();
+        for ( Resource resource : rewrite.filterResources( resources , config ) ) {
+            result.add( XMLRewrite.stripXML( XMLRewrite.readXMLString( resource ) ) );
+        }
+        return result;
+    }
+    
+    private static void write(File file,String xml) throws Exception {
+        Files.write( file.toPath() , xml.getBytes( StandardCharsets.UTF_8 ) );
+    }
 }